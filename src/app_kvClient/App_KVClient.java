@@ -13,6 +13,7 @@ import org.apache.log4j.Logger;
 import org.apache.commons.cli.*;
 
 import logger.LogSetup;
+import shared.ConnectionThreads;
 import shared.messages.KVMessage;
 import shared.messages.KVMessage.StatusType;
 
@@ -61,6 +62,9 @@ public class App_KVClient extends Thread {
 			case "keyrange_read":
 				keyrangeReadMessage(commands);
 				break;
+			case "stats":
+				statsMessage(commands);
+				break;
 			case "subscribe":
 				subscribeMessage(commands);
 				break;
@@ -127,6 +131,7 @@ public class App_KVClient extends Thread {
 		System.out.println("To Get KV Pair ->  get <key>");
 		System.out.println("To Get keyrange message -> keyrange");
 		System.out.println("To Get keyrange_read message -> keyrange_read");
+		System.out.println("To Get server statistics -> stats");
 		System.out.println("To Subscribe -> subscribe <key>");
 		System.out.println("To Unsubscribe -> unsubscribe <key>");
 		System.out.println("To Change LogLevel -> logLevel <level>");
@@ -243,6 +248,33 @@ public class App_KVClient extends Thread {
 	}
 
     }
+
+    public void statsMessage(String[] commands) {
+
+	if (!this.connected) {
+	    System.out.println("Client currently not connected to a server. Please Connect To A Server");
+	    return;
+	}
+
+	if (commands.length != 1) {
+	    System.out.println("Invalid Number of Arguments");
+	    return;
+	}
+
+	try {
+	    KVMessage message = this.client.stats();
+	    System.out.println(message.getKey().replace(";", "\n"));
+	} catch (EOFException e) {
+	    logger.info("Error: Server disconnected: " + e.toString());	
+	    System.out.println("Error: Server disconnected: " + e.toString());	
+	    this.connected = false;
+	    this.client.disconnect();
+	} catch (Exception e) {
+	    logger.error("ERROR: " + e.toString());
+	    System.out.println("ERROR: " + e.toString());
+	}
+
+    }
     
     
     public void subscribeMessage(String[] commands) {
@@ -368,10 +400,12 @@ public class App_KVClient extends Thread {
 
 	    Option portOption = Option.builder("p").desc("port which client subscription server listens on").hasArg().required().type(String.class).build();
 	    Option addressOption = Option.builder("a").desc("address which client subscription server listens to").hasArg().type(String.class).build();
+	    Option virtualThreadsOption = Option.builder("vt").desc("run subscription connections on virtual threads").build();
 
 	    Options options = new Options();	
 	    options.addOption(portOption);
 	    options.addOption(addressOption);
+	    options.addOption(virtualThreadsOption);
 
 	    CommandLineParser parser = new DefaultParser();
 	    CommandLine cmd = null;
@@ -399,6 +433,9 @@ public class App_KVClient extends Thread {
 
 	    try {
 		new LogSetup("logs/client.log", Level.OFF);
+		if (cmd.hasOption("vt")) {
+		    ConnectionThreads.useVirtualThreads();
+		}
 		new App_KVClient(address, port).start();
 	    } catch (IOException e) {
 		System.out.println("Error! Unable to initialize logger!");
@@ -5,6 +5,8 @@ import java.net.*;
 
 import org.apache.log4j.Logger;
 
+import shared.ConnectionThreads;
+
 public class ClientSubscriptionServer extends Thread {
 
     private static Logger logger = Logger.getRootLogger();
@@ -22,7 +24,7 @@ public class ClientSubscriptionServer extends Thread {
 	while (this.online) {
             try {
                 Socket server = this.serverSocket.accept();
-                new SubscriptionConnection(server).start();
+		ConnectionThreads.start(new SubscriptionConnection(server));
                 logger.info(String.format("Connected to %s on port %d", server.getInetAddress().getHostName(), server.getPort()));
             } catch (SocketException e) {
                 logger.info(String.format("SocketException received: %s", e.toString()));
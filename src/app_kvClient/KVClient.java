@@ -56,6 +56,10 @@ public class KVClient implements IKVClient {
     public KVMessage keyrangeread() throws Exception {
 	return this.store.keyrangeread();
     }
+
+    public KVMessage stats() throws Exception {
+	return this.store.stats();
+    }
 	
     public KVMessage subscribe(String key, String address, int port) throws Exception {
     	return this.store.subscribe(key, address, port);
@@ -6,6 +6,7 @@ import org.apache.log4j.Level;
 import org.apache.commons.cli.*;
 
 import logger.LogSetup;
+import shared.ConnectionThreads;
 
 public class App_KVECS {
 
@@ -15,6 +16,7 @@ public class App_KVECS {
         Option addressOption = Option.builder("a").desc("address which ECS listens to").hasArg().type(String.class).build();
         Option logOption = Option.builder("l").desc("relative path of the logfile").hasArg().type(String.class).build();
         Option logLevelOption = Option.builder("ll").desc("loglevel, e.g. INFO, WARN, DEBUG, etc.").hasArg().type(String.class).build();
+        Option virtualThreadsOption = Option.builder("vt").desc("run server connections on virtual threads").build();
         Option helpOption = Option.builder("h").desc("displays help message").build();
 
         Options options = new Options();	
@@ -22,6 +24,7 @@ public class App_KVECS {
         options.addOption(addressOption);
         options.addOption(logOption);
         options.addOption(logLevelOption);
+        options.addOption(virtualThreadsOption);
         options.addOption(helpOption);
 
         CommandLineParser parser = new DefaultParser();
@@ -61,6 +64,10 @@ public class App_KVECS {
         try {
             new LogSetup(logPath, logLevel);	
 
+            if (cmd.hasOption("vt")) {
+                ConnectionThreads.useVirtualThreads();
+            }
+
             new ECS(address, port).start();
 
         } catch (IOException ioe) {
@@ -9,6 +9,7 @@ import org.apache.log4j.Logger;
 
 import shared.KeyRange;
 import shared.ByteArrayComparator;
+import shared.ConnectionThreads;
 
 public class ECS extends Thread {
 
@@ -153,7 +154,7 @@ public class ECS extends Thread {
             try {
                 Socket client = this.socket.accept();
 		ECSClientConnection connection = new ECSClientConnection(client, this);
-		connection.start();
+		ConnectionThreads.start(connection);
                 logger.info(String.format("Connected to %s on port %d", client.getInetAddress().getHostName(), client.getPort()));
             } catch (SocketException e) {
                 logger.info(String.format("SocketException received: %s", e.toString()));
@@ -6,6 +6,8 @@ import org.apache.log4j.Level;
 import org.apache.commons.cli.*;
 
 import logger.LogSetup;
+import app_kvServer.util.StorageOptions;
+import app_kvServer.util.WriteAheadLog;
 
 public class App_KVServer {
 
@@ -14,12 +16,21 @@ public class App_KVServer {
 	Option bootstrapOption = Option.builder("b").desc("bootstrap server location as <address>:<port>").hasArg().required().type(String.class).build();
 	Option portOption = Option.builder("p").desc("port which server listens on").hasArg().required().type(String.class).build();
 	Option cacheSizeOption = Option.builder("c").desc("sets cache size on server").hasArg().type(String.class).build();
-	Option strategyOption = Option.builder("s").desc("sets caching strategy on server").hasArg().type(String.class).build();
+	Option strategyOption = Option.builder("s").desc("sets caching strategy on server: None, FIFO, LRU or LFU").hasArg().type(String.class).build();
 	Option addressOption = Option.builder("a").desc("address which server listens to").hasArg().type(String.class).build();
 	Option directoryOption = Option.builder("d").desc("directory for persistent files").hasArg().type(String.class).build();
 	Option logOption = Option.builder("l").desc("relative path of the logfile").hasArg().type(String.class).build();
 	Option logLevelOption = Option.builder("ll").desc("loglevel, e.g. INFO, WARN, DEBUG, etc.").hasArg().type(String.class).build();
 	Option replicationDelayOption = Option.builder("t").desc("replication delay in milliseconds").hasArg().type(String.class).build();
+	Option walDurabilityOption = Option.builder("w").desc("WAL durability: sync, periodic or buffered").hasArg().type(String.class).build();
+	Option walSyncIntervalOption = Option.builder("wi").desc("WAL fsync interval in milliseconds for periodic durability").hasArg().type(String.class).build();
+	Option mmapOption = Option.builder("mm").desc("memory-map store files for reads").build();
+	Option valueLogOption = Option.builder("vl").desc("move values of at least this many bytes to the value log").hasArg().type(String.class).build();
+	Option compressionOption = Option.builder("z").desc("store file block compression: none or deflate").hasArg().type(String.class).build();
+	Option replicationOption = Option.builder("r").desc("replication: copy or wal").hasArg().type(String.class).build();
+	Option frontEndOption = Option.builder("f").desc("client front end: threads, virtual or selector").hasArg().type(String.class).build();
+	Option ioThreadsOption = Option.builder("fi").desc("number of I/O threads of the selector front end").hasArg().type(String.class).build();
+	Option workerThreadsOption = Option.builder("fw").desc("number of worker threads of the selector front end").hasArg().type(String.class).build();
 	Option helpOption = Option.builder("h").desc("displays help message").build();
 	
 	Options options = new Options();	
@@ -32,6 +43,15 @@ public class App_KVServer {
 	options.addOption(logOption);
 	options.addOption(logLevelOption);
 	options.addOption(replicationDelayOption);
+	options.addOption(walDurabilityOption);
+	options.addOption(walSyncIntervalOption);
+	options.addOption(mmapOption);
+	options.addOption(valueLogOption);
+	options.addOption(compressionOption);
+	options.addOption(replicationOption);
+	options.addOption(frontEndOption);
+	options.addOption(ioThreadsOption);
+	options.addOption(workerThreadsOption);
 	options.addOption(helpOption);
 
 	CommandLineParser parser = new DefaultParser();
@@ -47,12 +67,12 @@ public class App_KVServer {
 	int bootstrapPort = 0;
 	int port = 0;
 	int cacheSize = 100;
-	String cacheStrategy = "None";
 	String address = "localhost";
 	String directory = "./";
 	String logPath = "server.log";
 	Level logLevel = Level.ALL;
 	long replicationDelay = 500L;
+	StorageOptions storageOptions = new StorageOptions();
 
 	try {
 	    String bootstrap = cmd.getOptionValue("b");  
@@ -94,8 +114,105 @@ public class App_KVServer {
 	    }
 	}
 
+	if (cmd.hasOption("w")) {
+	    try {
+		storageOptions.setWalDurability(WriteAheadLog.Durability.valueOf(cmd.getOptionValue("w").toUpperCase()));
+	    } catch (Exception e) {
+		System.err.println("Parsing failed. Reason: WAL durability must be one of sync, periodic or buffered");
+		System.exit(1);
+	    }
+	}
+
+	if (cmd.hasOption("wi")) {
+	    try {
+		long walSyncInterval = Long.parseLong(cmd.getOptionValue("wi"));
+		if (walSyncInterval <= 0) {
+		    throw new IllegalArgumentException("Error: WAL sync interval must be greater than 0");
+		}
+		storageOptions.setWalSyncInterval(walSyncInterval);
+	    } catch (Exception e) {
+		System.err.println("Parsing failed. Reason: " + e.getMessage());
+		System.exit(1);
+	    }
+	}
+
+	if (cmd.hasOption("mm")) {
+	    storageOptions.setMmapReads(true);
+	}
+
+	if (cmd.hasOption("vl")) {
+	    try {
+		int valueLogThreshold = Integer.parseInt(cmd.getOptionValue("vl"));
+		if (valueLogThreshold <= 0) {
+		    throw new IllegalArgumentException("Error: value log threshold must be greater than 0");
+		}
+		storageOptions.setValueLogThreshold(valueLogThreshold);
+	    } catch (Exception e) {
+		System.err.println("Parsing failed. Reason: " + e.getMessage());
+		System.exit(1);
+	    }
+	}
+
+	if (cmd.hasOption("z")) {
+	    try {
+		storageOptions.setCompression(StorageOptions.Compression.valueOf(cmd.getOptionValue("z").toUpperCase()));
+	    } catch (Exception e) {
+		System.err.println("Parsing failed. Reason: compression must be one of none or deflate");
+		System.exit(1);
+	    }
+	}
+
+	if (cmd.hasOption("r")) {
+	    try {
+		storageOptions.setReplication(StorageOptions.Replication.valueOf(cmd.getOptionValue("r").toUpperCase()));
+	    } catch (Exception e) {
+		System.err.println("Parsing failed. Reason: replication must be one of copy or wal");
+		System.exit(1);
+	    }
+	}
+
+	if (cmd.hasOption("f")) {
+	    try {
+		storageOptions.setFrontEnd(StorageOptions.FrontEnd.valueOf(cmd.getOptionValue("f").toUpperCase()));
+	    } catch (Exception e) {
+		System.err.println("Parsing failed. Reason: front end must be one of threads, virtual or selector");
+		System.exit(1);
+	    }
+	}
+
+	if (cmd.hasOption("fi")) {
+	    try {
+		int ioThreads = Integer.parseInt(cmd.getOptionValue("fi"));
+		if (ioThreads <= 0) {
+		    throw new IllegalArgumentException("Error: number of I/O threads must be greater than 0");
+		}
+		storageOptions.setIoThreads(ioThreads);
+	    } catch (Exception e) {
+		System.err.println("Parsing failed. Reason: " + e.getMessage());
+		System.exit(1);
+	    }
+	}
+
+	if (cmd.hasOption("fw")) {
+	    try {
+		int workerThreads = Integer.parseInt(cmd.getOptionValue("fw"));
+		if (workerThreads <= 0) {
+		    throw new IllegalArgumentException("Error: number of worker threads must be greater than 0");
+		}
+		storageOptions.setWorkerThreads(workerThreads);
+	    } catch (Exception e) {
+		System.err.println("Parsing failed. Reason: " + e.getMessage());
+		System.exit(1);
+	    }
+	}
+
 	if (cmd.hasOption("s")) {
-	    cacheStrategy = cmd.getOptionValue("s");
+	    try {
+		storageOptions.setCacheStrategy(parseCacheStrategy(cmd.getOptionValue("s")));
+	    } catch (Exception e) {
+		System.err.println("Parsing failed. Reason: " + e.getMessage());
+		System.exit(1);
+	    }
 	}
 	
 	if (cmd.hasOption("a")) {
@@ -120,10 +237,7 @@ public class App_KVServer {
 	    File store_dir = new File(directory);
 	    store_dir.mkdirs();
 
-	    File wal = new File(directory, "wal.txt");
-	    wal.createNewFile();
-
-	    KVServer kvServer = new KVServer(address, port, bootstrapAddress, bootstrapPort, directory, cacheSize, replicationDelay);
+	    KVServer kvServer = new KVServer(address, port, bootstrapAddress, bootstrapPort, directory, cacheSize, replicationDelay, storageOptions);
 	    KVServerShutdownHook kvServerShutdownHook = new KVServerShutdownHook(kvServer);
 	    Runtime.getRuntime().addShutdownHook(kvServerShutdownHook);
 	    kvServer.start();
@@ -138,6 +252,17 @@ public class App_KVServer {
 
     }
 
+    private static IKVServer.CacheStrategy parseCacheStrategy(String name) {
+
+	for (IKVServer.CacheStrategy strategy: IKVServer.CacheStrategy.values()) {
+	    if (strategy.name().equalsIgnoreCase(name)) {
+		return strategy;
+	    }
+	}
+
+	throw new IllegalArgumentException("Error: cache strategy must be one of None, FIFO, LRU or LFU");
+    }
+
 }
 
 class KVServerShutdownHook extends Thread {
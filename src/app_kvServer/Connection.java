@@ -2,11 +2,14 @@ package app_kvServer;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.security.*;
 
 import org.apache.log4j.Logger;
 
 import client.ProtocolMessage;
+import shared.ConnectionThreads;
+import shared.FrameReader;
 import shared.KeyRange;
 import shared.messages.KVMessage;
 import shared.messages.KVMessage.StatusType;
@@ -15,8 +18,11 @@ public class Connection extends Thread {
     
     private static Logger logger = Logger.getRootLogger();
 
-    private static final int BUFFER_SIZE = 1024;
-    private static final int DROP_SIZE = 128 * BUFFER_SIZE;
+    /**
+     * Longest request read at once; longer ones are cut off here and fail
+     * to parse.
+     */
+    static final int MAX_FRAME_SIZE = 128 * 1024 + 1;
     
     private KVServer kvServer;
 
@@ -24,13 +30,29 @@ public class Connection extends Thread {
 
     private InputStream input;
     private OutputStream output;
+    private FrameReader frames;
+    private boolean binary;
+    private int requestId;
 
     public Connection(Socket socket, KVServer kvServer) throws IOException {
+	this(socket, kvServer, socket.getInputStream(), socket.getOutputStream());
+    }
+
+    /**
+     * Handles requests read from input elsewhere, e.g. by the
+     * SelectorFrontEnd, instead of reading them from the socket. Responses
+     * go to output, and input is what a ServerConnection taking over the
+     * socket reads from.
+     */
+    public Connection(Socket socket, KVServer kvServer, InputStream input, OutputStream output) {
 	this.kvServer = kvServer;
 
 	this.socket = socket;
-	this.input = socket.getInputStream();
-	this.output = socket.getOutputStream();
+	this.input = input;
+	this.output = output;
+	this.frames = new FrameReader(input, MAX_FRAME_SIZE);
+	this.binary = false;
+	this.requestId = 0;
 
     }
 
@@ -40,40 +62,10 @@ public class Connection extends Thread {
 
 	    try {
 
-		ProtocolMessage request = receiveMessage(this.input);
-
-		if (this.kvServer.getServerState() == KVServer.ServerState.SERVER_UNAVAILABLE) {
-		    sendMessage(this.output, StatusType.SERVER_STOPPED, null, null);
-		    continue;
-		}
-
-		if (this.kvServer.getServerState() == KVServer.ServerState.SERVER_INITIALIZING &&
-		    request.getStatus() != StatusType.SERVER_INIT &&
-		    request.getStatus() != StatusType.REPLICATE_KV_HANDSHAKE) {
-		    sendMessage(this.output, StatusType.SERVER_STOPPED, null, null);
-		    continue;
-		}
+		ProtocolMessage request = this.binary ? receiveBinaryMessage(this.frames) : receiveMessage(this.frames);
 
-		if (request.getStatus() == StatusType.PUT) {
-		    this.handlePutRequest(request);
-		} else if (request.getStatus() == StatusType.GET) {
-		    this.handleGetRequest(request); 
-		} else if (request.getStatus() == StatusType.KEYRANGE) {
-		    this.handleKeyrangeRequest(request);
-		} else if (request.getStatus() == StatusType.KEYRANGE_READ) {
-		    this.handleKeyrangereadRequest(request);
-		} else if (request.getStatus() == StatusType.SUBSCRIBE) {
-		    this.handleSubscribeMessage(request);
-		} else if (request.getStatus() == StatusType.UNSUBSCRIBE) {
-		    this.handleUnsubscribeMessage(request);
-		} else if (request.getStatus() == StatusType.SERVER_INIT) {
-		    this.handleServerInitMessage();
+		if (!this.handleRequest(request)) {
 		    return;
-		} else if (request.getStatus() == StatusType.REPLICATE_KV_HANDSHAKE) {
-		    this.handleReplicateKVHandshakeMessage(request);
-		    return;
-		} else {
-		    this.handleInvalidMessageRequestType();
 		}
 
 	    } catch (IllegalArgumentException iae) {
@@ -90,26 +82,76 @@ public class Connection extends Thread {
 
     }
 
+    /**
+     * Sends the response to request.
+     * @return false if the socket was handed to a ServerConnection, or is no
+     *         longer used, so no more client requests must be read from it
+     */
+    public boolean handleRequest(ProtocolMessage request) throws Exception {
+
+	this.requestId = request.getRequestId();
+
+	if (this.kvServer.getServerState() == KVServer.ServerState.SERVER_UNAVAILABLE) {
+	    this.sendResponse(StatusType.SERVER_STOPPED, null, null);
+	    return true;
+	}
+
+	if (this.kvServer.getServerState() == KVServer.ServerState.SERVER_INITIALIZING &&
+	    request.getStatus() != StatusType.SERVER_INIT &&
+	    request.getStatus() != StatusType.REPLICATE_KV_HANDSHAKE) {
+	    this.sendResponse(StatusType.SERVER_STOPPED, null, null);
+	    return true;
+	}
+
+	if (request.getStatus() == StatusType.PUT) {
+	    this.handlePutRequest(request);
+	} else if (request.getStatus() == StatusType.GET) {
+	    this.handleGetRequest(request); 
+	} else if (request.getStatus() == StatusType.KEYRANGE) {
+	    this.handleKeyrangeRequest(request);
+	} else if (request.getStatus() == StatusType.KEYRANGE_READ) {
+	    this.handleKeyrangereadRequest(request);
+	} else if (request.getStatus() == StatusType.STATS) {
+	    this.handleStatsRequest(request);
+	} else if (request.getStatus() == StatusType.SUBSCRIBE) {
+	    this.handleSubscribeMessage(request);
+	} else if (request.getStatus() == StatusType.UNSUBSCRIBE) {
+	    this.handleUnsubscribeMessage(request);
+	} else if (request.getStatus() == StatusType.SERVER_INIT) {
+	    this.handleServerInitMessage();
+	    return false;
+	} else if (request.getStatus() == StatusType.REPLICATE_KV_HANDSHAKE) {
+	    this.handleReplicateKVHandshakeMessage(request);
+	    return false;
+	} else if (request.getStatus() == StatusType.BINARY_PROTOCOL) {
+	    this.handleBinaryProtocolMessage(request);
+	} else {
+	    this.handleInvalidMessageRequestType();
+	}
+
+	return true;
+    }
+
     public void handlePutRequest(KVMessage request) throws Exception {
 	try {
 
 	    if (this.kvServer.getServerState() == KVServer.ServerState.SERVER_REBALANCING) {
-		sendMessage(this.output, StatusType.SERVER_WRITE_LOCK, null, null);
+		this.sendResponse(StatusType.SERVER_WRITE_LOCK, null, null);
 		return;
 	    }
 
 	    KeyRange serverKeyRange = this.kvServer.getMetadata().get(this.hashIP(this.kvServer.getHostname(), this.kvServer.getPort()));
 
 	    if (!serverKeyRange.withinKeyRange(this.hashKey(request.getKey()))) {
-		sendMessage(this.output, StatusType.SERVER_NOT_RESPONSIBLE, null, null);
+		this.sendResponse(StatusType.SERVER_NOT_RESPONSIBLE, null, null);
 		return;
 	    }
 
 	    StatusType response_status = this.kvServer.putKV(request.getKey(), request.getValue());
-	    sendMessage(this.output, response_status, request.getKey(), request.getValue());
+	    this.sendResponse(response_status, request.getKey(), request.getValue());
 	} catch (Exception e) {
 	    logger.error("Failure in handling PUT request: " + e.toString());
-	    sendMessage(this.output, StatusType.PUT_ERROR, request.getKey(), request.getValue());
+	    this.sendResponse(StatusType.PUT_ERROR, request.getKey(), request.getValue());
 	}
     }
 
@@ -117,46 +159,55 @@ public class Connection extends Thread {
 	try {
 
 	    if (!this.isServerResponsibleForGetKey(request.getKey())) {
-		sendMessage(this.output, StatusType.SERVER_NOT_RESPONSIBLE, null, null);
+		this.sendResponse(StatusType.SERVER_NOT_RESPONSIBLE, null, null);
 		return;
 	    }
 
 	    String value = this.kvServer.getKV(request.getKey());
 
-	    if (value.equals("null")) {
-		sendMessage(this.output, StatusType.GET_ERROR, request.getKey(), null);
+	    if (value == null) {
+		this.sendResponse(StatusType.GET_ERROR, request.getKey(), null);
 	    } else {
-		sendMessage(this.output, StatusType.GET_SUCCESS, request.getKey(), value);
+		this.sendResponse(StatusType.GET_SUCCESS, request.getKey(), value);
 	    }
 
 	} catch (Exception e) {
 	    logger.error("Failure to handle GET request: " + e.toString());
-	    sendMessage(this.output, StatusType.GET_ERROR, request.getKey(), null);
+	    this.sendResponse(StatusType.GET_ERROR, request.getKey(), null);
 	}
     }
 
     public void handleKeyrangeRequest(KVMessage request) throws Exception {
 	try {
-	    sendMessage(this.output, StatusType.KEYRANGE_SUCCESS, this.kvServer.getKeyRangeSuccessString(), null);
+	    this.sendResponse(StatusType.KEYRANGE_SUCCESS, this.kvServer.getKeyRangeSuccessString(), null);
 	} catch (Exception e) {
 	    logger.error("Failure to handle KEYRANGE request: " + e.toString());
-	    sendMessage(this.output, StatusType.SERVER_STOPPED, null, null);
+	    this.sendResponse(StatusType.SERVER_STOPPED, null, null);
+	}
+    }
+
+    public void handleStatsRequest(KVMessage request) throws Exception {
+	try {
+	    this.sendResponse(StatusType.STATS_SUCCESS, this.kvServer.getStatsString(), null);
+	} catch (Exception e) {
+	    logger.error("Failure to handle STATS request: " + e.toString());
+	    this.sendResponse(StatusType.SERVER_STOPPED, null, null);
 	}
     }
 
     public void handleKeyrangereadRequest(KVMessage request) throws Exception {
 	try {
-	    sendMessage(this.output, StatusType.KEYRANGE_READ_SUCCESS, this.kvServer.getKeyRangeReadSuccessString(), null);
+	    this.sendResponse(StatusType.KEYRANGE_READ_SUCCESS, this.kvServer.getKeyRangeReadSuccessString(), null);
 	} catch (Exception e) {
 	    logger.error("Failure to handle KEYRANGE_READ request: " + e.toString());
-	    sendMessage(this.output, StatusType.SERVER_STOPPED, null, null);
+	    this.sendResponse(StatusType.SERVER_STOPPED, null, null);
 	}
     }
 
     public void handleSubscribeMessage(KVMessage request) throws Exception {
 
 	if (!this.isServerResponsibleForGetKey(request.getKey())) {
-	    sendMessage(this.output, StatusType.SERVER_NOT_RESPONSIBLE, null, null);
+	    this.sendResponse(StatusType.SERVER_NOT_RESPONSIBLE, null, null);
 	    return;
 	}
 
@@ -165,9 +216,9 @@ public class Connection extends Thread {
 	int port = Integer.parseInt(addressAndPort[1]);
     
 	if (this.kvServer.subscribeClient(address, port, request.getKey())) {
-	    sendMessage(this.output, StatusType.SUBSCRIBE_SUCCESS, null, null);
+	    this.sendResponse(StatusType.SUBSCRIBE_SUCCESS, null, null);
 	} else {
-	    sendMessage(this.output, StatusType.SUBSCRIBE_ERROR, null, null);	
+	    this.sendResponse(StatusType.SUBSCRIBE_ERROR, null, null);	
 	}
 	    
     }
@@ -175,7 +226,7 @@ public class Connection extends Thread {
     public void handleUnsubscribeMessage(KVMessage request) throws Exception {
 
 	if (!this.isServerResponsibleForGetKey(request.getKey())) {
-	    sendMessage(this.output, StatusType.SERVER_NOT_RESPONSIBLE, null, null);
+	    this.sendResponse(StatusType.SERVER_NOT_RESPONSIBLE, null, null);
 	    return;
 	}
 
@@ -184,16 +235,16 @@ public class Connection extends Thread {
 	int port = Integer.parseInt(addressAndPort[1]);
 
     	if (this.kvServer.unsubscribeClient(address, port, request.getKey())) {
-	    sendMessage(this.output, StatusType.UNSUBSCRIBE_SUCCESS, null, null);
+	    this.sendResponse(StatusType.UNSUBSCRIBE_SUCCESS, null, null);
 	} else {
-	    sendMessage(this.output, StatusType.UNSUBSCRIBE_ERROR, null, null);	
+	    this.sendResponse(StatusType.UNSUBSCRIBE_ERROR, null, null);	
 	}
     
     }
 
 
     public void handleServerInitMessage() throws Exception {
-	new ServerConnection(this.socket, this.kvServer).start();
+	ConnectionThreads.start(new ServerConnection(this.socket, this.frames.remaining(), this.kvServer));
     }
 
     public void handleReplicateKVHandshakeMessage(KVMessage request) throws Exception {
@@ -203,26 +254,49 @@ public class Connection extends Thread {
 
 	if (this.kvServer.getServerState() != KVServer.ServerState.SERVER_INITIALIZING && !currentTopology.equals(senderTopology)) {
 	    logger.warn("Replication request denied due to differing topology");
-	    sendMessage(this.output, StatusType.REPLICATE_KV_HANDSHAKE_NACK, null, null);
+	    this.sendResponse(StatusType.REPLICATE_KV_HANDSHAKE_NACK, null, null);
 	} else {
-	    sendMessage(this.output, StatusType.REPLICATE_KV_HANDSHAKE_ACK, null, null);
-	    new ServerConnection(this.socket, this.kvServer).start();
+	    this.sendResponse(StatusType.REPLICATE_KV_HANDSHAKE_ACK, null, null);
+	    ConnectionThreads.start(new ServerConnection(this.socket, this.frames.remaining(), this.kvServer));
 	}
 
 	return;
 
     }
 	
+    /**
+     * Switches the connection to the binary protocol once the client was
+     * told so in the text protocol.
+     */
+    public void handleBinaryProtocolMessage(KVMessage request) throws Exception {
+
+	if (this.binary || !ProtocolMessage.BINARY_PROTOCOL_VERSION.equals(request.getKey())) {
+	    logger.error("Client message format failure: Unsupported binary protocol version " + request.getKey());
+	    this.sendResponse(StatusType.FAILED, "Error: Unsupported binary protocol version.", "Error: Unsupported binary protocol version.");
+	    return;
+	}
+
+	this.sendResponse(StatusType.BINARY_PROTOCOL_ACK, ProtocolMessage.BINARY_PROTOCOL_VERSION, null);
+	this.binary = true;
+    }
+
+    /**
+     * @return whether requests and responses use the binary protocol
+     */
+    public boolean isBinary() {
+	return this.binary;
+    }
+
     public void handleInvalidMessageRequestType() throws Exception {
 	logger.error("Client message format failure: Invalid request status.");
-	sendMessage(this.output, StatusType.FAILED, "Error: Message request must be either PUT or GET.", "Error: Message request must be either PUT or GET.");
+	this.sendResponse(StatusType.FAILED, "Error: Message request must be either PUT or GET.", "Error: Message request must be either PUT or GET.");
     }
 
     public void handleIllegalArgumentException(IllegalArgumentException iae) {
 	logger.error("Client message format failure: " + iae.toString());
 
 	try {
-	    sendMessage(this.output, StatusType.FAILED, iae.toString(), iae.toString());
+	    this.sendResponse(StatusType.FAILED, iae.toString(), iae.toString());
 	} catch (Exception e) {
 	    logger.error("Failed to send failure message: " + e.toString()); 
 	}
@@ -244,52 +318,62 @@ public class Connection extends Thread {
 	}
     }
 
-    public static ProtocolMessage receiveMessage(InputStream input) throws IllegalArgumentException, IOException, Exception {
+    public static ProtocolMessage receiveMessage(FrameReader frames) throws IllegalArgumentException, IOException, Exception {
+	ByteBuffer frame = frames.readFrame();
+	return parseMessage(frame.array(), frame.position(), frame.remaining());
+    }
 
-	int byteCount = 0;
-	int index = 0;
-	byte[] msgBuf = new byte[BUFFER_SIZE];
+    public static ProtocolMessage receiveBinaryMessage(FrameReader frames) throws IllegalArgumentException, IOException, Exception {
+	ByteBuffer frame = frames.readLengthPrefixedFrame();
+	return parseBinaryMessage(frame.array(), frame.position(), frame.remaining());
+    }
 
-	byte prev_value = 0;
-	byte cur_value = 0;
+    /**
+     * @param frame holds a request up to and including its CRLF, or the
+     *           first MAX_FRAME_SIZE bytes of one that is too long, in
+     *           frame[offset, offset + length)
+     */
+    public static ProtocolMessage parseMessage(byte[] frame, int offset, int length) throws IllegalArgumentException, Exception {
 
-	while ((cur_value = (byte) input.read()) != -1) {
+	ProtocolMessage request = ProtocolMessage.fromBytesAtServer(frame, offset, length);
 
-	    msgBuf[byteCount++] = cur_value;
-	    index++;
+	logger.info(String.format("Received protocol message: status = %s, key = %s, value = %s", request.getStatus(), request.getKey(), request.getValue())); 
 
-	    if (byteCount > DROP_SIZE) {
-		break;
-	    }
+	return request;
+    }
 
-	    if (prev_value == 13 && cur_value == 10) {
-		break;
-	    }
+    /**
+     * @param frame holds a binary request, without the length before it,
+     *           in frame[offset, offset + length)
+     */
+    public static ProtocolMessage parseBinaryMessage(byte[] frame, int offset, int length) throws IllegalArgumentException, Exception {
 
-	    if (index == BUFFER_SIZE) {
-		byte[] tmpBuf = new byte[BUFFER_SIZE + byteCount];
-		System.arraycopy(msgBuf, 0, tmpBuf, 0, byteCount);
-		msgBuf = tmpBuf;
-		index = 0;
-	    }
+	ProtocolMessage request = ProtocolMessage.fromBinaryAtServer(frame, offset, length);
 
-	    prev_value = cur_value;
+	logger.info(String.format("Received binary protocol message: id = %d, status = %s, key = %s, value = %s", request.getRequestId(), request.getStatus(), request.getKey(), request.getValue()));
 
-	}
+	return request;
+    }
 
-	if (cur_value == -1 && byteCount == 0) {
-	    throw new EOFException("EOF reached");
+    /**
+     * Sends a response to the request being handled in the protocol the
+     * connection uses.
+     */
+    private void sendResponse(StatusType status, String key, String value) throws Exception {
+	if (this.binary) {
+	    sendBinaryMessage(this.output, status, key, value, this.requestId);
+	} else {
+	    sendMessage(this.output, status, key, value);
 	}
+    }
 
-	byte[] tmpBuf = new byte[byteCount];
-	System.arraycopy(msgBuf, 0, tmpBuf, 0, byteCount);
-	msgBuf = tmpBuf;
-
-	ProtocolMessage request = ProtocolMessage.fromBytesAtServer(msgBuf);
+    public static void sendBinaryMessage(OutputStream output, StatusType status, String key, String value, int requestId) throws Exception {
 
-	logger.info(String.format("Received protocol message: status = %s, key = %s, value = %s", request.getStatus(), request.getKey(), request.getValue())); 
+	ProtocolMessage response = new ProtocolMessage(status, key, value, requestId);
+	output.write(response.getBinaryBytes());
+	output.flush();
 
-	return request;
+	logger.info(String.format("Sent binary protocol message: id = %d, status = %s, key = %s, value = %s", requestId, response.getStatus(), response.getKey(), response.getValue()));
     }
 
     public static void sendMessage(OutputStream output, StatusType status, String key, String value) throws Exception {
@@ -79,6 +79,7 @@ public class ECSConnection extends Thread {
 	    logger.debug("Got METADATA_UPDATE from ECS");
 	    this.kvServer.recoverIfNecessary(message);
 	    this.kvServer.setMetadata(message.getMetadata());
+	    this.kvServer.resyncReplicas();
 	    this.kvServer.setServerState(KVServer.ServerState.SERVER_AVAILABLE);
 	}
 
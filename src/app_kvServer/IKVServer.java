@@ -50,7 +50,8 @@ public interface IKVServer {
 
     /**
      * Get the value associated with the key
-     * @return  value associated with key
+     * @return  value associated with key, or null if it has none or was
+     *          deleted
      * @throws Exception
      *      when key not in the key range of the server
      */
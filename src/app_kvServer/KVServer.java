@@ -2,15 +2,25 @@ package app_kvServer;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.NoSuchFileException;
 import java.util.*;
 import java.security.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 
 import org.apache.log4j.Logger;
 
 import app_kvServer.util.ServerFileManager;
+import app_kvServer.util.ShardedCache;
+import app_kvServer.util.StorageOptions;
+import app_kvServer.util.WriteAheadLog;
 
 import client.ProtocolMessage;
 import client.ClientSubscriptionInfo;
+import shared.ConnectionThreads;
+import shared.FrameReader;
 import shared.KeyRange;
 import shared.ByteArrayComparator;
 import shared.messages.ServerMessage;
@@ -27,11 +37,14 @@ public class KVServer extends Thread implements IKVServer {
         SERVER_UNAVAILABLE
     }
 
+    private static final int KEY_LOCK_STRIPES = 256;
+
     private static Logger logger = Logger.getRootLogger();
 
     private ServerState state;
 
     private ServerSocket clientSocket;
+    private SelectorFrontEnd selectorFrontEnd;
 
     private ECSConnection ecsConnection;
     private String ecsAddress;
@@ -39,15 +52,31 @@ public class KVServer extends Thread implements IKVServer {
 
     private ServerFileManager serverFileManager;
 
-    private TreeMap<String, String> memtable;
-    private Object memtableLock;
+    private volatile Memtable memtable;
+    private volatile Memtable immutableMemtable;
+    private ReentrantReadWriteLock memtableLock;
+    private ReentrantLock[] keyLocks;
+    private Condition immutableMemtableReady;
+    private Condition immutableMemtableFlushed;
+    private boolean closed;
+    private Object compactionLock;
+    private MemtableFlusher memtableFlusher;
+    private StoreFileCompactor storeFileCompactor;
     private int cacheSize;
-    private int dumpCounter;
+    private CacheStrategy cacheStrategy;
+    private ShardedCache<String, String> rowCache;
+    private AtomicLongArray rowCacheGenerations;
 
     private volatile TreeMap<byte[], KeyRange> metadata;
 
     private Timer replicationTimer;
     private long replicationDelay;
+    private StorageOptions.Replication replication;
+    private ReplicaShipper[] replicaShippers;
+    private Memtable[] replicaMemtables;
+    private long[] replicaSequences;
+    private Object replicaLock;
+    private ReplicationLag replicationLag;
 
     private volatile boolean online;
 	
@@ -65,27 +94,78 @@ public class KVServer extends Thread implements IKVServer {
     *           and "LFU".
     */
     public KVServer(String address, int port, String bootstrapAddress, int bootstrapPort, String directoryLocation, int cacheSize, long replicationDelay) throws IOException {
+	this(address, port, bootstrapAddress, bootstrapPort, directoryLocation, cacheSize, replicationDelay, new StorageOptions());
+    }
+
+    /**
+    * Start KV Server at given port with non-default storage options
+    * @param storageOptions WAL durability and other storage engine settings
+    */
+    public KVServer(String address, int port, String bootstrapAddress, int bootstrapPort, String directoryLocation, int cacheSize, long replicationDelay, StorageOptions storageOptions) throws IOException {
 
         this.state = ServerState.SERVER_INITIALIZING;
 
 	this.ecsAddress = bootstrapAddress;
 	this.ecsPort = bootstrapPort;
 
-        this.memtable = new TreeMap<String, String>();
-        this.memtableLock = new Object();
+	this.immutableMemtable = null;
+	this.closed = false;
+	this.memtableLock = new ReentrantReadWriteLock();
+	this.keyLocks = new ReentrantLock[KEY_LOCK_STRIPES];
+	for (int i = 0; i < KEY_LOCK_STRIPES; i++) {
+	    this.keyLocks[i] = new ReentrantLock();
+	}
+	this.immutableMemtableReady = this.memtableLock.writeLock().newCondition();
+	this.immutableMemtableFlushed = this.memtableLock.writeLock().newCondition();
+	this.compactionLock = new Object();
         this.cacheSize = cacheSize;
-	this.dumpCounter = 0;
+	this.cacheStrategy = storageOptions.getCacheStrategy();
+	this.rowCache = new ShardedCache<String, String>(this.cacheStrategy, cacheSize, value -> 1);
+	this.rowCacheGenerations = new AtomicLongArray(KEY_LOCK_STRIPES);
+
+	var recoveredEntries = new TreeMap<String, Optional<String>>();
+	this.serverFileManager = new ServerFileManager(directoryLocation, recoveredEntries, this.cacheSize, storageOptions);
+	this.memtable = new Memtable(recoveredEntries);
 
-	this.serverFileManager = new ServerFileManager(directoryLocation, this.memtable, this.cacheSize);
+	this.memtableFlusher = new MemtableFlusher(this);
+	this.memtableFlusher.start();
+
+	this.storeFileCompactor = new StoreFileCompactor(this);
+	this.storeFileCompactor.start();
+	this.storeFileCompactor.requestCompaction();
 
 	this.metadata = new TreeMap<byte[], KeyRange>(new ByteArrayComparator());
 	this.replicationTimer = new Timer("Replication Timer");
 	this.replicationDelay = replicationDelay;
+	this.replication = storageOptions.getReplication();
+	this.replicaShippers = new ReplicaShipper[0];
+	this.replicaMemtables = new Memtable[] {new Memtable(), new Memtable()};
+	this.replicaSequences = new long[2];
+	this.replicaLock = new Object();
+	this.replicationLag = new ReplicationLag(2, this.serverFileManager.getLastWALSequence());
+
+	if (this.replication == StorageOptions.Replication.WAL) {
+	    this.replicaShippers = new ReplicaShipper[] {new ReplicaShipper(this, 1, replicationDelay), new ReplicaShipper(this, 2, replicationDelay)};
+	}
 	
 	this.subs = new TreeMap<String, List<ClientSubscriptionInfo>>();
 
 	logger.info("Starting server...");	
-	this.clientSocket = new ServerSocket(port, 0, InetAddress.getByName(address));
+
+	if (storageOptions.getFrontEnd() == StorageOptions.FrontEnd.VIRTUAL) {
+	    ConnectionThreads.useVirtualThreads();
+	}
+
+	if (storageOptions.getFrontEnd() == StorageOptions.FrontEnd.SELECTOR) {
+	    ServerSocketChannel clientChannel = ServerSocketChannel.open();
+	    clientChannel.bind(new InetSocketAddress(InetAddress.getByName(address), port));
+	    this.clientSocket = clientChannel.socket();
+	    this.selectorFrontEnd = new SelectorFrontEnd(this, storageOptions.getIoThreads(), storageOptions.getWorkerThreads());
+	} else {
+	    this.clientSocket = new ServerSocket(port, 0, InetAddress.getByName(address));
+	    this.selectorFrontEnd = null;
+	}
+
 	logger.info("Server listening on port: " + this.clientSocket.getLocalPort());
 
     }
@@ -96,7 +176,7 @@ public class KVServer extends Thread implements IKVServer {
 	try {
 	    this.online = true;
 	    this.ecsConnection = new ECSConnection(this);
-	    this.ecsConnection.start();
+	    ConnectionThreads.start(this.ecsConnection);
 	} catch (Exception e) {
 	    logger.error("Could not connect to ECS server: " + e.getMessage());
 	    logger.info("Server stopped...");
@@ -104,10 +184,22 @@ public class KVServer extends Thread implements IKVServer {
 	    return;
 	}
 
+	if (this.selectorFrontEnd != null) {
+	    this.selectorFrontEnd.start();
+	}
+
         while (this.online) {
             try {
                 Socket client = this.clientSocket.accept();
-                new Connection(client, this).start();
+		// Responses to pipelined requests go out back to back, and
+		// Nagle's algorithm would hold each one until the previous
+		// one is acknowledged.
+		client.setTcpNoDelay(true);
+		if (this.selectorFrontEnd != null) {
+		    this.selectorFrontEnd.register(client.getChannel());
+		} else {
+		    ConnectionThreads.start(new Connection(client, this));
+		}
                 logger.info(String.format("Connected to %s on port %d", client.getInetAddress().getHostName(), client.getPort()));
             } catch (SocketException e) {
                 logger.info(String.format("SocketException received: %s", e.toString()));
@@ -131,7 +223,7 @@ public class KVServer extends Thread implements IKVServer {
 
     @Override
     public CacheStrategy getCacheStrategy(){
-        return IKVServer.CacheStrategy.None;
+	return this.cacheStrategy;
     }
 
     @Override
@@ -141,8 +233,7 @@ public class KVServer extends Thread implements IKVServer {
 
     @Override
     public boolean inStorage(String key) throws Exception {
-	String result = this.serverFileManager.searchForKeyInFiles(key, "KVServerStoreFile_");
-	return !result.equals("null");
+	return this.serverFileManager.searchForKeyInFiles(key, "KVServerStoreFile_") != null;
     }
 
     public String getValueFromStorage(String key) throws Exception {
@@ -151,106 +242,381 @@ public class KVServer extends Thread implements IKVServer {
 
     @Override
     public boolean inCache(String key) {
-        return this.memtable.containsKey(key);
+
+	Optional<String> value = this.getFromMemtables(key);
+
+	if (value != null) {
+	    return value.isPresent();
+	}
+
+	return this.rowCache.get(key) != null;
+    }
+
+    /**
+     * Looks a key up in the active memtable and then in the memtable that is
+     * being flushed, if any. The active memtable is read first: a swap
+     * publishes the immutable memtable before replacing the active one, and
+     * the immutable memtable is only dropped once it is on disk.
+     * @return the newest value of key, ServerFileManager.TOMBSTONE if it was
+     *         deleted, or null if neither memtable has it
+     */
+    private Optional<String> getFromMemtables(String key) {
+
+	Optional<String> value = this.memtable.get(key);
+
+	if (value == null) {
+	    var immutable = this.immutableMemtable;
+	    if (immutable != null) {
+		value = immutable.get(key);
+	    }
+	}
+
+	return value;
+    }
+
+    /**
+     * Looks key up in what this server holds as replicaNumber'th replica:
+     * the writes streamed to it since they were last flushed, then its
+     * replica store files.
+     * @return the newest value of key, ServerFileManager.TOMBSTONE if it
+     *         was deleted, or null if it has none
+     */
+    private Optional<String> getFromReplica(int replicaNumber, String key) throws Exception {
+
+	Optional<String> value = this.replicaMemtables[replicaNumber - 1].get(key);
+
+	if (value != null) {
+	    return value;
+	}
+
+	return this.serverFileManager.findKeyInFiles(key, "Replica" + replicaNumber + "KVServerStoreFile_");
     }
 
+    /**
+     * Looks key up in the memtables, then the row cache, then the replica
+     * and primary store files, and stops at the first of them that has it,
+     * even if as a tombstone. Values found in the primary store files are
+     * kept in the row cache, which is separate from the memtable so reads
+     * never cause flushes.
+     */
     @Override
     public String getKV(String key) throws Exception {
 
-        if (this.memtable.containsKey(key)) {
-            logger.info("Got key = " + key + " from cache with value = " + this.memtable.get(key));
-            return this.memtable.get(key);
+	int stripe = keyStripe(key);
+	long generation = this.rowCacheGenerations.get(stripe);
+
+	Optional<String> memtableValue = this.getFromMemtables(key);
+
+	if (ServerFileManager.isTombstone(memtableValue)) {
+	    logger.info("Key = " + key + " was deleted");
+	    return null;
+	}
+
+	if (memtableValue != null) {
+	    logger.info("Got key = " + key + " from cache with value = " + memtableValue.get());
+	    return memtableValue.get();
         }
 
-	String value = this.serverFileManager.searchForKeyInFiles(key, "Replica1KVServerStoreFile_");
+	String cachedValue = this.rowCache.get(key);
 
-	if (!value.equals("null")) {
-	    logger.info("Got key = " + key + " from replica 1 storage with value = " + value);
-	    return value;
+	if (cachedValue != null) {
+	    logger.info("Got key = " + key + " from row cache with value = " + cachedValue);
+	    return cachedValue;
 	}
 
-	value = this.serverFileManager.searchForKeyInFiles(key, "Replica2KVServerStoreFile_");
+	for (int replicaNumber = 1; replicaNumber <= 2; replicaNumber++) {
 
-	if (!value.equals("null")) {
-	    logger.info("Got key = " + key + " from replica 2 storage with value = " + value);
-	    return value;
+	    Optional<String> replicaValue = this.getFromReplica(replicaNumber, key);
+
+	    if (ServerFileManager.isTombstone(replicaValue)) {
+		logger.info("Key = " + key + " was deleted in replica " + replicaNumber + " storage");
+		return null;
+	    }
+
+	    if (replicaValue != null) {
+		logger.info("Got key = " + key + " from replica " + replicaNumber + " storage with value = " + replicaValue.get());
+		return replicaValue.get();
+	    }
 	}
 
-	value = this.serverFileManager.searchForKeyInFiles(key, "KVServerStoreFile_");
+	String value = this.serverFileManager.searchForKeyInFiles(key, "KVServerStoreFile_");
 
-	if (!value.equals("null")) {
+	if (value != null) {
 	    logger.info("Got key = " + key + " from storage with value = " + value);
 
-	    if (this.state != ServerState.SERVER_REBALANCING) {
-		synchronized (this.memtableLock) {
-		    this.memtable.put(key, value);
-		    if (this.memtable.size() >= this.cacheSize) {
-			this.dumpCounter++;
-			this.serverFileManager.dumpCacheToStoreFile();
-			if (this.dumpCounter == 3) {
-			    this.serverFileManager.compactStoreFiles();
-			    this.serverFileManager.clearOldStoreFiles();
-			    this.dumpCounter = 0;
-			}
-		    }
-		}
+	    this.rowCache.put(key, value);
+
+	    if (this.rowCacheGenerations.get(stripe) != generation) {
+		this.rowCache.remove(key);
 	    }
 
 	    return value;
 	}
 
-        return "null";
+        return null;
 
     }
 
+    /**
+     * Reading the previous value and writing the new one happen under the
+     * key's lock stripe, so of two concurrent PUTs of a new key exactly one
+     * reports PUT_SUCCESS and each notification carries the value its PUT
+     * replaced.
+     */
     @Override
-    public synchronized StatusType putKV(String key, String value) throws Exception {
+    public StatusType putKV(String key, String value) throws Exception {
 
-	this.serverFileManager.writeKVToWAL(key, value);
+	StatusType response = StatusType.PUT_SUCCESS;
 
-        StatusType response = StatusType.PUT_SUCCESS;
-	String previousValue;
+	Optional<String> storedValue = value.equals("null") ? ServerFileManager.TOMBSTONE : Optional.of(value);
+	Optional<String> previousValue;
+	ByteBuffer record;
 
-	synchronized (this.memtableLock) {
+	int stripe = keyStripe(key);
+	ReentrantLock keyLock = this.keyLocks[stripe];
 
-	    previousValue = this.memtable.put(key, value);
+	keyLock.lock();
 
-	    if (previousValue != null && !previousValue.equals("null")) {
-		response = StatusType.PUT_UPDATE;
-	    }
+	try {
 
-	    if (response != StatusType.PUT_UPDATE) {
-		previousValue = this.getValueFromStorage(key);
+	    previousValue = this.getFromMemtables(key);
 
-		if (previousValue != null && !previousValue.equals("null")) {
-		    response = StatusType.PUT_UPDATE;
-		}
+	    if (previousValue == null) {
+		previousValue = Optional.ofNullable(this.getValueFromStorage(key));
 	    }
 
-	    if (value.equals("null")) {
-		response = StatusType.PUT_SUCCESS;
+	    if (previousValue.isPresent() && storedValue.isPresent()) {
+		response = StatusType.PUT_UPDATE;
 	    }
 
-	    if (this.memtable.size() >= this.cacheSize) {
-		this.dumpCounter++;
-		this.serverFileManager.dumpCacheToStoreFile();
-		if (this.dumpCounter == 3) {
-		    this.serverFileManager.compactStoreFiles();
-		    this.serverFileManager.clearOldStoreFiles();
-		    this.dumpCounter = 0;
+	    this.memtableLock.readLock().lock();
+
+	    try {
+		// A PUT that was already being handled when the server was
+		// closed, and found the WAL closed.
+		if (this.closed) {
+		    return StatusType.SERVER_STOPPED;
 		}
+		record = this.serverFileManager.writeKVToWAL(key, storedValue);
+		this.memtable.put(key, storedValue);
+	    } finally {
+		this.memtableLock.readLock().unlock();
 	    }
+
+	} finally {
+	    keyLock.unlock();
+	}
+
+	this.replicationLag.recordWrite(WriteAheadLog.getSequence(record));
+
+	for (ReplicaShipper replicaShipper: this.replicaShippers) {
+	    replicaShipper.offer(record);
+	}
+
+	this.rowCacheGenerations.incrementAndGet(stripe);
+	this.rowCache.remove(key);
+
+	if (this.memtable.size() >= this.cacheSize) {
+	    this.swapMemtable(false);
 	}
 	
-	this.notifyClients(key, value, previousValue);
+	this.notifyClients(key, value, previousValue.orElse("null"));
 
 	return response;
 
     }
 
+    /**
+     * Hands the active memtable to the flusher and starts a new one. Writers
+     * hold the read side of memtableLock while they append to the WAL and
+     * the memtable, so taking the write side here guarantees no write lands
+     * in a memtable after it has been handed off. Only waits if the previous
+     * memtable is still being flushed; writers keep filling the active
+     * memtable in the meantime.
+     * @param force swap even if the active memtable is not full
+     */
+    private void swapMemtable(boolean force) throws Exception {
+
+	this.memtableLock.writeLock().lock();
+
+	try {
+
+	    while (this.immutableMemtable != null) {
+		this.immutableMemtableFlushed.await();
+	    }
+
+	    if (this.memtable.isEmpty() || (!force && this.memtable.size() < this.cacheSize)) {
+		return;
+	    }
+
+	    this.serverFileManager.rotateWAL();
+
+	    this.immutableMemtable = this.memtable;
+	    this.memtable = new Memtable();
+
+	    this.immutableMemtableReady.signalAll();
+
+	} finally {
+	    this.memtableLock.writeLock().unlock();
+	}
+    }
+
+    /**
+     * Blocks the flusher until there is an immutable memtable to write.
+     * @return the memtable to flush, or null once the server is closing
+     */
+    Memtable awaitImmutableMemtable() throws InterruptedException {
+
+	this.memtableLock.writeLock().lock();
+
+	try {
+	    while (this.immutableMemtable == null && this.memtableFlusher.isRunning()) {
+		this.immutableMemtableReady.await();
+	    }
+	    return this.immutableMemtable;
+	} finally {
+	    this.memtableLock.writeLock().unlock();
+	}
+    }
+
+    /**
+     * Wakes the flusher so it can notice it has been shut down.
+     */
+    void wakeMemtableFlusher() {
+
+	this.memtableLock.writeLock().lock();
+
+	try {
+	    this.immutableMemtableReady.signalAll();
+	} finally {
+	    this.memtableLock.writeLock().unlock();
+	}
+    }
+
+    /**
+     * Writes the immutable memtable to a level 0 store file, then releases
+     * it so the next swap can proceed, and lets the compactor know there is
+     * a new file. Runs on the flusher thread.
+     */
+    void flushImmutableMemtable(Memtable immutable) throws Exception {
+
+	this.serverFileManager.dumpCacheToStoreFile(immutable.getEntries());
+
+	this.memtableLock.writeLock().lock();
+
+	try {
+	    this.immutableMemtable = null;
+	    this.immutableMemtableFlushed.signalAll();
+	} finally {
+	    this.memtableLock.writeLock().unlock();
+	}
+
+	this.storeFileCompactor.requestCompaction();
+    }
+
+    /**
+     * Runs one step of leveled compaction. Runs on the compactor thread;
+     * compaction steps never overlap with full compactions, partitioning or
+     * recovery, but flushes carry on alongside them.
+     * @return whether a compaction was run and another may be needed
+     */
+    boolean compactStoreFilesStep() throws Exception {
+	synchronized (this.compactionLock) {
+	    return this.serverFileManager.compactNextLevel();
+	}
+    }
+
+    /**
+     * Synchronously moves everything in the memtables to store files.
+     */
+    public void flushMemtable() throws Exception {
+
+	this.swapMemtable(true);
+
+	this.memtableLock.writeLock().lock();
+
+	try {
+	    while (this.immutableMemtable != null) {
+		this.immutableMemtableFlushed.await();
+	    }
+	} finally {
+	    this.memtableLock.writeLock().unlock();
+	}
+    }
+
+    /**
+     * Flushes the memtables and merges all store files into a single
+     * non-overlapping run.
+     */
+    public void flushAndCompactStoreFiles() throws Exception {
+
+	this.flushMemtable();
+
+	synchronized (this.compactionLock) {
+	    this.serverFileManager.compactStoreFiles();
+	}
+    }
+
+    /**
+     * Drops every row cached from the store files. A row is only cached if
+     * no write to a key of its stripe (or invalidation) happened between
+     * the lookup that found it and its insertion, so a write racing with a
+     * GET can never leave a stale row behind once the write's memtable has
+     * been flushed, while writes to other keys rarely cancel the fill.
+     */
+    void invalidateRowCache() {
+	for (int i = 0; i < KEY_LOCK_STRIPES; i++) {
+	    this.rowCacheGenerations.incrementAndGet(i);
+	}
+	this.rowCache.clear();
+    }
+
+    /**
+     * @return the stripe of key's lock and row cache generation
+     */
+    private static int keyStripe(String key) {
+	return Math.floorMod(key.hashCode(), KEY_LOCK_STRIPES);
+    }
+
+    /**
+     * @return how far each replica trails this server
+     */
+    public ReplicationLag getReplicationLag() {
+	return this.replicationLag;
+    }
+
+    /**
+     * @return the server's statistics as name=value pairs separated by ';':
+     *         for each replica, how many writes and milliseconds it trails
+     *         this server by
+     */
+    public String getStatsString() {
+
+	StringBuilder sb = new StringBuilder();
+
+	for (int replicaNumber = 1; replicaNumber <= 2; replicaNumber++) {
+	    sb.append(String.format("replica%d_lag_records=%d;", replicaNumber, this.replicationLag.getLagRecords(replicaNumber)));
+	    sb.append(String.format("replica%d_lag_ms=%d;", replicaNumber, this.replicationLag.getLagMillis(replicaNumber)));
+	}
+
+	return sb.toString();
+    }
+
+    String describeReplicationLag(int replicaNumber) {
+	return String.format("%d writes (%d ms) behind", this.replicationLag.getLagRecords(replicaNumber), this.replicationLag.getLagMillis(replicaNumber));
+    }
+
+    /**
+     * @return the cache of rows read from the primary store files
+     */
+    public ShardedCache<String, String> getRowCache() {
+	return this.rowCache;
+    }
+
     @Override
     public void clearCache() {
         this.memtable.clear();
+	this.invalidateRowCache();
     }
 
     @Override
@@ -263,10 +629,18 @@ public class KVServer extends Thread implements IKVServer {
         System.exit(1);
     }
 
+    /**
+     * Stops taking client requests before the background threads, so no
+     * PUT can be left waiting for a flusher that is gone. Connections
+     * already open answer SERVER_STOPPED from then on, and the WAL is only
+     * closed once the PUTs appending to it have finished. The flusher
+     * writes out a memtable already handed to it before it stops, and the
+     * store files are closed last.
+     */
     @Override
     public void close() {
 
-	this.replicationTimer.cancel();
+	this.stopReplicationTimer();
 
         this.online = false;
 
@@ -281,6 +655,10 @@ public class KVServer extends Thread implements IKVServer {
             logger.error("Could not gracefully close client socket: " + e.getMessage());
         }
 
+	if (this.selectorFrontEnd != null) {
+	    this.selectorFrontEnd.shutdown();
+	}
+
 	try {
 
 	    if (this.ecsConnection != null) {
@@ -292,54 +670,62 @@ public class KVServer extends Thread implements IKVServer {
 	    logger.error("Could not gracefully close ECS socket: " + e.getMessage());
 	}
 
+	this.setServerState(ServerState.SERVER_UNAVAILABLE);
+
+	this.memtableLock.writeLock().lock();
+
+	try {
+	    this.closed = true;
+	} finally {
+	    this.memtableLock.writeLock().unlock();
+	}
+
+	logger.info(String.format("Replica 1 is %s, replica 2 is %s", this.describeReplicationLag(1), this.describeReplicationLag(2)));
+
+	this.memtableFlusher.shutdown();
+	this.storeFileCompactor.shutdown();
+	this.serverFileManager.close();
+
     }
 
     public void sendAllFilesToServer(String address, int port) throws Exception {
 
 	logger.info(String.format("Sending all files to <%s,%d>", address, port));
 	
-	synchronized (this.memtableLock) {
-	    this.serverFileManager.dumpCacheToStoreFile();
-	    this.serverFileManager.compactStoreFiles();
-	    this.serverFileManager.clearOldStoreFiles();
-	}
+	this.flushMemtable();
 
 	byte[] serverHash = this.hashIP(this.getHostname(), this.getPort());
 	KeyRange serverKeyRange = this.metadata.get(serverHash);
 
-	this.serverFileManager.partitionStoreFilesByKeyRange(serverHash, serverKeyRange);
+	synchronized (this.compactionLock) {
+	    this.serverFileManager.partitionStoreFilesByKeyRange(serverHash, serverKeyRange);
+	}
+
+	this.invalidateRowCache();
+
+	this.flushReplicaMemtables();
 
-	Socket serverSocket = new Socket(address, port);
+	SocketChannel serverChannel = SocketChannel.open(new InetSocketAddress(address, port));
+	Socket serverSocket = serverChannel.socket();
 	OutputStream output = serverSocket.getOutputStream();
 
 	ProtocolMessage initialMessage = new ProtocolMessage(StatusType.SERVER_INIT, null, null);
 	output.write(initialMessage.getBytes());
 	output.flush();
 
-	File[] partitionedFiles = this.serverFileManager.filterFilesByPrefix("PartitionedKVServerStoreFile_");
+	File[] partitionedFiles = this.serverFileManager.getPartitionedFiles();
+	this.sendStoreFiles(serverChannel, ServerMessage.StatusType.SEND_KV, partitionedFiles);
 
-	ObjectOutputStream oos = new ObjectOutputStream(output);
-
-	for (File file: partitionedFiles) {
-	    ServerConnection.sendMessage(oos, ServerMessage.StatusType.SEND_KV, this.serverFileManager.fileTofileContentsMatrix(file), null);
-	}
+	File[] replica1Files = this.serverFileManager.getStoreFiles("Replica1KVServerStoreFile_");
+	this.sendStoreFiles(serverChannel, ServerMessage.StatusType.SEND_REPLICA_KV_1, replica1Files);
 
-	File[] replica1Files = this.serverFileManager.filterFilesByPrefix("Replica1KVServerStoreFile_");
-
-	for (File file: replica1Files) {
-	    ServerConnection.sendMessage(oos, ServerMessage.StatusType.SEND_REPLICA_KV_1, this.serverFileManager.fileTofileContentsMatrix(file), null);
-	}
-
-	File[] replica2Files = this.serverFileManager.filterFilesByPrefix("Replica2KVServerStoreFile_");
-
-	for (File file: replica2Files) {
-	    ServerConnection.sendMessage(oos, ServerMessage.StatusType.SEND_REPLICA_KV_2, this.serverFileManager.fileTofileContentsMatrix(file), null);
-	}
+	File[] replica2Files = this.serverFileManager.getStoreFiles("Replica2KVServerStoreFile_");
+	this.sendStoreFiles(serverChannel, ServerMessage.StatusType.SEND_REPLICA_KV_2, replica2Files);
 
 	var newSubscriptions = this.partitionSubscriptionsForNewServer(address, port);
-	ServerConnection.sendMessage(oos, ServerMessage.StatusType.SEND_SUBSCRIPTIONS, null, newSubscriptions);
+	ServerConnection.sendMessage(serverChannel, ServerMessage.StatusType.SEND_SUBSCRIPTIONS, newSubscriptions);
 
-	ServerConnection.sendMessage(oos, ServerMessage.StatusType.SERVER_INIT_FIN, null, null);
+	ServerConnection.sendMessage(serverChannel, ServerMessage.StatusType.SERVER_INIT_FIN, null);
 
 	serverSocket.shutdownOutput();
 	serverSocket.close();
@@ -373,11 +759,37 @@ public class KVServer extends Thread implements IKVServer {
 
     }
 
-    public void sendFilesToReplicaServer(ServerMessage.StatusType status, String address, int port) throws Exception {
+    /**
+     * @param storeFiles snapshot of the primary store files, oldest first
+     * @param sequence WAL sequence number the snapshot holds every write up
+     *           to
+     */
+    public void sendFilesToReplicaServer(ServerMessage.StatusType status, String address, int port, File[] storeFiles, long sequence) throws Exception {
 
 	logger.info(String.format("Sending files to replica server <%s,%d>", address, port));
 	
-	Socket serverSocket = new Socket(address, port);
+	SocketChannel serverChannel = this.openReplicationChannel(address, port);
+
+	if (serverChannel == null) {
+	    return;
+	}
+
+	this.sendReplicaCopy(serverChannel, status, storeFiles, sequence);
+
+	serverChannel.socket().shutdownOutput();
+	serverChannel.close();
+
+    }
+
+    /**
+     * Connects to a replica and agrees on the topology with it.
+     * @return the connection, or null if the replica refused it because its
+     *         topology differs
+     */
+    SocketChannel openReplicationChannel(String address, int port) throws Exception {
+
+	SocketChannel serverChannel = SocketChannel.open(new InetSocketAddress(address, port));
+	Socket serverSocket = serverChannel.socket();
 	InputStream input = serverSocket.getInputStream();
 	OutputStream output = serverSocket.getOutputStream();
 
@@ -385,86 +797,276 @@ public class KVServer extends Thread implements IKVServer {
 	output.write(initialMessage.getBytes());
 	output.flush();
 
-	File[] storeFiles = this.serverFileManager.filterFilesByPrefix("KVServerStoreFile_");
+	// The replica sends nothing after its reply until it is sent the store
+	// files, so nothing is lost by reading it in bulk.
+	ProtocolMessage reply = Connection.receiveMessage(new FrameReader(input, Connection.MAX_FRAME_SIZE));
 
-	ObjectOutputStream oos = new ObjectOutputStream(output);
+	if (reply.getStatus() != StatusType.REPLICATE_KV_HANDSHAKE_ACK) {
+	    serverChannel.close();
+	    return null;
+	}
 
-	ProtocolMessage reply = Connection.receiveMessage(input);
+	return serverChannel;
+    }
 
-	if (reply.getStatus() == StatusType.REPLICATE_KV_HANDSHAKE_ACK) {
+    /**
+     * Sends a snapshot of the primary store files and the subscriptions to
+     * a replica, which then replaces everything it held as this replica
+     * with them, and waits for it to acknowledge the copy.
+     * @param sequence WAL sequence number the store files hold every write
+     *           up to
+     */
+    private void sendReplicaCopy(SocketChannel serverChannel, ServerMessage.StatusType status, File[] storeFiles, long sequence) throws Exception {
 
-	    for (File file: storeFiles) {
-		ServerConnection.sendMessage(oos, status, this.serverFileManager.fileTofileContentsMatrix(file), null);
-	    }
+	this.sendStoreFiles(serverChannel, status, storeFiles);
 
-	    ServerConnection.sendMessage(oos, ServerMessage.StatusType.REPLICATE_SUBSCRIPTIONS, null, new TreeMap<String, List<ClientSubscriptionInfo>>(this.subs));
+	this.sendReplicaSubscriptions(serverChannel);
 
-	    if (status == ServerMessage.StatusType.REPLICATE_KV_1) {
-		ServerConnection.sendMessage(oos, ServerMessage.StatusType.REPLICATE_KV_1_FIN, null, null);
-	    } else {
-		ServerConnection.sendMessage(oos, ServerMessage.StatusType.REPLICATE_KV_2_FIN, null, null);
+	int replicaNumber = status == ServerMessage.StatusType.REPLICATE_KV_1 ? 1 : 2;
+
+	if (replicaNumber == 1) {
+	    ServerConnection.sendMessage(serverChannel, ServerMessage.StatusType.REPLICATE_KV_1_FIN, null, sequence);
+	} else {
+	    ServerConnection.sendMessage(serverChannel, ServerMessage.StatusType.REPLICATE_KV_2_FIN, null, sequence);
+	}
+
+	ServerMessage acknowledgement = ServerConnection.receiveMessage(serverChannel);
+	this.replicationLag.acknowledge(replicaNumber, acknowledgement.getSequence());
+    }
+
+    void sendReplicaSubscriptions(SocketChannel serverChannel) throws Exception {
+	ServerConnection.sendMessage(serverChannel, ServerMessage.StatusType.REPLICATE_SUBSCRIPTIONS, new TreeMap<String, List<ClientSubscriptionInfo>>(this.subs));
+    }
+
+    /**
+     * Brings a replica up to date before WAL records are shipped to it:
+     * flushes the memtables and sends a snapshot of the primary store
+     * files.
+     * @return the WAL sequence number the files sent are complete up to;
+     *         every later write still has to be shipped
+     */
+    long sendReplicaSnapshot(SocketChannel serverChannel, ServerMessage.StatusType status) throws Exception {
+
+	long sequence = this.serverFileManager.getLastWALSequence();
+
+	this.flushMemtable();
+
+	File[] snapshot = this.snapshotStoreFiles();
+
+	try {
+	    this.sendReplicaCopy(serverChannel, status, snapshot, sequence);
+	} finally {
+	    this.serverFileManager.deleteSnapshot(snapshot);
+	}
+
+	return sequence;
+    }
+
+    /**
+     * Applies a batch of WAL records shipped by the primary this server is
+     * replicaNumber'th replica of, flushing them to replica store files
+     * once there are as many as fit in a memtable.
+     * @return the WAL sequence number of the primary this server now holds
+     *         every write up to as replica
+     */
+    long applyReplicatedRecords(int replicaNumber, byte[] records) throws Exception {
+
+	synchronized (this.replicaLock) {
+
+	    Memtable replicaMemtable = this.replicaMemtables[replicaNumber - 1];
+
+	    long sequence = WriteAheadLog.readShippedRecords(new ByteArrayInputStream(records), records.length, replicaMemtable::put);
+	    this.replicaSequences[replicaNumber - 1] = Math.max(this.replicaSequences[replicaNumber - 1], sequence);
+
+	    if (replicaMemtable.size() >= this.cacheSize) {
+		this.flushReplicaMemtable(replicaNumber);
 	    }
-	
+
+	    return this.replicaSequences[replicaNumber - 1];
 	}
+    }
 
-	serverSocket.shutdownOutput();
-	serverSocket.close();
+    /**
+     * Replaces everything held as a replica with the full copy just
+     * received, including the writes streamed since the last one.
+     * @param sequence WAL sequence number of the primary the copy holds
+     *           every write up to, or -1 if not known
+     */
+    void installReplicaCopy(ServerMessage.StatusType status, long sequence) {
+
+	int replicaNumber = status == ServerMessage.StatusType.REPLICATE_KV_1_FIN ? 1 : 2;
+
+	synchronized (this.replicaLock) {
+	    this.serverFileManager.clearOldReplicatedStoreFiles(status);
+	    this.replicaMemtables[replicaNumber - 1].clear();
+	    this.replicaSequences[replicaNumber - 1] = Math.max(sequence, 0);
+	}
+    }
+
+    private void flushReplicaMemtable(int replicaNumber) throws Exception {
+
+	Memtable replicaMemtable = this.replicaMemtables[replicaNumber - 1];
 
+	this.serverFileManager.dumpReplicaToStoreFile(replicaMemtable.getEntries(), "Replica" + replicaNumber + "KVServerStoreFile_", this.replicaSequences[replicaNumber - 1]);
+	replicaMemtable.clear();
     }
 
-    public synchronized void replicate() {
+    /**
+     * Moves the writes streamed to this server as a replica to replica store
+     * files, before those are recovered from or handed to another server.
+     */
+    private void flushReplicaMemtables() throws Exception {
+	synchronized (this.replicaLock) {
+	    this.flushReplicaMemtable(1);
+	    this.flushReplicaMemtable(2);
+	}
+    }
 
-	var serverRingPosition = this.hashIP(this.getHostname(), this.getPort());
-	var serverKeyRange = this.metadata.get(serverRingPosition);
+    /**
+     * Streams store files to another server, each as a message followed by
+     * the file itself.
+     */
+    private void sendStoreFiles(SocketChannel serverChannel, ServerMessage.StatusType status, File[] files) throws Exception {
 
-	var firstReplica = this.metadata.higherEntry(serverRingPosition);
+	for (File file: files) {
 
-	if (firstReplica == null) {
-	    firstReplica = this.metadata.firstEntry();
+	    File sent;
+
+	    try {
+		sent = this.serverFileManager.exportForTransfer(file);
+	    } catch (IOException ioe) {
+		logger.error("Failed to prepare " + file.getName() + " for sending: " + ioe.getMessage());
+		continue;
+	    }
+
+	    try {
+		ServerConnection.sendStoreFile(serverChannel, status, sent);
+	    } catch (NoSuchFileException nsfe) {
+		logger.error("Skipping " + file.getName() + ", which was deleted before it could be sent");
+	    } finally {
+		if (sent != file) {
+		    sent.delete();
+		}
+	    }
+	}
+    }
+
+    /**
+     * @return the key range of the replicaNumber'th server after this one on
+     *         the ring, or null if there are too few servers for it to be
+     *         another server
+     */
+    KeyRange getReplicaKeyRange(int replicaNumber) {
+
+	var metadata = this.metadata;
+	var ringPosition = this.hashIP(this.getHostname(), this.getPort());
+	var serverKeyRange = metadata.get(ringPosition);
+
+	if (serverKeyRange == null) {
+	    return null;
 	}
 
-	var firstReplicaKeyRange = firstReplica.getValue();
+	KeyRange replicaKeyRange = null;
+
+	for (int i = 0; i < replicaNumber; i++) {
+
+	    var replica = metadata.higherEntry(ringPosition);
+
+	    if (replica == null) {
+		replica = metadata.firstEntry();
+	    }
+
+	    if (serverKeyRange.equals(replica.getValue())) {
+		return null;
+	    }
+
+	    ringPosition = replica.getKey();
+	    replicaKeyRange = replica.getValue();
+	}
+
+	return replicaKeyRange;
+    }
+
+    /**
+     * Sends every replica a full copy of the primary store files. The
+     * memtable is flushed once and the store files are pinned as a single
+     * snapshot, which is then sent to all replicas at the same time;
+     * neither writes nor compaction wait for the transfers. Synchronized
+     * only so a replication tick and the final replication on shutdown
+     * never overlap.
+     */
+    public synchronized void replicate() {
+
+	var replicaKeyRanges = new ArrayList<KeyRange>();
 
-	if (serverKeyRange.equals(firstReplicaKeyRange)) {
+	for (int replicaNumber = 1; replicaNumber <= 2; replicaNumber++) {
+	    KeyRange replicaKeyRange = this.getReplicaKeyRange(replicaNumber);
+	    if (replicaKeyRange == null) {
+		this.replicationLag.forget(replicaNumber);
+	    } else {
+		replicaKeyRanges.add(replicaKeyRange);
+	    }
+	}
+
+	if (replicaKeyRanges.isEmpty()) {
 	    return;
 	}
 
+	long sequence;
+	File[] snapshot;
+
 	try {
-	    synchronized (this.memtableLock) {
-		this.serverFileManager.dumpCacheToStoreFile();
-		this.serverFileManager.compactStoreFiles();
-		this.serverFileManager.clearOldStoreFiles();
-	    }
-	    this.sendFilesToReplicaServer(ServerMessage.StatusType.REPLICATE_KV_1, firstReplicaKeyRange.getAddress(), firstReplicaKeyRange.getPort());
+	    sequence = this.serverFileManager.getLastWALSequence();
+	    this.flushMemtable();
+	    snapshot = this.snapshotStoreFiles();
 	} catch (Exception e) {
-	    logger.warn("Failed to complete replication on first replica: " + e.getMessage());
+	    logger.warn("Failed to take a snapshot of the store files to replicate: " + e.getMessage());
+	    return;
 	}
 
-	var secondReplica = metadata.higherEntry(firstReplicaKeyRange.getRangeFrom());
+	var transfers = new ArrayList<Thread>();
 
-	if (secondReplica == null) {
-	    secondReplica = metadata.firstEntry();
-	}
+	for (int i = 0; i < replicaKeyRanges.size(); i++) {
 
-	var secondReplicaKeyRange = secondReplica.getValue();
+	    int replicaNumber = i + 1;
+	    KeyRange replicaKeyRange = replicaKeyRanges.get(i);
+	    var status = replicaNumber == 1 ? ServerMessage.StatusType.REPLICATE_KV_1 : ServerMessage.StatusType.REPLICATE_KV_2;
 
-	if (serverKeyRange.equals(secondReplicaKeyRange)) {
-	    return;
+	    var transfer = new Thread(() -> {
+		try {
+		    this.sendFilesToReplicaServer(status, replicaKeyRange.getAddress(), replicaKeyRange.getPort(), snapshot, sequence);
+		} catch (Exception e) {
+		    logger.warn(String.format("Failed to complete replication on replica %d, which is %s: %s", replicaNumber, this.describeReplicationLag(replicaNumber), e.getMessage()));
+		}
+	    }, "Replica " + replicaNumber + " Transfer");
+
+	    transfer.start();
+	    transfers.add(transfer);
 	}
 
 	try {
-	    synchronized (this.memtableLock) {
-		this.serverFileManager.dumpCacheToStoreFile();
-		this.serverFileManager.compactStoreFiles();
-		this.serverFileManager.clearOldStoreFiles();
+	    for (Thread transfer: transfers) {
+		transfer.join();
 	    }
-	    this.sendFilesToReplicaServer(ServerMessage.StatusType.REPLICATE_KV_2, secondReplicaKeyRange.getAddress(), secondReplicaKeyRange.getPort());
-	} catch (Exception e) {
-	    logger.warn("Failed to complete replication on second replica: " + e.getMessage());
+	} catch (InterruptedException ie) {
+	    logger.warn("Interrupted while waiting for replication to finish");
+	    return;
+	} finally {
+	    this.serverFileManager.deleteSnapshot(snapshot);
 	}
 
     }
 
+    /**
+     * Pins the primary store files for sending to other servers, holding
+     * off compaction only while they are linked.
+     */
+    private File[] snapshotStoreFiles() throws IOException {
+	synchronized (this.compactionLock) {
+	    return this.serverFileManager.snapshotStoreFiles();
+	}
+    }
+
     public void recoverIfNecessary(ECSMessage message) throws Exception {
 	
 	String address = message.getAddress();
@@ -489,7 +1091,13 @@ public class KVServer extends Thread implements IKVServer {
 	    return;
 	}
 
-	this.serverFileManager.recover(address, port, updatedMetadata, serverRingPosition);
+	this.flushReplicaMemtables();
+
+	synchronized (this.compactionLock) {
+	    this.serverFileManager.recover(address, port, updatedMetadata, serverRingPosition);
+	}
+
+	this.invalidateRowCache();
 
 	var serverKeyRange = this.metadata.get(serverRingPosition);
 
@@ -579,13 +1187,41 @@ public class KVServer extends Thread implements IKVServer {
 
     }
 
+    /**
+     * Starts replicating: a full copy every replicationDelay, or streaming
+     * writes to the replicas under WAL replication.
+     */
     public void startReplicationTimer() {
+
+	if (this.replication == StorageOptions.Replication.WAL) {
+	    for (ReplicaShipper replicaShipper: this.replicaShippers) {
+		replicaShipper.start();
+	    }
+	    return;
+	}
+
 	KVServerReplicationTask replicationTask = new KVServerReplicationTask(this);
 	this.replicationTimer.schedule(replicationTask, 1000L, this.replicationDelay);
     }
 
     public void stopReplicationTimer() {
+
 	this.replicationTimer.cancel();
+
+	for (ReplicaShipper replicaShipper: this.replicaShippers) {
+	    replicaShipper.shutdown();
+	}
+    }
+
+    /**
+     * Sends the replicas a full copy before any further streamed writes,
+     * since a topology change may have changed which servers they are and
+     * which keys this server holds.
+     */
+    public void resyncReplicas() {
+	for (ReplicaShipper replicaShipper: this.replicaShippers) {
+	    replicaShipper.requestCopy();
+	}
     }
 
     public void sendShutdownMessage() {
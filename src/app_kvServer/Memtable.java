@@ -0,0 +1,66 @@
+package app_kvServer;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Sorted in-memory table of the most recent writes. Backed by a skip list so
+ * any number of threads can read and write it concurrently while it still
+ * iterates in key order when it is dumped to a store file. The number of
+ * keys is tracked separately because ConcurrentSkipListMap.size() walks the
+ * whole list. A deleted key maps to ServerFileManager.TOMBSTONE, so the
+ * delete shadows older values in store files until it is compacted away.
+ */
+public class Memtable {
+
+    private final ConcurrentSkipListMap<String, Optional<String>> entries;
+    private final AtomicInteger size;
+
+    public Memtable() {
+	this.entries = new ConcurrentSkipListMap<String, Optional<String>>();
+	this.size = new AtomicInteger(0);
+    }
+
+    public Memtable(SortedMap<String, Optional<String>> initialEntries) {
+	this.entries = new ConcurrentSkipListMap<String, Optional<String>>(initialEntries);
+	this.size = new AtomicInteger(this.entries.size());
+    }
+
+    /**
+     * @return the value of key, ServerFileManager.TOMBSTONE if it was
+     *         deleted, or null if this memtable does not hold it
+     */
+    public Optional<String> get(String key) {
+	return this.entries.get(key);
+    }
+
+    public Optional<String> put(String key, Optional<String> value) {
+
+	Optional<String> previousValue = this.entries.put(key, value);
+
+	if (previousValue == null) {
+	    this.size.incrementAndGet();
+	}
+
+	return previousValue;
+    }
+
+    public int size() {
+	return this.size.get();
+    }
+
+    public boolean isEmpty() {
+	return this.size.get() == 0;
+    }
+
+    public void clear() {
+	this.entries.clear();
+	this.size.set(0);
+    }
+
+    public ConcurrentNavigableMap<String, Optional<String>> getEntries() {
+	return this.entries;
+    }
+
+}
@@ -0,0 +1,72 @@
+package app_kvServer;
+
+import org.apache.log4j.Logger;
+
+public class MemtableFlusher extends Thread {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private static final long RETRY_DELAY = 1000L;
+
+    private KVServer kvServer;
+
+    private volatile boolean running;
+
+    public MemtableFlusher(KVServer kvServer) {
+	super("Memtable Flusher");
+	this.kvServer = kvServer;
+	this.running = true;
+    }
+
+    @Override
+    public void run() {
+
+	while (this.running) {
+
+	    try {
+
+		Memtable immutableMemtable = this.kvServer.awaitImmutableMemtable();
+
+		if (immutableMemtable == null) {
+		    continue;
+		}
+
+		this.kvServer.flushImmutableMemtable(immutableMemtable);
+
+	    } catch (InterruptedException ie) {
+		logger.info("Memtable flusher interrupted: " + ie.getMessage());
+		return;
+	    } catch (Exception e) {
+		logger.error("Failed to flush memtable, retrying: " + e.getMessage());
+		try {
+		    Thread.sleep(RETRY_DELAY);
+		} catch (InterruptedException ie) {
+		    return;
+		}
+	    }
+
+	}
+
+    }
+
+    public boolean isRunning() {
+	return this.running;
+    }
+
+    /**
+     * Stops the flusher once any flush in progress has finished.
+     */
+    public void shutdown() {
+
+	this.running = false;
+
+	this.kvServer.wakeMemtableFlusher();
+
+	try {
+	    this.join();
+	} catch (InterruptedException ie) {
+	    logger.warn("Interrupted while waiting for memtable flusher to stop");
+	}
+    }
+
+}
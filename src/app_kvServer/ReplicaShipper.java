@@ -0,0 +1,270 @@
+package app_kvServer;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import org.apache.log4j.Logger;
+
+import shared.KeyRange;
+import shared.messages.ServerMessage;
+
+/**
+ * Streams the writes of a primary to one of its replicas. The WAL record
+ * of every write is queued once it is durable and sent in batches over a
+ * connection that stays open, so replication traffic follows the write
+ * rate instead of the size of the data set. The store files are only sent
+ * in full to bring the replica up to date: when the connection is first
+ * made or has failed, after the topology changed, and when the replica
+ * has fallen so far behind that its queue overflowed. Queued records up to
+ * the WAL sequence number the copy was taken at are then skipped. Records
+ * are only shipped once every earlier one has been (see ReplicationQueue),
+ * so the replica applies the writes in sequence order without gaps, and a
+ * record that never turns up is made good with a full copy. The replica
+ * acknowledges every batch with the highest
+ * sequence number it has applied before the next batch is sent, which
+ * keeps ReplicationLag up to date and lets writes pile up into larger
+ * batches while the replica is busy. The subscriptions are resent whenever
+ * the connection has been idle for the replication delay, which also
+ * notices a replica that has gone away.
+ */
+public class ReplicaShipper extends Thread {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private static final int MAX_QUEUED_RECORDS = 65536;
+    private static final long MAX_BATCH_BYTES = 1024L * 1024;
+    private static final long RETRY_DELAY = 1000L;
+
+    private KVServer kvServer;
+    private int replicaNumber;
+    private long idleDelay;
+
+    private ReplicationQueue queue;
+    private boolean copyRequested;
+    private boolean hasReplica;
+    private volatile boolean running;
+
+    private SocketChannel channel;
+
+    /**
+     * @param replicaNumber 1 to ship to the server after this one on the
+     *           ring, 2 to ship to the one after that
+     * @param idleDelay milliseconds without writes after which the
+     *           subscriptions are resent
+     */
+    public ReplicaShipper(KVServer kvServer, int replicaNumber, long idleDelay) {
+	super("Replica " + replicaNumber + " Shipper");
+	this.kvServer = kvServer;
+	this.replicaNumber = replicaNumber;
+	this.idleDelay = idleDelay;
+	this.queue = new ReplicationQueue(0);
+	this.copyRequested = true;
+	this.hasReplica = true;
+	this.running = true;
+	this.channel = null;
+    }
+
+    @Override
+    public void run() {
+
+	while (this.running) {
+
+	    try {
+
+		if (this.takeCopyRequest()) {
+		    this.sendCopy();
+		    continue;
+		}
+
+		List<ByteBuffer> batch = this.awaitBatch();
+
+		if (batch == null) {
+		    this.sendSubscriptions();
+		} else if (!batch.isEmpty()) {
+		    this.sendBatch(batch);
+		}
+
+	    } catch (InterruptedException ie) {
+		logger.info("Replica shipper interrupted: " + ie.getMessage());
+		break;
+	    } catch (Exception e) {
+		logger.warn(String.format("Failed to ship writes to replica %d, retrying with a full copy: %s", this.replicaNumber, e.getMessage()));
+		this.closeChannel();
+		this.requestCopy();
+		try {
+		    Thread.sleep(RETRY_DELAY);
+		} catch (InterruptedException ie) {
+		    break;
+		}
+	    }
+
+	}
+
+	this.closeChannel();
+
+    }
+
+    /**
+     * Queues the WAL record of a write for the replica. If the replica has
+     * fallen too far behind, the queue is dropped and the replica is sent a
+     * full copy instead.
+     */
+    public synchronized void offer(ByteBuffer record) {
+
+	if (!this.running || (!this.hasReplica && !this.copyRequested)) {
+	    return;
+	}
+
+	if (this.queue.size() >= MAX_QUEUED_RECORDS) {
+	    logger.warn(String.format("Replica %d is %d writes behind, sending it a full copy instead", this.replicaNumber, this.queue.size()));
+	    this.queue.clear();
+	    this.copyRequested = true;
+	}
+
+	this.queue.add(record);
+	this.notifyAll();
+    }
+
+    /**
+     * Makes the shipper reconnect and send a full copy before any further
+     * writes, e.g. because the topology, and so the replica, changed.
+     */
+    public synchronized void requestCopy() {
+	this.copyRequested = true;
+	this.notifyAll();
+    }
+
+    private synchronized boolean takeCopyRequest() {
+	boolean copyRequested = this.copyRequested;
+	this.copyRequested = false;
+	return copyRequested;
+    }
+
+    /**
+     * Blocks until the next write in sequence can be shipped, a copy is
+     * requested or the idle delay has passed. A write missing for the whole
+     * idle delay, whose writer failed after taking its sequence number,
+     * turns into a request for a full copy.
+     * @return the next batch of records in sequence order, empty if there is
+     *         nothing to send right now, or null if the connection is idle
+     */
+    private synchronized List<ByteBuffer> awaitBatch() throws InterruptedException {
+
+	long deadline = System.currentTimeMillis() + this.idleDelay;
+	long remaining = this.idleDelay;
+
+	while (!this.queue.hasNext() && !this.copyRequested && this.running && remaining > 0) {
+	    this.wait(remaining);
+	    remaining = deadline - System.currentTimeMillis();
+	}
+
+	if (this.copyRequested || !this.running) {
+	    return List.of();
+	}
+
+	if (this.queue.isEmpty()) {
+	    return null;
+	}
+
+	if (!this.queue.hasNext()) {
+	    logger.warn(String.format("Write %d never reached replica %d's queue, sending it a full copy instead", this.queue.getShippedSequence() + 1, this.replicaNumber));
+	    this.queue.clear();
+	    this.copyRequested = true;
+	    return List.of();
+	}
+
+	return this.queue.poll(MAX_BATCH_BYTES);
+    }
+
+    /**
+     * Connects to the replica and sends it every primary store file, or
+     * drops the queue if there are too few servers to have this replica.
+     */
+    private void sendCopy() throws Exception {
+
+	this.closeChannel();
+
+	KeyRange replicaKeyRange = this.kvServer.getReplicaKeyRange(this.replicaNumber);
+
+	synchronized (this) {
+	    this.hasReplica = replicaKeyRange != null;
+	    if (!this.hasReplica) {
+		this.queue.clear();
+		this.kvServer.getReplicationLag().forget(this.replicaNumber);
+		return;
+	    }
+	}
+
+	SocketChannel channel = this.kvServer.openReplicationChannel(replicaKeyRange.getAddress(), replicaKeyRange.getPort());
+
+	if (channel == null) {
+	    throw new IOException("Replica refused the replication handshake");
+	}
+
+	this.channel = channel;
+
+	ServerMessage.StatusType status = this.replicaNumber == 1 ? ServerMessage.StatusType.REPLICATE_KV_1 : ServerMessage.StatusType.REPLICATE_KV_2;
+	long sequence = this.kvServer.sendReplicaSnapshot(channel, status);
+
+	synchronized (this) {
+	    this.queue.skipTo(sequence);
+	}
+
+	logger.info(String.format("Sent replica %d a full copy up to sequence %d", this.replicaNumber, sequence));
+    }
+
+    private void sendBatch(List<ByteBuffer> batch) throws Exception {
+
+	if (this.channel == null) {
+	    return;
+	}
+
+	ServerMessage.StatusType status = this.replicaNumber == 1 ? ServerMessage.StatusType.REPLICATE_WAL_1 : ServerMessage.StatusType.REPLICATE_WAL_2;
+	ServerConnection.sendRecords(this.channel, status, batch);
+
+	ServerMessage acknowledgement = ServerConnection.receiveMessage(this.channel);
+	this.kvServer.getReplicationLag().acknowledge(this.replicaNumber, acknowledgement.getSequence());
+    }
+
+    private void sendSubscriptions() throws Exception {
+	if (this.channel != null) {
+	    this.kvServer.sendReplicaSubscriptions(this.channel);
+	    logger.debug(String.format("Replica %d is %s", this.replicaNumber, this.kvServer.describeReplicationLag(this.replicaNumber)));
+	}
+    }
+
+    private void closeChannel() {
+
+	if (this.channel == null) {
+	    return;
+	}
+
+	try {
+	    this.channel.close();
+	} catch (IOException ioe) {
+	    logger.warn("Failed to close replication connection: " + ioe.getMessage());
+	}
+
+	this.channel = null;
+    }
+
+    /**
+     * Stops the shipper once the batch being sent, if any, is out.
+     */
+    public void shutdown() {
+
+	synchronized (this) {
+	    this.running = false;
+	    this.notifyAll();
+	}
+
+	try {
+	    this.join();
+	} catch (InterruptedException ie) {
+	    logger.warn("Interrupted while waiting for replica shipper to stop");
+	}
+    }
+
+}
@@ -0,0 +1,133 @@
+package app_kvServer;
+
+import java.util.*;
+
+/**
+ * Tracks how far each replica trails this server. Writes are identified by
+ * their WAL sequence number and every replica acknowledges the highest one
+ * it has applied; its lag is the number of writes after that and how long
+ * ago the first of them was made. Write times are only sampled once per
+ * millisecond, so the history kept is bounded by the lag rather than by the
+ * write rate. Writes made before the server started are taken to be
+ * replicated already, since the replicas are sent a full copy when
+ * replication starts anyway.
+ */
+public class ReplicationLag {
+
+    private static final int MAX_SAMPLES = 65536;
+
+    private final ArrayDeque<long[]> samples;
+    private final long[] acknowledged;
+    private long lastSequence;
+
+    /**
+     * @param lastSequence WAL sequence number of the last write made before
+     *           the server started
+     */
+    public ReplicationLag(int numReplicas, long lastSequence) {
+	this.samples = new ArrayDeque<long[]>();
+	this.acknowledged = new long[numReplicas];
+	this.lastSequence = lastSequence;
+	Arrays.fill(this.acknowledged, lastSequence);
+    }
+
+    /**
+     * Records that the write with sequence was made just now.
+     */
+    public synchronized void recordWrite(long sequence) {
+
+	long now = System.currentTimeMillis();
+
+	this.lastSequence = Math.max(this.lastSequence, sequence);
+
+	long[] newest = this.samples.peekLast();
+
+	if (newest == null || newest[1] != now) {
+	    if (this.samples.size() >= MAX_SAMPLES) {
+		this.samples.pollFirst();
+	    }
+	    this.samples.addLast(new long[] {sequence, now});
+	}
+    }
+
+    /**
+     * Records that replica replicaNumber holds every write up to sequence,
+     * and nothing after it. May move backwards, when the replica was
+     * replaced by a server that has only been sent an older full copy.
+     */
+    public synchronized void acknowledge(int replicaNumber, long sequence) {
+	this.acknowledged[replicaNumber - 1] = sequence;
+	this.pruneSamples();
+    }
+
+    /**
+     * Records that there is no replica replicaNumber, because there are
+     * too few servers, so it cannot fall behind.
+     */
+    public synchronized void forget(int replicaNumber) {
+	this.acknowledged[replicaNumber - 1] = Long.MAX_VALUE;
+	this.pruneSamples();
+    }
+
+    private void pruneSamples() {
+
+	long oldestNeeded = Long.MAX_VALUE;
+
+	for (long sequence: this.acknowledged) {
+	    oldestNeeded = Math.min(oldestNeeded, sequence);
+	}
+
+	while (this.samples.size() > 1) {
+	    Iterator<long[]> iterator = this.samples.iterator();
+	    iterator.next();
+	    if (iterator.next()[0] - 1 > oldestNeeded) {
+		break;
+	    }
+	    this.samples.pollFirst();
+	}
+    }
+
+    /**
+     * @return the WAL sequence number of the newest write replica
+     *         replicaNumber acknowledged
+     */
+    public synchronized long getAcknowledgedSequence(int replicaNumber) {
+	return this.acknowledged[replicaNumber - 1];
+    }
+
+    /**
+     * @return the number of writes replica replicaNumber has not
+     *         acknowledged
+     */
+    public synchronized long getLagRecords(int replicaNumber) {
+	return Math.max(0, this.lastSequence - this.acknowledged[replicaNumber - 1]);
+    }
+
+    /**
+     * @return how many milliseconds ago the oldest write replica
+     *         replicaNumber has not acknowledged was made, or 0 if it is up
+     *         to date
+     */
+    public synchronized long getLagMillis(int replicaNumber) {
+
+	long acknowledged = this.acknowledged[replicaNumber - 1];
+
+	if (acknowledged >= this.lastSequence || this.samples.isEmpty()) {
+	    return 0;
+	}
+
+	long firstMissing = acknowledged + 1;
+
+	long madeAt = this.samples.peekFirst()[1];
+
+	for (long[] sample: this.samples) {
+	    if (sample[0] > firstMissing) {
+		break;
+	    }
+	    madeAt = sample[1];
+	}
+
+	return Math.max(0, System.currentTimeMillis() - madeAt);
+    }
+
+}
@@ -0,0 +1,99 @@
+package app_kvServer;
+
+import java.nio.*;
+import java.util.*;
+
+import app_kvServer.util.WriteAheadLog;
+
+/**
+ * WAL records waiting to be shipped to a replica, handed out strictly in
+ * sequence order. Writers add their record once it is durable, and writers
+ * committed in the same group do so in no particular order, so a record is
+ * only handed out once every record before it has been. The replica then
+ * always holds exactly the writes up to the last sequence number shipped to
+ * it. Records at or below that sequence number are dropped, since the
+ * replica already has them. Not thread safe.
+ */
+public class ReplicationQueue {
+
+    private final TreeMap<Long, ByteBuffer> records;
+    private long shippedSequence;
+
+    /**
+     * @param shippedSequence WAL sequence number of the last write the
+     *           replica is known to hold
+     */
+    public ReplicationQueue(long shippedSequence) {
+	this.records = new TreeMap<Long, ByteBuffer>();
+	this.shippedSequence = shippedSequence;
+    }
+
+    public void add(ByteBuffer record) {
+
+	long sequence = WriteAheadLog.getSequence(record);
+
+	if (sequence > this.shippedSequence) {
+	    this.records.put(sequence, record);
+	}
+    }
+
+    /**
+     * Records that the replica holds every write up to sequence, because it
+     * was sent a full copy taken then, and drops the records that copy
+     * covers.
+     */
+    public void skipTo(long sequence) {
+	this.shippedSequence = sequence;
+	this.records.headMap(sequence, true).clear();
+    }
+
+    /**
+     * @return the WAL sequence number of the last write handed out or
+     *         skipped to
+     */
+    public long getShippedSequence() {
+	return this.shippedSequence;
+    }
+
+    /**
+     * @return whether the record after the last one shipped is queued
+     */
+    public boolean hasNext() {
+	return !this.records.isEmpty() && this.records.firstKey() == this.shippedSequence + 1;
+    }
+
+    /**
+     * Hands out the run of consecutive records after the last one shipped,
+     * stopping at the first missing sequence number or once the batch holds
+     * maxBytes.
+     * @return the records in sequence order, empty if the next one is not
+     *         queued yet
+     */
+    public List<ByteBuffer> poll(long maxBytes) {
+
+	var batch = new ArrayList<ByteBuffer>();
+	long batchBytes = 0;
+
+	while (this.hasNext() && batchBytes < maxBytes) {
+	    ByteBuffer record = this.records.pollFirstEntry().getValue();
+	    batch.add(record);
+	    batchBytes += record.remaining();
+	    this.shippedSequence++;
+	}
+
+	return batch;
+    }
+
+    public int size() {
+	return this.records.size();
+    }
+
+    public boolean isEmpty() {
+	return this.records.isEmpty();
+    }
+
+    public void clear() {
+	this.records.clear();
+    }
+
+}
@@ -0,0 +1,479 @@
+package app_kvServer;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.apache.log4j.Logger;
+
+import client.ProtocolMessage;
+import shared.messages.KVMessage.StatusType;
+
+/**
+ * Serves client connections without a thread per connection. Every
+ * connection is registered with the Selector of one of a few I/O threads,
+ * which read requests into a buffer per connection, split them at CRLF, or
+ * by their length once the client switched to the binary protocol, and
+ * write the responses back. The requests themselves may block on the WAL
+ * and the store files, so they run on a pool of worker threads through the
+ * same Connection handlers as in the THREADS front end. A connection has at
+ * most one request on a worker, and the next one is only started once the
+ * response to the previous one is written, so responses stay in request
+ * order and a client that stops reading its responses stops being read
+ * from. An idle connection costs a small buffer and a selection key rather
+ * than a thread and its stack.
+ *
+ * SERVER_INIT and REPLICATE_KV_HANDSHAKE requests take the connection out
+ * of the selector and hand the socket, back in blocking mode, to a
+ * ServerConnection, together with whatever was already read after the
+ * request.
+ */
+public class SelectorFrontEnd {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private static final int BUFFER_SIZE = 4096;
+    private static final int MAX_FRAME_SIZE = Connection.MAX_FRAME_SIZE;
+    private static final int MAX_BUFFER_SIZE = MAX_FRAME_SIZE + 4;
+
+    private KVServer kvServer;
+    private IOThread[] ioThreads;
+    private ExecutorService workers;
+    private AtomicInteger nextIOThread;
+
+    public SelectorFrontEnd(KVServer kvServer, int ioThreads, int workerThreads) throws IOException {
+
+	this.kvServer = kvServer;
+
+	this.ioThreads = new IOThread[ioThreads];
+
+	for (int i = 0; i < ioThreads; i++) {
+	    this.ioThreads[i] = new IOThread(i + 1);
+	}
+
+	var workerCount = new AtomicInteger(0);
+
+	this.workers = Executors.newFixedThreadPool(workerThreads, runnable -> new Thread(runnable, "Client Worker " + workerCount.incrementAndGet()));
+	this.nextIOThread = new AtomicInteger(0);
+    }
+
+    public void start() {
+	for (IOThread ioThread: this.ioThreads) {
+	    ioThread.start();
+	}
+    }
+
+    /**
+     * Starts serving a newly accepted client connection on the next I/O
+     * thread in turn.
+     */
+    public void register(SocketChannel channel) throws IOException {
+
+	channel.configureBlocking(false);
+
+	IOThread ioThread = this.ioThreads[Math.floorMod(this.nextIOThread.getAndIncrement(), this.ioThreads.length)];
+	ioThread.post(() -> ioThread.register(channel));
+    }
+
+    /**
+     * Closes every client connection and stops the I/O and worker threads.
+     * Sockets already handed to a ServerConnection are left alone.
+     */
+    public void shutdown() {
+
+	for (IOThread ioThread: this.ioThreads) {
+	    ioThread.shutdown();
+	}
+
+	this.workers.shutdownNow();
+    }
+
+    private class IOThread extends Thread {
+
+	private Selector selector;
+	private ConcurrentLinkedQueue<Runnable> tasks;
+	private ArrayList<ClientChannel> handOffs;
+	private volatile boolean running;
+
+	IOThread(int number) throws IOException {
+	    super("Client I/O " + number);
+	    this.selector = Selector.open();
+	    this.tasks = new ConcurrentLinkedQueue<Runnable>();
+	    this.handOffs = new ArrayList<ClientChannel>();
+	    this.running = true;
+	}
+
+	@Override
+	public void run() {
+
+	    while (this.running) {
+
+		try {
+
+		    // A channel can only go back to blocking mode once the
+		    // selector has dropped its cancelled key.
+		    if (this.handOffs.isEmpty()) {
+			this.selector.select();
+		    } else {
+			this.selector.selectNow();
+			this.handOffs.forEach(ClientChannel::handOff);
+			this.handOffs.clear();
+		    }
+
+		    Runnable task;
+
+		    while ((task = this.tasks.poll()) != null) {
+			task.run();
+		    }
+
+		    Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+
+		    while (keys.hasNext()) {
+			SelectionKey key = keys.next();
+			keys.remove();
+			((ClientChannel) key.attachment()).handleReady();
+		    }
+
+		} catch (IOException ioe) {
+		    logger.error("Client I/O failure: " + ioe.getMessage());
+		}
+
+	    }
+
+	    for (SelectionKey key: this.selector.keys()) {
+		((ClientChannel) key.attachment()).close(null);
+	    }
+
+	    try {
+		this.selector.close();
+	    } catch (IOException ioe) {
+		logger.warn("Failed to close selector: " + ioe.getMessage());
+	    }
+
+	}
+
+	/**
+	 * Runs task on this thread before it next handles a ready channel.
+	 */
+	void post(Runnable task) {
+	    this.tasks.add(task);
+	    this.selector.wakeup();
+	}
+
+	void register(SocketChannel channel) {
+
+	    var client = new ClientChannel(this, channel);
+
+	    try {
+		client.key = channel.register(this.selector, SelectionKey.OP_READ, client);
+	    } catch (IOException ioe) {
+		client.close(ioe);
+	    }
+	}
+
+	void shutdown() {
+
+	    this.running = false;
+	    this.selector.wakeup();
+
+	    try {
+		this.join();
+	    } catch (InterruptedException ie) {
+		logger.warn("Interrupted while waiting for client I/O thread to stop");
+	    }
+	}
+
+    }
+
+    /**
+     * State of one client connection. Only touched by its I/O thread, apart
+     * from the Connection and its responses, which belong to the worker
+     * while a request is running.
+     */
+    private class ClientChannel {
+
+	private IOThread ioThread;
+	private SocketChannel channel;
+	private SelectionKey key;
+
+	private ByteBuffer input;
+	private int scanned;
+	private ArrayDeque<ByteBuffer> output;
+
+	private Connection connection;
+	private ByteArrayOutputStream responses;
+	private boolean busy;
+	private ProtocolMessage handOffRequest;
+
+	ClientChannel(IOThread ioThread, SocketChannel channel) {
+	    this.ioThread = ioThread;
+	    this.channel = channel;
+	    this.key = null;
+	    this.input = ByteBuffer.allocate(BUFFER_SIZE);
+	    this.scanned = 0;
+	    this.output = new ArrayDeque<ByteBuffer>();
+	    this.responses = new ByteArrayOutputStream();
+	    this.connection = new Connection(channel.socket(), kvServer, InputStream.nullInputStream(), this.responses);
+	    this.busy = false;
+	    this.handOffRequest = null;
+	}
+
+	void handleReady() {
+
+	    try {
+
+		if (this.key.isReadable()) {
+		    this.read();
+		}
+
+		this.service();
+
+	    } catch (Exception e) {
+		this.close(e);
+	    }
+	}
+
+	private void read() throws IOException {
+
+	    if (!this.input.hasRemaining()) {
+		this.resizeInput(Math.min(2 * this.input.capacity(), MAX_BUFFER_SIZE));
+	    }
+
+	    if (this.channel.read(this.input) < 0) {
+		throw new EOFException("EOF reached");
+	    }
+	}
+
+	/**
+	 * Writes what it can of the queued responses, starts the next
+	 * request if the connection is free, and selects what to wait for.
+	 */
+	private void service() throws Exception {
+
+	    while (!this.output.isEmpty()) {
+		ByteBuffer response = this.output.peek();
+		this.channel.write(response);
+		if (response.hasRemaining()) {
+		    break;
+		}
+		this.output.poll();
+	    }
+
+	    while (!this.busy && this.output.isEmpty() && this.handOffRequest == null) {
+
+		int frameLength = this.nextFrame();
+
+		if (frameLength < 0) {
+		    break;
+		}
+
+		this.dispatch(frameLength);
+	    }
+
+	    if (!this.key.isValid()) {
+		return;
+	    }
+
+	    int interestOps = 0;
+
+	    if (this.input.hasRemaining() || this.input.capacity() < MAX_BUFFER_SIZE) {
+		interestOps |= SelectionKey.OP_READ;
+	    }
+
+	    if (!this.output.isEmpty()) {
+		interestOps |= SelectionKey.OP_WRITE;
+	    }
+
+	    this.key.interestOps(interestOps);
+	}
+
+	/**
+	 * @return the length of the next request at the front of the input
+	 *         buffer, up to and including its CRLF, MAX_FRAME_SIZE for one
+	 *         that is too long, as a FrameReader would split it, or
+	 *         including its length for a binary request; -1 if no complete
+	 *         request was read yet
+	 */
+	private int nextFrame() throws IOException {
+
+	    byte[] buffer = this.input.array();
+	    int end = this.input.position();
+
+	    if (this.connection.isBinary()) {
+
+		if (end < 4) {
+		    return -1;
+		}
+
+		int length = this.input.getInt(0);
+
+		if (length < 0 || length > MAX_FRAME_SIZE) {
+		    throw new IOException("Error: Invalid message length " + length);
+		}
+
+		return end < 4 + length ? -1 : 4 + length;
+	    }
+
+	    for (int i = Math.max(this.scanned, 1); i < end; i++) {
+		if (buffer[i] == 10 && buffer[i - 1] == 13) {
+		    return i + 1;
+		}
+	    }
+
+	    if (end >= MAX_FRAME_SIZE) {
+		return MAX_FRAME_SIZE;
+	    }
+
+	    this.scanned = end;
+
+	    return -1;
+	}
+
+	private void discardFrame(int length) {
+
+	    this.input.flip();
+	    this.input.position(length);
+	    this.input.compact();
+	    this.scanned = 0;
+
+	    if (this.input.capacity() > BUFFER_SIZE && this.input.position() <= BUFFER_SIZE) {
+		this.resizeInput(BUFFER_SIZE);
+	    }
+	}
+
+	private void resizeInput(int capacity) {
+	    ByteBuffer resized = ByteBuffer.allocate(capacity);
+	    this.input.flip();
+	    resized.put(this.input);
+	    this.input = resized;
+	}
+
+	private void dispatch(int frameLength) throws Exception {
+
+	    ProtocolMessage request = null;
+
+	    try {
+		if (this.connection.isBinary()) {
+		    request = Connection.parseBinaryMessage(this.input.array(), 4, frameLength - 4);
+		} else {
+		    request = Connection.parseMessage(this.input.array(), 0, frameLength);
+		}
+	    } catch (IllegalArgumentException iae) {
+		this.connection.handleIllegalArgumentException(iae);
+		this.output.add(ByteBuffer.wrap(this.responses.toByteArray()));
+		this.responses.reset();
+		return;
+	    } finally {
+		this.discardFrame(frameLength);
+	    }
+
+	    if (request.getStatus() == StatusType.SERVER_INIT || request.getStatus() == StatusType.REPLICATE_KV_HANDSHAKE) {
+		this.handOffRequest = request;
+		this.key.cancel();
+		this.ioThread.handOffs.add(this);
+		return;
+	    }
+
+	    ProtocolMessage workerRequest = request;
+
+	    this.busy = true;
+	    workers.execute(() -> this.handle(workerRequest));
+	}
+
+	/**
+	 * Runs request on a worker thread and passes the response back to
+	 * the I/O thread.
+	 */
+	private void handle(ProtocolMessage request) {
+
+	    try {
+		this.connection.handleRequest(request);
+	    } catch (IllegalArgumentException iae) {
+		this.connection.handleIllegalArgumentException(iae);
+	    } catch (Exception e) {
+		this.connection.handleGeneralException(e);
+	    }
+
+	    byte[] response = this.responses.toByteArray();
+	    this.responses.reset();
+
+	    this.ioThread.post(() -> this.complete(response));
+	}
+
+	private void complete(byte[] response) {
+
+	    this.busy = false;
+
+	    if (!this.key.isValid()) {
+		return;
+	    }
+
+	    this.output.add(ByteBuffer.wrap(response));
+
+	    try {
+		this.service();
+	    } catch (Exception e) {
+		this.close(e);
+	    }
+	}
+
+	/**
+	 * Puts the socket back in blocking mode and lets a worker run the
+	 * request that hands it to a ServerConnection.
+	 */
+	void handOff() {
+
+	    try {
+
+		this.channel.configureBlocking(true);
+
+		Socket socket = this.channel.socket();
+		byte[] readAhead = Arrays.copyOf(this.input.array(), this.input.position());
+		InputStream socketInput = new SequenceInputStream(new ByteArrayInputStream(readAhead), socket.getInputStream());
+
+		var handOffConnection = new Connection(socket, kvServer, socketInput, socket.getOutputStream());
+		ProtocolMessage request = this.handOffRequest;
+
+		workers.execute(() -> {
+		    try {
+			handOffConnection.handleRequest(request);
+		    } catch (Exception e) {
+			handOffConnection.handleGeneralException(e);
+		    }
+		});
+
+	    } catch (Exception e) {
+		this.close(e);
+	    }
+	}
+
+	/**
+	 * @param e why the connection is closed, or null if the front end
+	 *           is shutting down
+	 */
+	void close(Exception e) {
+
+	    if (e instanceof EOFException) {
+		logger.info("Client connection closed: " + e.toString());
+	    } else if (e != null) {
+		logger.info("Client connection failure: " + e.toString());
+	    }
+
+	    if (this.key != null) {
+		this.key.cancel();
+	    }
+
+	    try {
+		this.channel.close();
+	    } catch (IOException ioe) {
+		logger.error("Failed to gracefully close connection: " + ioe.toString());
+	    }
+	}
+
+    }
+
+}
@@ -2,6 +2,9 @@ package app_kvServer;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
 import org.apache.log4j.Logger;
@@ -18,14 +21,22 @@ public class ServerConnection extends Thread {
 
     private Socket socket;
 
-    private ObjectInputStream input;
-    private ObjectOutputStream output;
+    private ReadableByteChannel input;
+    private WritableByteChannel output;
 
     public ServerConnection(Socket socket, KVServer kvServer) throws Exception {
+	this(socket, socket.getInputStream(), kvServer);
+    }
+
+    /**
+     * @param input the socket's input, preceded by anything already read
+     *           from it after the request that handed it over
+     */
+    public ServerConnection(Socket socket, InputStream input, KVServer kvServer) throws Exception {
 	this.kvServer = kvServer;
 	this.socket = socket;
-	this.output = new ObjectOutputStream(this.socket.getOutputStream());
-	this.input = new ObjectInputStream(this.socket.getInputStream());
+	this.input = Channels.newChannel(input);
+	this.output = Channels.newChannel(this.socket.getOutputStream());
     }
 
     public void run() {
@@ -48,7 +59,8 @@ public class ServerConnection extends Thread {
 		    this.handleReplicateSubscriptionsMessage(request);
 		} else if (request.getStatus() == StatusType.REPLICATE_KV_1_FIN || request.getStatus() == StatusType.REPLICATE_KV_2_FIN) {
 		    this.handleReplicateKVFinMessage(request);
-		    return;
+		} else if (request.getStatus() == StatusType.REPLICATE_WAL_1 || request.getStatus() == StatusType.REPLICATE_WAL_2) {
+		    this.handleReplicateWALMessage(request);
 		} else if (request.getStatus() == StatusType.SERVER_INIT_FIN) {
 		    this.handleServerInitFinMessage();
 		    return;
@@ -66,11 +78,12 @@ public class ServerConnection extends Thread {
 
     }
 
-    public void handleSendKVMessage(ServerMessage request) {
-	this.kvServer.getServerFileManager().writeFileFromFileContents("KVServerStoreFile_", request.getFileContents());	
+    public void handleSendKVMessage(ServerMessage request) throws Exception {
+	this.kvServer.getServerFileManager().receiveStoreFile("KVServerStoreFile_", this.input, request.getFileLength());
+	this.kvServer.invalidateRowCache();
     }
 
-    public void handleReplicaKVMessage(ServerMessage request) {
+    public void handleReplicaKVMessage(ServerMessage request) throws Exception {
 
 	String prefix = null;
 	if (request.getStatus() == StatusType.SEND_REPLICA_KV_1) {
@@ -79,11 +92,11 @@ public class ServerConnection extends Thread {
 	    prefix = "Replica2KVServerStoreFile_";
 	}
 
-	this.kvServer.getServerFileManager().writeFileFromFileContents(prefix, request.getFileContents());	
+	this.kvServer.getServerFileManager().receiveStoreFile(prefix, this.input, request.getFileLength());
 
     }
 
-    public void handleReplicateRequestMessage(ServerMessage request) {
+    public void handleReplicateRequestMessage(ServerMessage request) throws Exception {
 
 	String prefix = null;
 	if (request.getStatus() == StatusType.REPLICATE_KV_1) {
@@ -92,12 +105,29 @@ public class ServerConnection extends Thread {
 	    prefix = "NewReplica2KVServerStoreFile_";
 	}
 
-	this.kvServer.getServerFileManager().writeFileFromFileContents(prefix, request.getFileContents());	
+	this.kvServer.getServerFileManager().receiveStoreFile(prefix, this.input, request.getFileLength());
 
     }
 
-    public void handleReplicateKVFinMessage(ServerMessage request) {
-	this.kvServer.getServerFileManager().clearOldReplicatedStoreFiles(request.getStatus());
+    public void handleReplicateKVFinMessage(ServerMessage request) throws Exception {
+
+	this.kvServer.installReplicaCopy(request.getStatus(), request.getSequence());
+
+	if (request.getSequence() >= 0) {
+	    sendMessage(this.output, StatusType.REPLICATE_ACK, null, request.getSequence());
+	}
+    }
+
+    public void handleReplicateWALMessage(ServerMessage request) throws Exception {
+
+	int replicaNumber = request.getStatus() == StatusType.REPLICATE_WAL_1 ? 1 : 2;
+
+	ByteBuffer records = ByteBuffer.allocate((int) request.getFileLength());
+	readFully(this.input, records);
+
+	long sequence = this.kvServer.applyReplicatedRecords(replicaNumber, records.array());
+
+	sendMessage(this.output, StatusType.REPLICATE_ACK, null, sequence);
     }
 
     public void handleSendSubscriptionsMessage(ServerMessage request) {
@@ -120,7 +150,6 @@ public class ServerConnection extends Thread {
 	logger.info("Client connection failure: " + e.toString());
 
 	try {
-	    this.output.close();
 	    this.input.close();
 	    this.socket.close();
 	} catch (IOException ioe) {
@@ -128,12 +157,24 @@ public class ServerConnection extends Thread {
 	}
     }
 
-    public static void sendMessage(ObjectOutputStream output, StatusType status, byte[][] fileContents, TreeMap<String, List<ClientSubscriptionInfo>> subscriptions) throws Exception {
+    /**
+     * Sends a message that carries no store file. Messages are framed as
+     *
+     *   int length | serialized ServerMessage | fileLength bytes of file
+     */
+    public static void sendMessage(WritableByteChannel output, StatusType status, TreeMap<String, List<ClientSubscriptionInfo>> subscriptions) throws Exception {
+	sendMessage(output, status, subscriptions, -1);
+    }
 
-	ServerMessage response = new ServerMessage(status, fileContents, subscriptions);
+    /**
+     * Sends a message that carries no store file but a WAL sequence number,
+     * for replication acknowledgements.
+     */
+    public static void sendMessage(WritableByteChannel output, StatusType status, TreeMap<String, List<ClientSubscriptionInfo>> subscriptions, long sequence) throws Exception {
 
-	output.writeObject(response);
-	output.flush();
+	ServerMessage response = new ServerMessage(status, -1, subscriptions, sequence);
+
+	writeFrameHeader(output, response);
 
 	logger.debug(String.format("Server sent response to server with status = %s", response.getStatus()));
 
@@ -141,13 +182,100 @@ public class ServerConnection extends Thread {
 
     }
 
-    public static ServerMessage receiveMessage(ObjectInputStream input) throws Exception {
+    /**
+     * Sends a store file, copying it from disk to output with transferTo so
+     * it is never read into memory, and without copying it through user
+     * space at all when output is a SocketChannel.
+     */
+    public static void sendStoreFile(WritableByteChannel output, StatusType status, File file) throws Exception {
+
+	try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+	    long length = fileChannel.size();
+
+	    writeFrameHeader(output, new ServerMessage(status, length, null));
+
+	    long position = 0;
+
+	    while (position < length) {
+		position += fileChannel.transferTo(position, length - position, output);
+	    }
+	}
+
+	logger.debug(String.format("Server sent %s to server with status = %s", file.getName(), status));
+
+    }
+
+    /**
+     * Sends a batch of WAL records, gathered straight from the buffers they
+     * were appended to the WAL from.
+     */
+    public static void sendRecords(GatheringByteChannel output, StatusType status, List<ByteBuffer> records) throws Exception {
 
-	ServerMessage request = (ServerMessage) input.readObject();
+	var batch = new ByteBuffer[records.size()];
+	long length = 0;
+
+	for (int i = 0; i < batch.length; i++) {
+	    batch[i] = records.get(i).duplicate();
+	    length += batch[i].remaining();
+	}
+
+	writeFrameHeader(output, new ServerMessage(status, length, null));
+
+	while (length > 0) {
+	    length -= output.write(batch);
+	}
+
+	logger.debug(String.format("Server sent %d WAL records to server with status = %s", batch.length, status));
+    }
+
+    private static void writeFrameHeader(WritableByteChannel output, ServerMessage message) throws IOException {
+
+	var serialized = new ByteArrayOutputStream();
+
+	try (var objectOutput = new ObjectOutputStream(serialized)) {
+	    objectOutput.writeObject(message);
+	}
+
+	ByteBuffer header = ByteBuffer.allocate(4 + serialized.size());
+	header.putInt(serialized.size());
+	header.put(serialized.toByteArray());
+	header.flip();
+
+	while (header.hasRemaining()) {
+	    output.write(header);
+	}
+    }
+
+    /**
+     * Reads the next message. If it carries a store file, the file's bytes
+     * are left on input for the caller to consume.
+     */
+    public static ServerMessage receiveMessage(ReadableByteChannel input) throws Exception {
+
+	ByteBuffer length = ByteBuffer.allocate(4);
+	readFully(input, length);
+
+	ByteBuffer serialized = ByteBuffer.allocate(length.getInt(0));
+	readFully(input, serialized);
+
+	ServerMessage request;
+
+	try (var objectInput = new ObjectInputStream(new ByteArrayInputStream(serialized.array()))) {
+	    request = (ServerMessage) objectInput.readObject();
+	}
 
 	logger.debug(String.format("Server received request from server with status = %s", request.getStatus()));
 
 	return request;
     }
 
+    private static void readFully(ReadableByteChannel input, ByteBuffer buffer) throws IOException {
+	while (buffer.hasRemaining()) {
+	    if (input.read(buffer) < 0) {
+		throw new EOFException("EOF reached");
+	    }
+	}
+    }
+
 }
@@ -0,0 +1,86 @@
+package app_kvServer;
+
+import org.apache.log4j.Logger;
+
+public class StoreFileCompactor extends Thread {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private static final long RETRY_DELAY = 1000L;
+
+    private KVServer kvServer;
+
+    private volatile boolean running;
+    private boolean compactionRequested;
+
+    public StoreFileCompactor(KVServer kvServer) {
+	super("Store File Compactor");
+	this.kvServer = kvServer;
+	this.running = true;
+	this.compactionRequested = false;
+    }
+
+    @Override
+    public void run() {
+
+	while (this.running) {
+
+	    try {
+
+		synchronized (this) {
+		    while (!this.compactionRequested && this.running) {
+			this.wait();
+		    }
+		    this.compactionRequested = false;
+		}
+
+		while (this.running && this.kvServer.compactStoreFilesStep()) {
+		}
+
+	    } catch (InterruptedException ie) {
+		logger.info("Store file compactor interrupted: " + ie.getMessage());
+		return;
+	    } catch (Exception e) {
+		logger.error("Failed to compact store files, retrying: " + e.getMessage());
+		this.requestCompaction();
+		try {
+		    Thread.sleep(RETRY_DELAY);
+		} catch (InterruptedException ie) {
+		    return;
+		}
+	    }
+
+	}
+
+    }
+
+    /**
+     * Asks the compactor to check whether any level needs compacting. Cheap
+     * to call after every flush; requests made while a compaction is running
+     * are coalesced into one more check.
+     */
+    public synchronized void requestCompaction() {
+	this.compactionRequested = true;
+	this.notifyAll();
+    }
+
+    /**
+     * Stops the compactor once the compaction step in progress, if any, has
+     * finished.
+     */
+    public void shutdown() {
+
+	this.running = false;
+
+	synchronized (this) {
+	    this.notifyAll();
+	}
+
+	try {
+	    this.join();
+	} catch (InterruptedException ie) {
+	    logger.warn("Interrupted while waiting for store file compactor to stop");
+	}
+    }
+
+}
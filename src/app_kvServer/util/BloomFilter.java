@@ -0,0 +1,119 @@
+package app_kvServer.util;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Bloom filter over the keys of a single store file, sized at BITS_PER_KEY
+ * bits per key. A negative answer from mightContain means the key is
+ * definitely not in the file, so the file does not need to be read at all.
+ */
+class BloomFilter {
+
+    static final int BITS_PER_KEY = 10;
+    static final int NUM_PROBES = 7;
+
+    private final long[] bits;
+    private final int numBits;
+    private final int numProbes;
+
+    private BloomFilter(long[] bits, int numProbes) {
+	this.bits = bits;
+	this.numBits = bits.length * 64;
+	this.numProbes = numProbes;
+    }
+
+    /**
+     * Builds a filter from the hashes of every key in a store file.
+     */
+    static BloomFilter fromHashes(long[] keyHashes, int count) {
+
+	int numWords = Math.max(1, (count * BITS_PER_KEY + 63) / 64);
+	var filter = new BloomFilter(new long[numWords], NUM_PROBES);
+
+	for (int i = 0; i < count; i++) {
+	    filter.add(keyHashes[i]);
+	}
+
+	return filter;
+    }
+
+    static BloomFilter readFrom(DataInputStream input) throws IOException {
+
+	int numProbes = input.readInt();
+	long[] bits = new long[input.readInt()];
+
+	for (int i = 0; i < bits.length; i++) {
+	    bits[i] = input.readLong();
+	}
+
+	return new BloomFilter(bits, numProbes);
+    }
+
+    void writeTo(DataOutputStream output) throws IOException {
+
+	output.writeInt(this.numProbes);
+	output.writeInt(this.bits.length);
+
+	for (long word: this.bits) {
+	    output.writeLong(word);
+	}
+    }
+
+    int getSerializedSize() {
+	return 8 + 8 * this.bits.length;
+    }
+
+    boolean mightContain(String key) {
+	return this.mightContain(hash(key));
+    }
+
+    boolean mightContain(long keyHash) {
+
+	int h1 = (int) keyHash;
+	int h2 = (int) (keyHash >>> 32);
+
+	for (int i = 0; i < this.numProbes; i++) {
+	    int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % this.numBits;
+	    if ((this.bits[bit >>> 6] & (1L << bit)) == 0) {
+		return false;
+	    }
+	}
+
+	return true;
+    }
+
+    private void add(long keyHash) {
+
+	int h1 = (int) keyHash;
+	int h2 = (int) (keyHash >>> 32);
+
+	for (int i = 0; i < this.numProbes; i++) {
+	    int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % this.numBits;
+	    this.bits[bit >>> 6] |= 1L << bit;
+	}
+    }
+
+    /**
+     * 64-bit FNV-1a over the UTF-8 key bytes, finished with the MurmurHash3
+     * mixer so both halves are usable as independent probe hashes.
+     */
+    static long hash(String key) {
+
+	long h = 0xcbf29ce484222325L;
+
+	for (byte b: key.getBytes(StandardCharsets.UTF_8)) {
+	    h ^= (b & 0xff);
+	    h *= 0x100000001b3L;
+	}
+
+	h ^= h >>> 33;
+	h *= 0xff51afd7ed558ccdL;
+	h ^= h >>> 33;
+	h *= 0xc4ceb9fe1a85ec53L;
+	h ^= h >>> 33;
+
+	return h;
+    }
+
+}
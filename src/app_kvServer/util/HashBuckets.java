@@ -0,0 +1,109 @@
+package app_kvServer.util;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+
+import shared.KeyRange;
+
+/**
+ * Splits the MD5 ring into NUM_BUCKETS fixed ranges by the first byte of a
+ * key's hash. Store files keep every key behind the two hex digits of its
+ * bucket, so records are ordered by bucket first and a store file holds a
+ * contiguous run of buckets. A server's key range is then a contiguous run
+ * of store files, and only the buckets its two ends fall in have to be
+ * split key by key when the range changes.
+ */
+final class HashBuckets {
+
+    static final int NUM_BUCKETS = 256;
+    static final int PREFIX_LENGTH = 2;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<MessageDigest> md5 = ThreadLocal.withInitial(() -> {
+	try {
+	    return MessageDigest.getInstance("MD5");
+	} catch (NoSuchAlgorithmException nsae) {
+	    throw new IllegalStateException(nsae);
+	}
+    });
+
+    private HashBuckets() {
+    }
+
+    /**
+     * @return the MD5 hash of key, which places it on the ring
+     */
+    static byte[] hash(String key) {
+	return md5.get().digest(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return key as it is stored in store files, behind its bucket
+     */
+    static String toStoredKey(String key) {
+	int bucket = hash(key)[0] & 0xff;
+	return new StringBuilder(PREFIX_LENGTH + key.length()).append(HEX_DIGITS[bucket >>> 4]).append(HEX_DIGITS[bucket & 0xf]).append(key).toString();
+    }
+
+    /**
+     * @return the key a stored key was made from
+     */
+    static String toKey(String storedKey) {
+	return storedKey.substring(PREFIX_LENGTH);
+    }
+
+    static int bucketOf(String storedKey) {
+	return Character.digit(storedKey.charAt(0), 16) << 4 | Character.digit(storedKey.charAt(1), 16);
+    }
+
+    /**
+     * @return whether the ring positions of buckets fromBucket to toBucket
+     *         are partly inside and partly outside range
+     */
+    static boolean isSplitBy(KeyRange range, int fromBucket, int toBucket) {
+
+	BigInteger start = new BigInteger(1, range.getRangeFrom());
+	BigInteger end = new BigInteger(1, range.getRangeTo());
+
+	if (start.equals(end)) {
+	    return false;
+	}
+
+	BigInteger low = lowestHash(fromBucket);
+	BigInteger high = lowestHash(toBucket + 1);
+
+	// Membership only changes just after start and just after end.
+	return (start.compareTo(low) >= 0 && start.compareTo(high.subtract(BigInteger.ONE)) < 0)
+	    || (end.compareTo(low) >= 0 && end.compareTo(high.subtract(BigInteger.ONE)) < 0);
+    }
+
+    /**
+     * @return whether bucket is inside range; only meaningful if range does
+     *         not split it
+     */
+    static boolean withinKeyRange(KeyRange range, int bucket) {
+	return range.withinKeyRange(lowestHash(bucket).toByteArray());
+    }
+
+    /**
+     * @return whether the key behind storedKey is inside range, hashing it
+     *         only if range splits its bucket
+     */
+    static boolean withinKeyRange(KeyRange range, String storedKey) {
+
+	int bucket = bucketOf(storedKey);
+
+	if (!isSplitBy(range, bucket, bucket)) {
+	    return withinKeyRange(range, bucket);
+	}
+
+	return range.withinKeyRange(hash(toKey(storedKey)));
+    }
+
+    private static BigInteger lowestHash(int bucket) {
+	return BigInteger.valueOf(bucket).shiftLeft(120);
+    }
+
+}
@@ -1,10 +1,12 @@
 package app_kvServer.util;
 
 import java.io.*;
-import java.time.*;
+import java.util.*;
 
 import org.apache.log4j.Logger;
 
+import app_kvServer.util.StorageOptions.Compression;
+
 class LimitedKVBufferedWriter implements AutoCloseable {
 
     private static Logger logger = Logger.getRootLogger();
@@ -12,47 +14,93 @@ class LimitedKVBufferedWriter implements AutoCloseable {
     private final File fileDirectory;
     private final String prefix;
     private final int limit;
+    private final Manifest manifest;
+    private final ValueLog valueLog;
+    private final Compression compression;
 
-    private File currentFile;
-    private BufferedWriter currentWriter;
-    private int writeCount;
+    private TreeMap<String, Optional<String>> buffer;
+    private TreeMap<String, ValuePointer> pointers;
+    private ArrayList<File> files;
     
-    public LimitedKVBufferedWriter(File fileDirectory, String prefix, int limit) throws Exception {
+    /**
+     * @param valueLog log to move large values into, or null for files that
+     *           are sent to other servers
+     * @param compression codec blocks are written with
+     */
+    public LimitedKVBufferedWriter(File fileDirectory, String prefix, int limit, Manifest manifest, ValueLog valueLog, Compression compression) throws Exception {
 	this.fileDirectory = fileDirectory;
 	this.prefix = prefix;
 	this.limit = limit;
+	this.manifest = manifest;
+	this.valueLog = valueLog;
+	this.compression = compression;
 
-	this.currentFile = new File(this.fileDirectory, this.prefix + Instant.now().toString() + ".txt"); 
-	this.currentFile.createNewFile();
-	this.currentWriter = new BufferedWriter(new FileWriter(this.currentFile, true));
-	this.writeCount = 0;
+	this.buffer = new TreeMap<String, Optional<String>>();
+	this.pointers = new TreeMap<String, ValuePointer>();
+	this.files = new ArrayList<File>();
     }
 
-    public void writeKV(String key, String value) throws Exception {
+    public void writeKV(String key, Optional<String> value) throws Exception {
 
-	this.currentWriter.write(String.format("%s\r\n%s\r\n", key, value));
-	this.writeCount++;
+	this.buffer.put(key, value);
 
-	if (this.writeCount >= this.limit) {
-	    this.currentWriter.close();
-	    this.currentFile = new File(this.fileDirectory, prefix + Instant.now().toString() + ".txt"); 
-	    this.currentFile.createNewFile();
-	    this.currentWriter = new BufferedWriter(new FileWriter(this.currentFile, true));
-	    this.writeCount = 0;
+	if (this.buffer.size() + this.pointers.size() >= this.limit) {
+	    this.writeBufferToStoreFile();
 	}
     }
 
-    public void close() {
-	try {
-	    this.currentWriter.close();
+    /**
+     * Writes a value that is already in the value log as the pointer to
+     * it, without reading or appending it again.
+     */
+    public void writePointer(String key, ValuePointer pointer) throws Exception {
 
-	    if (this.currentFile.length() == 0) {
-		this.currentFile.delete();
-	    }
+	this.pointers.put(key, pointer);
+
+	if (this.buffer.size() + this.pointers.size() >= this.limit) {
+	    this.writeBufferToStoreFile();
+	}
+    }
 
+    /**
+     * @return every store file written so far, oldest first
+     */
+    public List<File> getFiles() {
+	return this.files;
+    }
+
+    public void close() {
+	try {
+	    this.writeBufferToStoreFile();
 	} catch (Exception e) {
 	    logger.error("Failed to close LimitedKVBufferedWriter: " + e.getMessage());
 	}
     }
 
+    private void writeBufferToStoreFile() throws Exception {
+
+	if (this.buffer.isEmpty() && this.pointers.isEmpty()) {
+	    return;
+	}
+
+	File currentFile = StoreFileWriter.createFile(this.fileDirectory, this.prefix, this.manifest.newFileNumber());
+
+	try (var writer = new StoreFileWriter(currentFile, this.valueLog, this.compression)) {
+	    var keys = new TreeSet<String>(this.buffer.keySet());
+	    keys.addAll(this.pointers.keySet());
+	    for (String key: keys) {
+		ValuePointer pointer = this.pointers.get(key);
+		if (pointer != null) {
+		    writer.appendPointer(key, pointer);
+		} else {
+		    writer.append(key, this.buffer.get(key));
+		}
+	    }
+	}
+
+	this.files.add(currentFile);
+	this.buffer.clear();
+	this.pointers.clear();
+    }
+
 }
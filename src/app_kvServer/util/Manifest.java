@@ -0,0 +1,242 @@
+package app_kvServer.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32C;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Append-only log of changes to the set of live store files. Every flush,
+ * compaction and replica install is recorded as one edit, fsynced before
+ * the files it replaces are deleted, so the live set survives a crash at
+ * any point. Store files on disk that the manifest does not list are left
+ * over from an interrupted operation and are removed at startup.
+ *
+ *   record: int payloadLength | int crc | payload
+ *   payload: long nextFileNumber | long lastSequence |
+ *            int deletedCount | deleted names | int addedCount | added files
+ *
+ * A torn record at the end of the log is an edit that never completed and
+ * is ignored. The log is rewritten as a single snapshot edit when opened
+ * and whenever it has accumulated MAX_EDITS edits.
+ */
+class Manifest implements AutoCloseable {
+
+    static final String FILE_NAME = "MANIFEST";
+
+    private static final int MAX_EDITS = 1000;
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private final File directory;
+    private final File file;
+    private FileChannel channel;
+
+    private final LinkedHashMap<String, StoreFileMetadata> files;
+    private long nextFileNumber;
+    private long lastSequence;
+    private int editCount;
+
+    /**
+     * Loads the manifest in directory, if there is one, and compacts it
+     * into a fresh snapshot.
+     */
+    Manifest(File directory) throws IOException {
+
+	this.directory = directory;
+	this.file = new File(directory, FILE_NAME);
+	this.files = new LinkedHashMap<String, StoreFileMetadata>();
+	this.nextFileNumber = 1;
+	this.lastSequence = 0;
+
+	if (this.file.exists()) {
+	    this.load();
+	}
+
+	this.writeSnapshot();
+    }
+
+    private void load() throws IOException {
+
+	int edits = 0;
+
+	try (var input = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)))) {
+
+	    long remaining = this.file.length();
+
+	    while (remaining >= 8) {
+
+		int payloadLength = input.readInt();
+		int checksum = input.readInt();
+
+		if (payloadLength < 0 || payloadLength > remaining - 8) {
+		    break;
+		}
+
+		byte[] payload = new byte[payloadLength];
+		input.readFully(payload);
+
+		var crc = new CRC32C();
+		crc.update(payload);
+
+		if ((int) crc.getValue() != checksum) {
+		    break;
+		}
+
+		this.applyEdit(new DataInputStream(new ByteArrayInputStream(payload)));
+		remaining -= 8 + payloadLength;
+		edits++;
+	    }
+
+	    if (remaining > 0) {
+		logger.warn(String.format("Ignoring %d bytes of incomplete edits at the end of the manifest", remaining));
+	    }
+	}
+
+	logger.info(String.format("Loaded manifest with %d live store files from %d edits", this.files.size(), edits));
+    }
+
+    private void applyEdit(DataInputStream edit) throws IOException {
+
+	this.nextFileNumber = Math.max(this.nextFileNumber, edit.readLong());
+	this.lastSequence = Math.max(this.lastSequence, edit.readLong());
+
+	int deletedCount = edit.readInt();
+
+	for (int i = 0; i < deletedCount; i++) {
+	    this.files.remove(edit.readUTF());
+	}
+
+	int addedCount = edit.readInt();
+
+	for (int i = 0; i < addedCount; i++) {
+	    StoreFileMetadata metadata = StoreFileMetadata.readFrom(edit);
+	    this.files.put(metadata.getName(), metadata);
+	}
+    }
+
+    private static byte[] encodeEdit(long nextFileNumber, long lastSequence, Collection<String> deleted, Collection<StoreFileMetadata> added) throws IOException {
+
+	var payloadBuffer = new ByteArrayOutputStream();
+	var payload = new DataOutputStream(payloadBuffer);
+
+	payload.writeLong(nextFileNumber);
+	payload.writeLong(lastSequence);
+
+	payload.writeInt(deleted.size());
+	for (String name: deleted) {
+	    payload.writeUTF(name);
+	}
+
+	payload.writeInt(added.size());
+	for (StoreFileMetadata metadata: added) {
+	    metadata.writeTo(payload);
+	}
+
+	payload.flush();
+
+	byte[] payloadBytes = payloadBuffer.toByteArray();
+	var crc = new CRC32C();
+	crc.update(payloadBytes);
+
+	var record = ByteBuffer.allocate(8 + payloadBytes.length);
+	record.putInt(payloadBytes.length);
+	record.putInt((int) crc.getValue());
+	record.put(payloadBytes);
+	record.flip();
+
+	return record.array();
+    }
+
+    /**
+     * Replaces the log with a single edit describing the current state. The
+     * snapshot is written to a temporary file and renamed over the log.
+     */
+    private void writeSnapshot() throws IOException {
+
+	if (this.channel != null) {
+	    this.channel.close();
+	}
+
+	File snapshot = new File(this.directory, FILE_NAME + ".tmp");
+	byte[] record = encodeEdit(this.nextFileNumber, this.lastSequence, Collections.<String>emptyList(), this.files.values());
+
+	try (var output = new FileOutputStream(snapshot)) {
+	    output.write(record);
+	    output.getFD().sync();
+	}
+
+	Files.move(snapshot.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+	this.channel = FileChannel.open(this.file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	this.editCount = 1;
+    }
+
+    /**
+     * Reserves a number for a new store file. Numbers only grow, so they
+     * also order files by age.
+     */
+    synchronized long newFileNumber() {
+	return this.nextFileNumber++;
+    }
+
+    synchronized StoreFileMetadata get(String name) {
+	return this.files.get(name);
+    }
+
+    synchronized long getLastSequence() {
+	return this.lastSequence;
+    }
+
+    /**
+     * @return every live store file, oldest first
+     */
+    synchronized List<StoreFileMetadata> getFiles() {
+	var live = new ArrayList<StoreFileMetadata>(this.files.values());
+	live.sort(Comparator.comparingLong(StoreFileMetadata::getNumber));
+	return live;
+    }
+
+    /**
+     * Durably records that deleted are no longer live and added are. A file
+     * can appear in both to change its level.
+     * @param lastSequence largest WAL sequence number now held in store files
+     */
+    synchronized void apply(Collection<StoreFileMetadata> added, Collection<String> deleted, long lastSequence) throws IOException {
+
+	this.lastSequence = Math.max(this.lastSequence, lastSequence);
+
+	byte[] record = encodeEdit(this.nextFileNumber, this.lastSequence, deleted, added);
+	var buffer = ByteBuffer.wrap(record);
+
+	while (buffer.hasRemaining()) {
+	    this.channel.write(buffer);
+	}
+	this.channel.force(false);
+
+	for (String name: deleted) {
+	    this.files.remove(name);
+	}
+	for (StoreFileMetadata metadata: added) {
+	    this.files.put(metadata.getName(), metadata);
+	}
+
+	this.editCount++;
+
+	if (this.editCount >= MAX_EDITS) {
+	    this.writeSnapshot();
+	}
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+	if (this.channel != null) {
+	    this.channel.close();
+	}
+    }
+
+}
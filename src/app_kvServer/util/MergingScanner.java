@@ -0,0 +1,135 @@
+package app_kvServer.util;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Streaming k-way merge over sorted store files, yielding every key once in
+ * increasing order. When several files hold the same key, the value from
+ * the file that comes first in the input list wins, so inputs are passed
+ * newest first. Only the current record of each input is held in memory,
+ * and values in the value log are only read if getValue() is called.
+ */
+class MergingScanner implements AutoCloseable {
+
+    private static class Head {
+	final StoreFileScanner scanner;
+	final int priority;
+
+	Head(StoreFileScanner scanner, int priority) {
+	    this.scanner = scanner;
+	    this.priority = priority;
+	}
+    }
+
+    private final List<StoreFileScanner> scanners;
+    private final PriorityQueue<Head> heads;
+    private final ValueLog valueLog;
+
+    private String key;
+    private Optional<String> value;
+    private ValuePointer pointer;
+
+    /**
+     * @param readers files to merge, highest priority (newest) first
+     */
+    MergingScanner(List<StoreFileReader> readers, ValueLog valueLog) throws IOException {
+
+	this.valueLog = valueLog;
+
+	this.scanners = new ArrayList<StoreFileScanner>();
+	this.heads = new PriorityQueue<Head>(Math.max(1, readers.size()), (h1, h2) -> {
+	    int comparison = h1.scanner.getKey().compareTo(h2.scanner.getKey());
+	    return comparison != 0 ? comparison : Integer.compare(h1.priority, h2.priority);
+	});
+
+	try {
+	    for (int i = 0; i < readers.size(); i++) {
+		StoreFileScanner scanner = readers.get(i).scanner();
+		this.scanners.add(scanner);
+		if (scanner.next()) {
+		    this.heads.add(new Head(scanner, i));
+		}
+	    }
+	} catch (IOException ioe) {
+	    this.close();
+	    throw ioe;
+	}
+    }
+
+    /**
+     * Advances to the next distinct key.
+     * @return false once every input has been consumed
+     */
+    public boolean next() throws IOException {
+
+	Head head = this.heads.poll();
+
+	if (head == null) {
+	    this.key = null;
+	    this.value = null;
+	    this.pointer = null;
+	    return false;
+	}
+
+	this.key = head.scanner.getKey();
+	this.pointer = head.scanner.getPointer();
+	this.value = this.pointer == null ? head.scanner.getValue() : null;
+	this.advance(head);
+
+	while (!this.heads.isEmpty() && this.heads.peek().scanner.getKey().equals(this.key)) {
+	    this.advance(this.heads.poll());
+	}
+
+	return true;
+    }
+
+    private void advance(Head head) throws IOException {
+	if (head.scanner.next()) {
+	    this.heads.add(head);
+	}
+    }
+
+    public String getKey() {
+	return this.key;
+    }
+
+    /**
+     * @return the current value, which may be ServerFileManager.TOMBSTONE
+     */
+    public Optional<String> getValue() throws IOException {
+
+	if (this.value == null && this.pointer != null) {
+	    this.value = Optional.of(this.valueLog.read(this.pointer));
+	}
+
+	return this.value;
+    }
+
+    /**
+     * @return where the current value is in the value log, or null if it
+     *         is stored inline
+     */
+    public ValuePointer getPointer() {
+	return this.pointer;
+    }
+
+    @Override
+    public void close() throws IOException {
+
+	IOException failure = null;
+
+	for (StoreFileScanner scanner: this.scanners) {
+	    try {
+		scanner.close();
+	    } catch (IOException ioe) {
+		failure = ioe;
+	    }
+	}
+
+	if (failure != null) {
+	    throw failure;
+	}
+    }
+
+}
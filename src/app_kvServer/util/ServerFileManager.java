@@ -1,9 +1,12 @@
 package app_kvServer.util;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
 import java.util.*;
-import java.security.*;
-import java.time.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
 
 import org.apache.log4j.Logger;
 
@@ -14,131 +17,1074 @@ public class ServerFileManager {
 
     private static Logger logger = Logger.getRootLogger();
 
+    private static final String PRIMARY_PREFIX = "KVServerStoreFile_";
+    private static final String REPLICA_1_PREFIX = "Replica1KVServerStoreFile_";
+    private static final String REPLICA_2_PREFIX = "Replica2KVServerStoreFile_";
+    private static final String PARTITIONED_PREFIX = "PartitionedKVServerStoreFile_";
+    private static final String SNAPSHOT_PREFIX = "SnapshotKVServerStoreFile_";
+    private static final String[] LIVE_PREFIXES = {PRIMARY_PREFIX, REPLICA_1_PREFIX, REPLICA_2_PREFIX};
+    private static final int NUM_LEVELS = 7;
+
+    /**
+     * Value recorded for a deleted key in the memtable, the WAL and store
+     * files, where every other value is present. Lookups stop at the
+     * newest tombstone for a key, and compaction drops tombstones once no
+     * older value of the key is left below them. No stored String is a
+     * tombstone: the protocol's "null" for a delete is only translated in
+     * KVServer.putKV, and lookups report a deleted key as missing.
+     */
+    public static final Optional<String> TOMBSTONE = Optional.empty();
+
     private File dataDirectory;
-    private File wal;
-    private TreeMap<String, String> cache;
+    private volatile WriteAheadLog writeAheadLog;
+    private volatile long memtableFirstSegment;
+    private volatile long immutableLastSequence;
+    private StorageOptions options;
     private int cacheSize;
 
-    public ServerFileManager(String dataDirectoryLocation, TreeMap<String, String> cache, int cacheSize) throws IOException {
+    private Manifest manifest;
+    private ConcurrentHashMap<String, StoreFileReader> storeFileReaders;
+    private volatile Map<String, List<List<StoreFileReader>>> storeFileLevels;
+    private ReadWriteLock storeFilesLock;
+    private String[] compactPointers;
+    private ShardedCache<Long, byte[]> blockCache;
+    private ValueLog valueLog;
+    private ReadWriteLock valueLogLock;
+
+    public ServerFileManager(String dataDirectoryLocation, SortedMap<String, Optional<String>> cache, int cacheSize) throws IOException {
+	this(dataDirectoryLocation, cache, cacheSize, new StorageOptions());
+    }
+
+    public ServerFileManager(String dataDirectoryLocation, SortedMap<String, Optional<String>> cache, int cacheSize, StorageOptions options) throws IOException {
 	this.dataDirectory =  new File(dataDirectoryLocation);
-	this.wal = new File(this.dataDirectory, "wal.txt");
-	this.cache = cache;
+	this.options = options;
 	this.cacheSize = cacheSize;
+	this.storeFileReaders = new ConcurrentHashMap<String, StoreFileReader>();
+	this.storeFilesLock = new ReentrantReadWriteLock();
+	this.compactPointers = new String[NUM_LEVELS];
+	this.blockCache = new ShardedCache<Long, byte[]>(options.getCacheStrategy(), options.getBlockCacheSize(), block -> block.length);
+	this.valueLog = new ValueLog(this.dataDirectory, options.getValueLogThreshold(), options.getValueLogFileSize());
+	this.valueLogLock = new ReentrantReadWriteLock();
+
+	this.openManifest();
+	this.migrateLegacyStoreFiles();
+	this.migrateLegacyWAL();
+	this.recoverWAL(cache);
+    }
+
+    /**
+     * Replays the WAL segments left by the previous run into cache and opens
+     * a fresh segment for new writes. If more was recovered than fits in a
+     * memtable (a crash while a full memtable was waiting to be flushed), it
+     * is written straight to a store file instead.
+     */
+    private void recoverWAL(SortedMap<String, Optional<String>> cache) throws IOException {
+
+	long[] segmentIds = WriteAheadLog.listSegments(this.dataDirectory);
+	long nextSegment = segmentIds.length == 0 ? 1 : segmentIds[segmentIds.length - 1] + 1;
+
+	long startTime = System.nanoTime();
+	long lastSequence = Math.max(WriteAheadLog.replay(this.dataDirectory, segmentIds, cache), this.manifest.getLastSequence());
+
+	logger.info(String.format("Replayed %d WAL segments (%d keys) in %d ms", segmentIds.length, cache.size(), (System.nanoTime() - startTime) / 1000000));
+
+	this.memtableFirstSegment = segmentIds.length == 0 ? nextSegment : segmentIds[0];
+
+	if (cache.size() >= this.cacheSize) {
+	    this.memtableFirstSegment = nextSegment;
+	    this.immutableLastSequence = lastSequence;
+	    this.dumpCacheToStoreFile(cache);
+	    cache.clear();
+	}
+
+	this.writeAheadLog = new WriteAheadLog(this.dataDirectory, nextSegment, lastSequence + 1, this.options);
+    }
+
+    /**
+     * Moves anything left in the plain-text WAL used by earlier versions
+     * (CRLF separated keys and values) into a store file.
+     */
+    private void migrateLegacyWAL() throws IOException {
+
+	File[] legacyWals = {
+	    new File(this.dataDirectory, "immutable_wal.txt"),
+	    new File(this.dataDirectory, "wal.txt")
+	};
+
+	var legacyEntries = new TreeMap<String, Optional<String>>();
+
+	for (File legacyWal: legacyWals) {
+	    if (legacyWal.exists()) {
+		readLegacyRecords(legacyWal, legacyEntries);
+	    }
+	}
+
+	if (!legacyEntries.isEmpty()) {
+	    logger.info(String.format("Migrating %d keys from the legacy WAL", legacyEntries.size()));
+	    this.writeStoreFile(legacyEntries, 0);
+	}
+
+	for (File legacyWal: legacyWals) {
+	    legacyWal.delete();
+	}
+    }
+
+    /**
+     * Converts the plain-text store files written by earlier versions into
+     * store files. Each file becomes a level 0 file of its own, converted
+     * oldest first by modification time, so the converted files keep the
+     * precedence lookups used to give them. A CompactedKVServerStoreFile_
+     * left by an interrupted compaction only holds values merged from the
+     * primary files and goes below them. Other plain-text leftovers are not
+     * live data and are left where they are.
+     */
+    private void migrateLegacyStoreFiles() throws IOException {
+
+	var added = new ArrayList<StoreFileMetadata>();
+	var converted = new ArrayList<File>();
+
+	for (String prefix: LIVE_PREFIXES) {
+
+	    var legacyFiles = new ArrayList<File>();
+
+	    if (prefix.equals(PRIMARY_PREFIX)) {
+		legacyFiles.addAll(this.findLegacyStoreFiles("Compacted" + prefix));
+	    }
+
+	    legacyFiles.addAll(this.findLegacyStoreFiles(prefix));
+
+	    for (File legacyFile: legacyFiles) {
+
+		var records = new TreeMap<String, Optional<String>>();
+		readLegacyRecords(legacyFile, records);
+		converted.add(legacyFile);
+
+		if (records.isEmpty()) {
+		    continue;
+		}
+
+		File storeFile = this.newStoreFile(prefix);
+
+		try (var writer = new StoreFileWriter(storeFile, prefix.equals(PRIMARY_PREFIX) ? this.valueLog : null, this.options.getCompression())) {
+		    for (Map.Entry<String, Optional<String>> entry: toStoredKeys(records).entrySet()) {
+			writer.append(entry.getKey(), entry.getValue());
+		    }
+		}
+
+		added.add(this.describeStoreFile(storeFile, 0, 0));
+	    }
+	}
+
+	if (!added.isEmpty()) {
+	    logger.info(String.format("Converted %d plain-text store files", added.size()));
+	    this.installStoreFiles(added, List.of(), 0);
+	}
+
+	for (File legacyFile: converted) {
+	    legacyFile.delete();
+	}
+
+	for (File leftover: this.filterFilesByPrefix("")) {
+	    if (leftover.getName().endsWith(".txt") && leftover.getName().contains(PRIMARY_PREFIX)) {
+		logger.warn("Leaving plain-text store file " + leftover.getName() + " in place, since it is not live data");
+	    }
+	}
+    }
+
+    /**
+     * @return the plain-text store files with prefix, oldest first
+     */
+    private List<File> findLegacyStoreFiles(String prefix) {
+
+	var legacyFiles = new ArrayList<File>();
+
+	for (File file: this.filterFilesByPrefix(prefix)) {
+	    if (file.getName().endsWith(".txt")) {
+		legacyFiles.add(file);
+	    }
+	}
+
+	legacyFiles.sort(Comparator.comparingLong(File::lastModified).thenComparing(File::getName));
+
+	return legacyFiles;
+    }
+
+    /**
+     * Reads the CRLF separated keys and values of a plain-text WAL or store
+     * file into records, later records replacing earlier ones. The value
+     * "null" recorded a delete and is read as a tombstone.
+     */
+    private static void readLegacyRecords(File file, SortedMap<String, Optional<String>> records) throws IOException {
 
-	try (var scanner = new Scanner(this.wal)) {
+	try (var scanner = new Scanner(file)) {
 	    scanner.useDelimiter("\r\n");
 	    while (scanner.hasNext()) {
 		String test_key = scanner.next();
 		String test_value = scanner.next();
-		this.cache.put(test_key, test_value);
+		records.put(test_key, test_value.equals("null") ? TOMBSTONE : Optional.of(test_value));
+	    }
+	} catch (NoSuchElementException nsee) {
+	    logger.warn("Ignoring torn record at the end of " + file.getName());
+	}
+    }
+
+    /**
+     * Loads the manifest, removes every store file it does not list and
+     * opens readers for the rest.
+     */
+    private void openManifest() throws IOException {
+
+	this.manifest = new Manifest(this.dataDirectory);
+
+	var live = new HashSet<String>();
+
+	for (StoreFileMetadata metadata: this.manifest.getFiles()) {
+	    live.add(metadata.getName());
+	}
+
+	for (File file: this.filterFilesByPrefix("")) {
+	    if (file.getName().endsWith(".sst") && !live.contains(file.getName())) {
+		logger.info("Removing store file left behind by an interrupted operation " + file.getName());
+		this.deleteStoreFile(file);
+	    }
+	}
+
+	this.rebuildStoreFileLevels();
+
+	logger.info(String.format("Loaded bloom filters and indexes for %d store files", this.storeFileReaders.size()));
+    }
+
+    /**
+     * @return whether value records a delete; null, for a key a lookup did
+     *         not find, is not a tombstone
+     */
+    public static boolean isTombstone(Optional<String> value) {
+	return value != null && value.isEmpty();
+    }
+
+    private static String getLivePrefix(String name) {
+
+	for (String prefix: LIVE_PREFIXES) {
+	    if (name.startsWith(prefix)) {
+		return prefix;
+	    }
+	}
+
+	return null;
+    }
+
+    /**
+     * Rebuilds the view of the live store files that lookups use from the
+     * manifest: for each prefix, the readers of every level, with level 0
+     * (and the replicas, which only use level 0) ordered newest first and
+     * deeper levels ordered by key. Replaced under the store files write
+     * lock whenever the manifest changes.
+     */
+    private void rebuildStoreFileLevels() {
+
+	var storeFileLevels = new HashMap<String, List<List<StoreFileReader>>>();
+
+	for (String prefix: LIVE_PREFIXES) {
+	    var levels = new ArrayList<List<StoreFileReader>>();
+	    for (int level = 0; level < NUM_LEVELS; level++) {
+		levels.add(new ArrayList<StoreFileReader>());
+	    }
+	    storeFileLevels.put(prefix, levels);
+	}
+
+	List<StoreFileMetadata> live = this.manifest.getFiles();
+	Collections.reverse(live);
+
+	for (StoreFileMetadata metadata: live) {
+	    try {
+		StoreFileReader reader = this.getReader(new File(this.dataDirectory, metadata.getName()));
+		storeFileLevels.get(getLivePrefix(metadata.getName())).get(metadata.getLevel()).add(reader);
+	    } catch (IOException e) {
+		logger.error("Failed to load store file " + metadata.getName() + ": " + e.getMessage());
+	    }
+	}
+
+	for (List<List<StoreFileReader>> levels: storeFileLevels.values()) {
+	    for (int level = 1; level < NUM_LEVELS; level++) {
+		levels.get(level).sort(Comparator.comparing(StoreFileReader::getFirstKey, Comparator.nullsFirst(Comparator.naturalOrder())));
+	    }
+	}
+
+	this.storeFileLevels = storeFileLevels;
+    }
+
+    /**
+     * Records added and deleted in the manifest, removes the deleted files
+     * and makes the new set visible to lookups, all under the store files
+     * write lock. Files listed in both only change level.
+     */
+    private void installStoreFiles(List<StoreFileMetadata> added, List<String> deleted, long lastSequence) throws IOException {
+
+	this.storeFilesLock.writeLock().lock();
+
+	try {
+
+	    this.manifest.apply(added, deleted, lastSequence);
+
+	    var kept = new HashSet<String>();
+
+	    for (StoreFileMetadata metadata: added) {
+		kept.add(metadata.getName());
+	    }
+
+	    for (String name: deleted) {
+		if (!kept.contains(name)) {
+		    this.deleteStoreFile(new File(this.dataDirectory, name));
+		}
 	    }
+
+	    this.rebuildStoreFileLevels();
+
+	} finally {
+	    this.storeFilesLock.writeLock().unlock();
+	}
+    }
+
+    private StoreFileMetadata describeStoreFile(File file, int level, long sequence) throws IOException {
+	StoreFileReader reader = this.getReader(file);
+	return new StoreFileMetadata(file.getName(), level, parseFileNumber(file.getName()), sequence, reader.getFirstKey(), reader.getLastKey());
+    }
+
+    private static long parseFileNumber(String name) {
+	return Long.parseLong(name.substring(name.lastIndexOf('_') + 1, name.length() - ".sst".length()));
+    }
+
+    private File newStoreFile(String prefix) throws IOException {
+	return StoreFileWriter.createFile(this.dataDirectory, prefix, this.manifest.newFileNumber());
+    }
+
+    private List<String> getNames(List<StoreFileReader> readers) {
+
+	var names = new ArrayList<String>();
+
+	for (StoreFileReader reader: readers) {
+	    names.add(reader.getFile().getName());
 	}
+
+	return names;
+    }
+
+    /**
+     * Appends a PUT to the WAL, returning once it is durable under the
+     * configured WAL durability policy. Safe to call from many threads;
+     * concurrent calls are group committed.
+     * @return the record appended, for shipping to replicas
+     */
+    public ByteBuffer writeKVToWAL(String key, Optional<String> value) throws Exception {
+	return this.writeAheadLog.append(key, value);
+    }
+
+    /**
+     * @return the sequence number of the last record appended to the WAL
+     */
+    public long getLastWALSequence() {
+	return this.writeAheadLog.getLastSequence();
     }
 
-    public void writeKVToWAL(String key, String value) throws Exception {
-        BufferedWriter walWriter = new BufferedWriter(new FileWriter(this.wal, true));
-        walWriter.write(String.format("%s\r\n%s\r\n", key, value));
-        walWriter.close();
+    /**
+     * Starts a new WAL segment for the next memtable. The older segments are
+     * kept until the memtable they cover has been dumped to disk.
+     */
+    public void rotateWAL() throws IOException {
+	this.immutableLastSequence = this.writeAheadLog.getLastSequence();
+	this.memtableFirstSegment = this.writeAheadLog.rotate();
     }
 
-    public void dumpCacheToStoreFile() throws Exception {
+    public void close() {
+	logger.info(String.format("Block cache hits: %d, misses: %d", this.blockCache.getHitCount(), this.blockCache.getMissCount()));
+	try {
+	    this.writeAheadLog.close();
+	} catch (IOException ioe) {
+	    logger.error("Failed to close WAL: " + ioe.getMessage());
+	}
+	try {
+	    this.manifest.close();
+	} catch (IOException ioe) {
+	    logger.error("Failed to close manifest: " + ioe.getMessage());
+	}
+	try {
+	    this.valueLog.close();
+	} catch (IOException ioe) {
+	    logger.error("Failed to close value log: " + ioe.getMessage());
+	}
+	for (String name: new ArrayList<String>(this.storeFileReaders.keySet())) {
+	    this.forgetReader(name);
+	}
+    }
+
+    /**
+     * Writes an immutable memtable to a new store file and discards the WAL
+     * segments that covered it.
+     */
+    public void dumpCacheToStoreFile(SortedMap<String, Optional<String>> cache) throws IOException {
 
         logger.info("Dumping current cache contents to disk.");
 
-	try (var dumpedWriter = new LimitedKVBufferedWriter(this.dataDirectory, "KVServerStoreFile_", this.cacheSize)) {
-	    for (Map.Entry<String, String> entry: this.cache.entrySet()) {
-		dumpedWriter.writeKV(entry.getKey(), entry.getValue());		
+	this.writeStoreFile(cache, this.immutableLastSequence);
+
+	WriteAheadLog.deleteSegmentsBefore(this.dataDirectory, this.memtableFirstSegment);
+    }
+
+    /**
+     * Writes cache to a new level 0 store file, under stored keys. Holds
+     * the value log read lock until the file is installed, so value log
+     * garbage collection cannot delete a value log file the new store file
+     * points into.
+     */
+    private void writeStoreFile(SortedMap<String, Optional<String>> cache, long sequence) throws IOException {
+
+	if (cache.isEmpty()) {
+	    return;
+	}
+
+	TreeMap<String, Optional<String>> bucketed = toStoredKeys(cache);
+
+	this.valueLogLock.readLock().lock();
+
+	try {
+
+	    File storeFile = this.newStoreFile(PRIMARY_PREFIX);
+
+	    try (var dumpedWriter = new StoreFileWriter(storeFile, this.valueLog, this.options.getCompression())) {
+		for (Map.Entry<String, Optional<String>> entry: bucketed.entrySet()) {
+		    dumpedWriter.append(entry.getKey(), entry.getValue());
+		}
+	    }
+
+	    this.installStoreFiles(List.of(this.describeStoreFile(storeFile, 0, sequence)), List.of(), sequence);
+
+	} finally {
+	    this.valueLogLock.readLock().unlock();
+	}
+    }
+
+    private static TreeMap<String, Optional<String>> toStoredKeys(SortedMap<String, Optional<String>> cache) {
+
+	var bucketed = new TreeMap<String, Optional<String>>();
+
+	for (Map.Entry<String, Optional<String>> entry: cache.entrySet()) {
+	    bucketed.put(HashBuckets.toStoredKey(entry.getKey()), entry.getValue());
+	}
+
+	return bucketed;
+    }
+
+    /**
+     * Writes records streamed from a primary's WAL to a new level 0 replica
+     * store file with prefix. Values are kept inline, since value log
+     * garbage collection only looks at primary store files. The file is
+     * marked with sequence, which sets it apart from the files of the last
+     * full copy (marked 0), and streamed files are merged in tiers so a
+     * replica lookup does not check one file per flush.
+     * @param sequence sequence number of the last record in entries on the
+     *           primary
+     */
+    public void dumpReplicaToStoreFile(SortedMap<String, Optional<String>> entries, String prefix, long sequence) throws Exception {
+
+	if (entries.isEmpty()) {
+	    return;
+	}
+
+	File storeFile = this.newStoreFile(prefix);
+
+	try (var writer = new StoreFileWriter(storeFile, null, this.options.getCompression())) {
+	    for (Map.Entry<String, Optional<String>> entry: toStoredKeys(entries).entrySet()) {
+		writer.append(entry.getKey(), entry.getValue());
+	    }
+	}
+
+	this.installStoreFiles(List.of(this.describeStoreFile(storeFile, 0, Math.max(sequence, 1))), List.of(), 0);
+
+	this.mergeStreamedReplicaFiles(prefix);
+    }
+
+    /**
+     * Merges the newest level0CompactionTrigger streamed replica files into
+     * one once none of them is more than twice the size of the newest, so
+     * streamed files grow in tiers and each record is only rewritten a
+     * logarithmic number of times. Tombstones are kept, since the files of
+     * the last full copy lie below.
+     */
+    private void mergeStreamedReplicaFiles(String prefix) throws Exception {
+
+	List<StoreFileReader> level0 = this.storeFileLevels.get(prefix).get(0);
+	int trigger = this.options.getLevel0CompactionTrigger();
+
+	if (level0.size() < trigger) {
+	    return;
+	}
+
+	List<StoreFileReader> inputs = new ArrayList<StoreFileReader>(level0.subList(0, trigger));
+	long sizeLimit = 2 * inputs.get(0).getFile().length();
+	long sequence = 0;
+
+	for (StoreFileReader input: inputs) {
+	    long inputSequence = this.manifest.get(input.getFile().getName()).getSequence();
+	    if (inputSequence == 0 || input.getFile().length() > sizeLimit) {
+		return;
+	    }
+	    sequence = Math.max(sequence, inputSequence);
+	}
+
+	File output = this.newStoreFile(prefix);
+
+	try (var writer = new StoreFileWriter(output, null, this.options.getCompression());
+	    var merged = new MergingScanner(inputs, this.valueLog)) {
+	    while (merged.next()) {
+		writer.append(merged.getKey(), merged.getValue());
 	    }
+	} catch (Exception e) {
+	    output.delete();
+	    StoreFileWriter.temporaryFile(output).delete();
+	    throw e;
 	}
 
-        new FileOutputStream(this.wal).close();
-        this.cache.clear();
+	this.installStoreFiles(List.of(this.describeStoreFile(output, 0, sequence)), this.getNames(inputs), 0);
     }
 
+    /**
+     * Merges every primary store file into a single sorted run on the
+     * deepest level in use, so no two files overlap. Used before the store
+     * files are shipped to another server.
+     */
     public void compactStoreFiles() throws Exception {
-	
+
+	List<List<StoreFileReader>> levels = this.storeFileLevels.get(PRIMARY_PREFIX);
+
+	var inputs = new ArrayList<StoreFileReader>();
+	int outputLevel = 1;
+	int nonEmptyLevels = 0;
+
+	for (int level = 0; level < NUM_LEVELS; level++) {
+	    if (!levels.get(level).isEmpty()) {
+		inputs.addAll(levels.get(level));
+		outputLevel = Math.max(outputLevel, level);
+		nonEmptyLevels++;
+	    }
+	}
+
+	if (inputs.isEmpty() || (nonEmptyLevels == 1 && levels.get(0).isEmpty())) {
+	    return;
+	}
+
         logger.info("Compacting KVServerStoreFiles");
 
-        HashSet<String> keySet = new HashSet<String>();
+	this.compact(inputs, outputLevel, Collections.<Long>emptySet());
+    }
+
+    /**
+     * Runs one step of leveled compaction if any level is over its limit.
+     * Level 0 holds flushed memtables, which may overlap, and is merged with
+     * the overlapping part of level 1 once it has level0CompactionTrigger
+     * files. Deeper levels hold non-overlapping files; once one outgrows its
+     * size limit, one of its files (picked round robin through the key
+     * space) is merged with the overlapping files of the next level, or just
+     * moved down if there are none.
+     * @return whether a compaction was run; callers repeat until false
+     */
+    public boolean compactNextLevel() throws Exception {
+
+	List<List<StoreFileReader>> levels = this.storeFileLevels.get(PRIMARY_PREFIX);
+	List<StoreFileReader> level0 = levels.get(0);
+
+	if (level0.size() >= this.options.getLevel0CompactionTrigger()) {
+
+	    var inputs = new ArrayList<StoreFileReader>(level0);
+	    String smallestKey = null;
+	    String largestKey = null;
+
+	    for (StoreFileReader reader: level0) {
+		if (reader.getFirstKey() == null) {
+		    continue;
+		}
+		if (smallestKey == null || reader.getFirstKey().compareTo(smallestKey) < 0) {
+		    smallestKey = reader.getFirstKey();
+		}
+		if (largestKey == null || reader.getLastKey().compareTo(largestKey) > 0) {
+		    largestKey = reader.getLastKey();
+		}
+	    }
+
+	    if (smallestKey != null) {
+		inputs.addAll(getOverlapping(levels.get(1), smallestKey, largestKey));
+	    }
+
+	    this.compact(inputs, 1, Collections.<Long>emptySet());
+	    return true;
+	}
+
+	long maxLevelLength = this.options.getLevelBaseSize();
+
+	for (int level = 1; level < NUM_LEVELS - 1; level++) {
+
+	    long levelLength = 0;
+
+	    for (StoreFileReader reader: levels.get(level)) {
+		levelLength += reader.getLength();
+	    }
 
-	File[] storeFiles = this.getFilesInReverseChronologicalOrder("KVServerStoreFile_");
+	    if (levelLength > maxLevelLength) {
 
-	try (var dumpedWriter = new LimitedKVBufferedWriter(this.dataDirectory, "CompactedKVServerStoreFile_", this.cacheSize)) {
-	    for (File file: storeFiles) {
-		try (var scanner = new Scanner(file)) {
-		    scanner.useDelimiter("\r\n");
-		    while (scanner.hasNext()) {
-			String key = scanner.next();
-			String value = scanner.next();
+		StoreFileReader picked = this.pickFileToCompact(level, levels.get(level));
+		var overlapping = getOverlapping(levels.get(level + 1), picked.getFirstKey(), picked.getLastKey());
 
-			if (!keySet.contains(key)) {
-			    keySet.add(key); 
-			    dumpedWriter.writeKV(key, value);
+		this.compactPointers[level] = picked.getLastKey();
+
+		if (overlapping.isEmpty()) {
+		    this.moveToLevel(picked, level + 1);
+		    return true;
+		}
+
+		var inputs = new ArrayList<StoreFileReader>();
+		inputs.add(picked);
+		inputs.addAll(overlapping);
+
+		this.compact(inputs, level + 1, Collections.<Long>emptySet());
+		return true;
+	    }
+
+	    maxLevelLength *= this.options.getLevelSizeMultiplier();
+	}
+
+	return this.collectValueLogGarbage();
+    }
+
+    /**
+     * Deletes value log files no live store file points into, then picks
+     * the value log file with the least live data, if at least
+     * valueLogGarbageRatio of it is garbage, and rewrites the store files
+     * pointing into it in place, moving its live values to the head of the
+     * log. The file is deleted on the next call. Files referenced from
+     * level 0 are left until level 0 is compacted, since a rewritten level
+     * 0 file would look newer than it is.
+     * @return whether store files were rewritten
+     */
+    private boolean collectValueLogGarbage() throws Exception {
+
+	long[] fileIds = ValueLog.listFiles(this.dataDirectory);
+
+	if (fileIds.length == 0) {
+	    return false;
+	}
+
+	List<List<StoreFileReader>> levels;
+	var liveBytes = new HashMap<Long, Long>();
+	var level0References = new HashSet<Long>();
+	Long victim = null;
+	double victimLiveRatio = 1.0 - this.options.getValueLogGarbageRatio();
+
+	this.valueLogLock.writeLock().lock();
+
+	try {
+
+	    levels = this.storeFileLevels.get(PRIMARY_PREFIX);
+
+	    for (int level = 0; level < NUM_LEVELS; level++) {
+		for (StoreFileReader reader: levels.get(level)) {
+		    for (Map.Entry<Long, Long> reference: reader.getValueLogReferences().entrySet()) {
+			liveBytes.merge(reference.getKey(), reference.getValue(), Long::sum);
+			if (level == 0) {
+			    level0References.add(reference.getKey());
 			}
 		    }
 		}
 	    }
+
+	    long headId = this.valueLog.getHeadId();
+
+	    for (long fileId: fileIds) {
+
+		if (fileId >= headId) {
+		    continue;
+		}
+
+		long live = liveBytes.getOrDefault(fileId, 0L);
+
+		if (live == 0) {
+		    logger.info("Deleting value log file " + fileId);
+		    this.valueLog.delete(fileId);
+		    continue;
+		}
+
+		double liveRatio = (double) live / this.valueLog.getFileLength(fileId);
+
+		if (liveRatio <= victimLiveRatio && !level0References.contains(fileId)) {
+		    victim = fileId;
+		    victimLiveRatio = liveRatio;
+		}
+	    }
+
+	} finally {
+	    this.valueLogLock.writeLock().unlock();
+	}
+
+	if (victim == null) {
+	    return false;
+	}
+
+	logger.info(String.format("Moving live values out of value log file %d (%.0f%% live)", victim, 100 * victimLiveRatio));
+
+	for (int level = 1; level < NUM_LEVELS; level++) {
+	    for (StoreFileReader reader: levels.get(level)) {
+		if (reader.getValueLogReferences().containsKey(victim)) {
+		    this.compact(List.of(reader), level, Set.of(victim));
+		}
+	    }
 	}
+
+	return true;
     }
 
-    public void clearOldStoreFiles() {
+    private StoreFileReader pickFileToCompact(int level, List<StoreFileReader> files) {
 
-        logger.info("Clearing old KVServerStoreFiles");
+	String compactPointer = this.compactPointers[level];
 
-	File[] storeFiles = this.filterFilesByPrefix("KVServerStoreFile_");
+	for (StoreFileReader reader: files) {
+	    if (compactPointer == null || (reader.getFirstKey() != null && reader.getFirstKey().compareTo(compactPointer) > 0)) {
+		return reader;
+	    }
+	}
 
-        for (File file: storeFiles) {
-            file.delete();
-        }
+	return files.get(0);
+    }
 
-        File[] compacted_files = this.filterFilesByPrefix("CompactedKVServerStoreFile_");
+    private static List<StoreFileReader> getOverlapping(List<StoreFileReader> files, String from, String to) {
 
-        for (File file: compacted_files) {
-            String filename = file.getName();
-            File newFile = new File(this.dataDirectory, filename.substring(9));
-            file.renameTo(newFile);
-        }
+	var overlapping = new ArrayList<StoreFileReader>();
+
+	for (StoreFileReader reader: files) {
+	    if (reader.overlaps(from, to)) {
+		overlapping.add(reader);
+	    }
+	}
+
+	return overlapping;
+    }
+
+    /**
+     * Merges inputs into new non-overlapping files of at most about
+     * targetFileSize bytes on outputLevel, then swaps them in for the
+     * inputs. The merge streams through the inputs, so memory use does not
+     * depend on how many keys they hold. Lookups keep using the inputs until
+     * the outputs are recorded in the manifest. Tombstones are dropped when
+     * no deeper level holds a file covering their key, since there is then
+     * no older value left for them to hide. Values in the value log are
+     * carried over as pointers without being read, except for those in the
+     * value log files being garbage collected, which are copied to the head
+     * of the log.
+     * @param inputs files to merge, highest priority (newest) first
+     * @param relocate value log files whose live values are to be moved
+     */
+    private void compact(List<StoreFileReader> inputs, int outputLevel, Set<Long> relocate) throws Exception {
+
+	logger.info(String.format("Compacting %d store files into level %d", inputs.size(), outputLevel));
+
+	List<List<StoreFileReader>> levels = this.storeFileLevels.get(PRIMARY_PREFIX);
+	int[] levelPointers = new int[NUM_LEVELS];
+	int droppedTombstones = 0;
+
+	var outputs = new ArrayList<File>();
+	StoreFileWriter writer = null;
+
+	try (var merged = new MergingScanner(inputs, this.valueLog)) {
+	    while (merged.next()) {
+		ValuePointer pointer = merged.getPointer();
+		if (pointer == null && isTombstone(merged.getValue()) && isBaseLevelForKey(levels, outputLevel, merged.getKey(), levelPointers)) {
+		    droppedTombstones++;
+		    continue;
+		}
+		if (writer == null) {
+		    File output = this.newStoreFile(PRIMARY_PREFIX);
+		    outputs.add(output);
+		    writer = new StoreFileWriter(output, this.valueLog, this.options.getCompression());
+		}
+		if (pointer != null && !relocate.contains(pointer.getFileId())) {
+		    writer.appendPointer(merged.getKey(), pointer);
+		} else {
+		    writer.append(merged.getKey(), merged.getValue());
+		}
+		if (writer.getLength() >= this.options.getTargetFileSize()) {
+		    writer.close();
+		    writer = null;
+		}
+	    }
+	    if (writer != null) {
+		writer.close();
+	    }
+	} catch (Exception e) {
+	    for (File output: outputs) {
+		output.delete();
+		StoreFileWriter.temporaryFile(output).delete();
+	    }
+	    throw e;
+	}
+
+	if (droppedTombstones > 0) {
+	    logger.info(String.format("Dropped %d tombstones", droppedTombstones));
+	}
+
+	long sequence = 0;
+
+	for (StoreFileReader input: inputs) {
+	    sequence = Math.max(sequence, this.manifest.get(input.getFile().getName()).getSequence());
+	}
+
+	var added = new ArrayList<StoreFileMetadata>();
+
+	for (File output: outputs) {
+	    added.add(this.describeStoreFile(output, outputLevel, sequence));
+	}
+
+	this.installStoreFiles(added, this.getNames(inputs), 0);
+    }
+
+    /**
+     * @return whether no level deeper than outputLevel has a file covering
+     *         key. Keys must be passed in increasing order; levelPointers
+     *         remembers how far each level has been scanned.
+     */
+    private static boolean isBaseLevelForKey(List<List<StoreFileReader>> levels, int outputLevel, String key, int[] levelPointers) {
+
+	for (int level = outputLevel + 1; level < NUM_LEVELS; level++) {
+
+	    List<StoreFileReader> files = levels.get(level);
+
+	    while (levelPointers[level] < files.size()) {
+		StoreFileReader reader = files.get(levelPointers[level]);
+		if (reader.getLastKey() != null && key.compareTo(reader.getLastKey()) <= 0) {
+		    if (key.compareTo(reader.getFirstKey()) >= 0) {
+			return false;
+		    }
+		    break;
+		}
+		levelPointers[level]++;
+	    }
+	}
+
+	return true;
+    }
+
+    private void moveToLevel(StoreFileReader reader, int level) throws IOException {
+
+	String name = reader.getFile().getName();
+
+	logger.info(String.format("Moving %s to level %d", name, level));
+
+	this.installStoreFiles(List.of(this.manifest.get(name).withLevel(level)), List.of(name), 0);
+    }
+
+    /**
+     * @return the cache of store file blocks shared by every reader
+     */
+    public ShardedCache<Long, byte[]> getBlockCache() {
+	return this.blockCache;
+    }
+
+    /**
+     * @return the number of primary store files on level
+     */
+    public int getNumFilesAtLevel(int level) {
+	return this.storeFileLevels.get(PRIMARY_PREFIX).get(level).size();
+    }
+
+    /**
+     * @return the live store files with prefix, oldest first, so a server
+     *         that numbers them in the order they arrive gives them the
+     *         same precedence
+     */
+    public File[] getStoreFiles(String prefix) {
+
+	var files = new ArrayList<File>();
+	List<List<StoreFileReader>> levels = this.storeFileLevels.get(prefix);
+
+	for (int level = NUM_LEVELS - 1; level >= 0; level--) {
+	    List<StoreFileReader> readers = levels.get(level);
+	    for (int i = readers.size() - 1; i >= 0; i--) {
+		files.add(readers.get(i).getFile());
+	    }
+	}
 
+	return files.toArray(new File[0]);
     }
 
+    /**
+     * Hands the primary keys outside serverRange off to a new server as
+     * PartitionedKVServerStoreFile_ files without compacting first. Store
+     * files are ordered by hash bucket, so most of them lie on one side of
+     * serverRange: files entirely outside it are handed off whole, files
+     * entirely inside it are left untouched, and only the files a boundary
+     * of serverRange falls in are split key by key. The part of a split
+     * file that stays keeps the file's level and number, and so its
+     * precedence. Files are visited oldest first, deepest level first, so
+     * the handed off files are numbered in the order the new server has to
+     * install them in (see getPartitionedFiles).
+     * @param serverRange key range this server keeps, or null to hand off
+     *           every key
+     */
     public void partitionStoreFilesByKeyRange(byte[] serverHash, KeyRange serverRange) throws Exception {
-        
-	File[] storeFiles = this.filterFilesByPrefix("KVServerStoreFile_");
-
-	try (var leaveWriter = new LimitedKVBufferedWriter(this.dataDirectory, "PartitionedKVServerStoreFile_", this.cacheSize);
-	    var stayWriter = new LimitedKVBufferedWriter(this.dataDirectory, "KVServerStoreFile_", this.cacheSize)) {
-	    
-	    for (File file: storeFiles) {
-		try (var scanner = new Scanner(file)) {
-		    scanner.useDelimiter("\r\n");
-		    while (scanner.hasNext()) {
-			String key = scanner.next();
-			String value = scanner.next();
-
-			MessageDigest md = MessageDigest.getInstance("MD5");
-			md.update(key.getBytes());
-			byte[] keyDigest = md.digest();
-
-			if (serverRange == null || !serverRange.withinKeyRange(keyDigest)) {
-			    leaveWriter.writeKV(key, value);		
+
+	List<List<StoreFileReader>> levels = this.storeFileLevels.get(PRIMARY_PREFIX);
+	var staying = new ArrayList<StoreFileMetadata>();
+	var partitioned = new ArrayList<String>();
+	int handedOff = 0;
+
+	for (int level = NUM_LEVELS - 1; level >= 0; level--) {
+
+	    List<StoreFileReader> readers = levels.get(level);
+
+	    for (int i = readers.size() - 1; i >= 0; i--) {
+
+		StoreFileReader reader = readers.get(i);
+
+		if (reader.getFirstKey() == null) {
+		    continue;
+		}
+
+		boolean split = serverRange != null && HashBuckets.isSplitBy(serverRange, HashBuckets.bucketOf(reader.getFirstKey()), HashBuckets.bucketOf(reader.getLastKey()));
+
+		if (!split && serverRange != null && HashBuckets.withinKeyRange(serverRange, HashBuckets.bucketOf(reader.getFirstKey()))) {
+		    continue;
+		}
+
+		String name = reader.getFile().getName();
+		partitioned.add(name);
+
+		if (!split) {
+		    this.handOffStoreFile(reader);
+		    handedOff++;
+		    continue;
+		}
+
+		var stayWriter = new LimitedKVBufferedWriter(this.dataDirectory, PRIMARY_PREFIX, this.cacheSize, this.manifest, this.valueLog, this.options.getCompression());
+		var leaveWriter = new LimitedKVBufferedWriter(this.dataDirectory, PARTITIONED_PREFIX, this.cacheSize, this.manifest, null, this.options.getCompression());
+
+		// Values in the value log that stay are kept as the pointers
+		// they are; only those handed off are read, to be inlined.
+		try (stayWriter; leaveWriter; var scanner = reader.scanner()) {
+		    while (scanner.next()) {
+			if (HashBuckets.withinKeyRange(serverRange, scanner.getKey())) {
+			    if (scanner.getPointer() != null) {
+				stayWriter.writePointer(scanner.getKey(), scanner.getPointer());
+			    } else {
+				stayWriter.writeKV(scanner.getKey(), scanner.getValue());
+			    }
 			} else {
-			    stayWriter.writeKV(key, value);
+			    leaveWriter.writeKV(scanner.getKey(), scanner.getValue());
 			}
 		    }
-		    file.delete();
 		}
+
+		StoreFileMetadata metadata = this.manifest.get(name);
+
+		for (File file: stayWriter.getFiles()) {
+		    StoreFileReader stayReader = this.getReader(file);
+		    staying.add(new StoreFileMetadata(file.getName(), level, metadata.getNumber(), metadata.getSequence(), stayReader.getFirstKey(), stayReader.getLastKey()));
+		}
+	    }
+	}
+
+	logger.info(String.format("Handed off %d store files whole and split %d", handedOff, partitioned.size() - handedOff));
+
+	this.installStoreFiles(staying, partitioned, 0);
+    }
+
+    /**
+     * Hands a whole primary file off as a PartitionedKVServerStoreFile_.
+     */
+    private void handOffStoreFile(StoreFileReader reader) throws IOException {
+	this.linkStoreFile(reader, PARTITIONED_PREFIX);
+    }
+
+    /**
+     * @return a new file with prefix holding the same records as reader's
+     *         file, linked to it rather than copied where the file system
+     *         allows. A file holding value pointers is copied with its
+     *         values inline, since other servers cannot read this server's
+     *         value log.
+     */
+    private File linkStoreFile(StoreFileReader reader, String prefix) throws IOException {
+
+	if (reader.hasValuePointers()) {
+	    return this.exportStoreFile(reader.getFile(), prefix);
+	}
+
+	File handedOff = this.newStoreFile(prefix);
+	Path temporary = StoreFileWriter.temporaryFile(handedOff).toPath();
+
+	try {
+	    Files.delete(temporary);
+	    Files.createLink(temporary, reader.getFile().toPath());
+	} catch (IOException | UnsupportedOperationException e) {
+	    Files.copy(reader.getFile().toPath(), temporary, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	StoreFileWriter.publish(handedOff);
+
+	return handedOff;
+    }
+
+    /**
+     * Pins the live primary store files so they can be sent to other
+     * servers while flushes and compactions carry on: every file is linked
+     * as a SnapshotKVServerStoreFile_, which compaction never deletes. Must
+     * not race with compaction.
+     * @return the snapshot, oldest first; the caller passes it to
+     *         deleteSnapshot once it has been sent
+     */
+    public File[] snapshotStoreFiles() throws IOException {
+
+	var snapshot = new ArrayList<File>();
+
+	try {
+	    for (File file: this.getStoreFiles(PRIMARY_PREFIX)) {
+		snapshot.add(this.linkStoreFile(this.getReader(file), SNAPSHOT_PREFIX));
+	    }
+	} catch (IOException ioe) {
+	    this.deleteSnapshot(snapshot.toArray(new File[0]));
+	    throw ioe;
+	}
+
+	return snapshot.toArray(new File[0]);
+    }
+
+    public void deleteSnapshot(File[] snapshot) {
+	for (File file: snapshot) {
+	    this.deleteStoreFile(file);
+	}
+    }
+
+    /**
+     * @return the PartitionedKVServerStoreFile_ files oldest first, the
+     *         order the receiving server has to install them in
+     */
+    public File[] getPartitionedFiles() {
+
+	var files = new ArrayList<File>();
+
+	for (File file: this.filterFilesByPrefix(PARTITIONED_PREFIX)) {
+	    if (file.getName().endsWith(".sst")) {
+		files.add(file);
 	    }
 	}
+
+	files.sort(Comparator.comparingLong(file -> parseFileNumber(file.getName())));
+
+	return files.toArray(new File[0]);
     }
 
     public void clearPartitionedFiles() {
 
         logger.info("Clearing PartitionedKVServerStoreFiles");
 
-	File[] partitionedFiles = this.filterFilesByPrefix("PartitionedKVServerStoreFile_");
+	File[] partitionedFiles = this.filterFilesByPrefix(PARTITIONED_PREFIX);
 
         for (File file: partitionedFiles) {
-            file.delete();
+	    this.deleteStoreFile(file);
         }
 
     }
@@ -149,24 +1095,33 @@ public class ServerFileManager {
 
 	if (status == ServerMessage.StatusType.REPLICATE_KV_1_FIN) {
 	    logger.info("Clearing old Replica1 logs");
-	    replicaPrefix = "Replica1KVServerStoreFile_";
+	    replicaPrefix = REPLICA_1_PREFIX;
 	} else {
 	    logger.info("Clearing old Replica2 logs");
-	    replicaPrefix = "Replica2KVServerStoreFile_";
+	    replicaPrefix = REPLICA_2_PREFIX;
 	}
 
-	File[] replicatedFiles = this.filterFilesByPrefix(replicaPrefix);
+	try {
 
-	for (File file: replicatedFiles) {
-	    file.delete();
-	}
+	    var replaced = new ArrayList<String>();
+
+	    for (File file: this.getStoreFiles(replicaPrefix)) {
+		replaced.add(file.getName());
+	    }
 
-	File[] newReplicatedFiles = this.filterFilesByPrefix("New" + replicaPrefix);
+	    var received = new ArrayList<StoreFileMetadata>();
 
-	for (File file: newReplicatedFiles) {
-	    String filename = file.getName();
-	    File newFile = new File(this.dataDirectory, filename.substring(3));
-	    file.renameTo(newFile);
+	    for (File file: this.filterFilesByPrefix("New" + replicaPrefix)) {
+		String filename = file.getName();
+		File newFile = new File(this.dataDirectory, filename.substring(3));
+		this.renameStoreFile(file, newFile);
+		received.add(this.describeStoreFile(newFile, 0, 0));
+	    }
+
+	    this.installStoreFiles(received, replaced, 0);
+
+	} catch (IOException ioe) {
+	    logger.error("Failed to install new " + replicaPrefix + ": " + ioe.getMessage());
 	}
 
 	return;
@@ -179,108 +1134,196 @@ public class ServerFileManager {
 
 	KeyRange serverKeyRange = metadata.get(serverRingPosition);
 
-	File[] replicatedFiles = this.filterFilesByPrefix("Replica");
+	var replicatedFiles = new ArrayList<File>();
+	replicatedFiles.addAll(Arrays.asList(this.getStoreFiles(REPLICA_1_PREFIX)));
+	replicatedFiles.addAll(Arrays.asList(this.getStoreFiles(REPLICA_2_PREFIX)));
 
-	try (var recoveryWriter = new LimitedKVBufferedWriter(this.dataDirectory, "KVServerStoreFile_", this.cacheSize)) {
+	var recovered = new ArrayList<StoreFileMetadata>();
+
+	var recoveryWriter = new LimitedKVBufferedWriter(this.dataDirectory, PRIMARY_PREFIX, this.cacheSize, this.manifest, this.valueLog, this.options.getCompression());
+
+	try (recoveryWriter) {
 	    for (File file: replicatedFiles) {
-		try (var scanner = new Scanner(file)) {
-		    scanner.useDelimiter("\r\n");
-		    while (scanner.hasNext()) {
-			String key = scanner.next();
-			String value = scanner.next();
-
-			MessageDigest md = MessageDigest.getInstance("MD5");
-			md.update(key.getBytes());
-			byte[] keyDigest = md.digest();
-
-			if (serverKeyRange.withinKeyRange(keyDigest)) {
-			    recoveryWriter.writeKV(key, value);		
+
+		StoreFileReader reader = this.getReader(file);
+
+		if (reader.getFirstKey() == null) {
+		    continue;
+		}
+
+		int fromBucket = HashBuckets.bucketOf(reader.getFirstKey());
+		int toBucket = HashBuckets.bucketOf(reader.getLastKey());
+
+		if (!HashBuckets.isSplitBy(serverKeyRange, fromBucket, toBucket) && !HashBuckets.withinKeyRange(serverKeyRange, fromBucket)) {
+		    continue;
+		}
+
+		try (var scanner = reader.scanner()) {
+		    while (scanner.next()) {
+			if (HashBuckets.withinKeyRange(serverKeyRange, scanner.getKey())) {
+			    recoveryWriter.writeKV(scanner.getKey(), scanner.getValue());
 			}
 		    }
 		}
 	    }
 	}
 
+	for (File file: recoveryWriter.getFiles()) {
+	    recovered.add(this.describeStoreFile(file, 0, 0));
+	}
+
+	this.installStoreFiles(recovered, List.of(), 0);
+
     };
 
 
+    /**
+     * Looks key up in the live store files with prefix, newest first.
+     * @return the newest value of key, or null if it has none or its
+     *         newest record is a tombstone
+     */
     public String searchForKeyInFiles(String key, String prefix) throws Exception {
-	
-	File[] files = this.getFilesInReverseChronologicalOrder(prefix);
-
-        for (File file: files) {
-	    try (var scanner = new Scanner(file)) {
-		scanner.useDelimiter("\r\n");
-		while (scanner.hasNext()) {
-		    String testKey = scanner.next();
-		    String testValue = scanner.next();
-		    if (key.equals(testKey)) {
-			return testValue;
+
+	Optional<String> value = this.findKeyInFiles(key, prefix);
+
+	return value == null ? null : value.orElse(null);
+    }
+
+    /**
+     * Looks key up like searchForKeyInFiles(), telling a deleted key from
+     * one the files do not have.
+     * @return the newest value of key, TOMBSTONE if its newest record is a
+     *         tombstone, or null if it has none
+     */
+    public Optional<String> findKeyInFiles(String key, String prefix) throws Exception {
+
+	this.storeFilesLock.readLock().lock();
+
+	try {
+
+	    List<List<StoreFileReader>> levels = this.storeFileLevels.get(prefix);
+
+	    if (levels == null) {
+		throw new IllegalArgumentException("Error: " + prefix + " does not name a set of store files");
+	    }
+
+	    String storedKey = HashBuckets.toStoredKey(key);
+
+	    for (List<StoreFileReader> level: levels) {
+		for (StoreFileReader reader: level) {
+		    if (reader.covers(storedKey)) {
+			Optional<String> value = reader.get(storedKey);
+			if (value != null) {
+			    return value;
+			}
 		    }
 		}
 	    }
-        }
 
-	return "null";
+	} finally {
+	    this.storeFilesLock.readLock().unlock();
+	}
+
+	return null;
 
     }
 
-    public void writeFileFromFileContents(String prefix, byte[][] fileContents) {
+    /**
+     * Writes a store file sent by another server straight from channel to
+     * disk, so it is never held in memory, and installs it if prefix names
+     * live files.
+     * @param length number of bytes of the file left on channel
+     */
+    public void receiveStoreFile(String prefix, ReadableByteChannel channel, long length) throws IOException {
+
+	File newFile = this.newStoreFile(prefix);
+	File temporaryFile = StoreFileWriter.temporaryFile(newFile);
+
+	try {
+	    try (FileChannel fileChannel = FileChannel.open(temporaryFile.toPath(), StandardOpenOption.WRITE)) {
+		long position = 0;
+		while (position < length) {
+		    long transferred = fileChannel.transferFrom(channel, position, length - position);
+		    if (transferred == 0) {
+			throw new EOFException(String.format("Error: Connection closed after %d of %d bytes of %s", position, length, newFile.getName()));
+		    }
+		    position += transferred;
+		}
+		fileChannel.force(false);
+	    }
+	    StoreFileWriter.publish(newFile);
+	} catch (IOException ioe) {
+	    temporaryFile.delete();
+	    throw ioe;
+	}
 
-	File newFile = new File(this.dataDirectory, prefix + Instant.now().toString() + ".txt"); 
-	try (FileOutputStream fileOutput = new FileOutputStream(newFile, true)) {
-	    for (byte[] b: fileContents) {
-		fileOutput.write(b); 
-	    } 
-	} catch (Exception e) {
-	    logger.error("Failed to create new " + prefix + ": " + e.getMessage()); 
+	if (getLivePrefix(newFile.getName()) != null) {
+	    this.installStoreFiles(List.of(this.describeStoreFile(newFile, 0, 0)), List.of(), 0);
 	}
     }
 
-    public byte[][] fileTofileContentsMatrix(File file) {
-	var fileContents = new ArrayList<byte[]>();
-	try (FileInputStream fileInput = new FileInputStream(file)) {
+    /**
+     * @return file, or a temporary copy of it to send in its place if it
+     *         holds value pointers, since other servers cannot read this
+     *         server's value log; the caller deletes a copy once it is sent
+     */
+    public File exportForTransfer(File file) throws IOException {
 
-	    var numMaxByteArrays = file.length() / 10000;
+	if (getLivePrefix(file.getName()) != null && this.getReader(file).hasValuePointers()) {
+	    return this.exportStoreFile(file, "Export" + getLivePrefix(file.getName()));
+	}
 
-	    for (int i = 0; i < numMaxByteArrays; i++) {
-		var b = fileInput.readNBytes(10000);
-		fileContents.add(b);
-	    }
+	return file;
+    }
 
-	    var leftoverByteArraySize = (int) file.length() % 10000;
+    /**
+     * @return a copy of a store file with every value inline, named with
+     *         prefix
+     */
+    private File exportStoreFile(File file, String prefix) throws IOException {
 
-	    if (leftoverByteArraySize != 0) {
-		var b = fileInput.readNBytes(leftoverByteArraySize);
-		fileContents.add(b);
-	    }
+	File exported = this.newStoreFile(prefix);
 
-	} catch (Exception e) {
-	    logger.error("Failure converting file to byte matrix:" + e.getMessage());	
+	try (var writer = new StoreFileWriter(exported, null, this.options.getCompression());
+	    var scanner = this.getReader(file).scanner()) {
+	    while (scanner.next()) {
+		writer.append(scanner.getKey(), scanner.getValue());
+	    }
 	}
 
-	byte[][] fileContentsByteMatrix = new byte[fileContents.size()][];
-	for (int i = 0; i < fileContentsByteMatrix.length; i++) {
-	    fileContentsByteMatrix[i] = fileContents.get(i);
+	return exported;
+    }
+
+    private StoreFileReader getReader(File file) throws IOException {
+
+	StoreFileReader reader = this.storeFileReaders.get(file.getName());
+
+	if (reader == null) {
+	    reader = new StoreFileReader(file, this.valueLog, this.blockCache, this.options.getMmapReads());
+	    this.storeFileReaders.put(file.getName(), reader);
 	}
 
-	return fileContentsByteMatrix;
-	
+	return reader;
     }
 
-    public File[] getFilesInReverseChronologicalOrder(String prefix) {
-	
-	File[] files = filterFilesByPrefix(prefix);
+    private void deleteStoreFile(File file) {
+	this.forgetReader(file.getName());
+	file.delete();
+    }
 
-        Arrays.sort(files, new Comparator<File>() {
-            public int compare(File f1, File f2) {
-                return Long.valueOf(f2.lastModified()).compareTo(f1.lastModified());
-            }
-        });
+    private void renameStoreFile(File file, File newFile) {
+	this.forgetReader(file.getName());
+	this.forgetReader(newFile.getName());
+	file.renameTo(newFile);
+    }
 
-	return files;
+    private void forgetReader(String name) {
 
+	StoreFileReader reader = this.storeFileReaders.remove(name);
 
+	if (reader != null) {
+	    reader.release();
+	}
     }
 
     public File[] filterFilesByPrefix(String prefix) {
@@ -0,0 +1,236 @@
+package app_kvServer.util;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+import app_kvServer.IKVServer.CacheStrategy;
+
+/**
+ * Bounded in-memory cache split into independently locked shards, so
+ * concurrent readers rarely contend. Each entry has a weight (bytes for
+ * blocks, 1 for rows) and every shard evicts under the configured strategy
+ * once its share of the capacity is used up:
+ *
+ *   FIFO evicts the entry inserted longest ago
+ *   LRU  evicts the entry read or inserted longest ago
+ *   LFU  evicts the entry read least often, oldest first among ties
+ *   None caches nothing
+ *
+ * Hits and misses are counted across all shards.
+ */
+public class ShardedCache<K, V> {
+
+    private static final int MAX_SHARDS = 16;
+    private static final long MIN_SHARD_CAPACITY = 64;
+
+    private static class Entry<V> {
+	final V value;
+	final long weight;
+	int frequency;
+
+	Entry(V value, long weight) {
+	    this.value = value;
+	    this.weight = weight;
+	    this.frequency = 1;
+	}
+    }
+
+    private static class Shard<K, V> {
+
+	private final CacheStrategy strategy;
+	private final long capacity;
+	private final LinkedHashMap<K, Entry<V>> entries;
+	private final TreeMap<Integer, LinkedHashSet<K>> frequencies;
+	private long weight;
+
+	Shard(CacheStrategy strategy, long capacity) {
+	    this.strategy = strategy;
+	    this.capacity = capacity;
+	    this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, strategy == CacheStrategy.LRU);
+	    this.frequencies = new TreeMap<Integer, LinkedHashSet<K>>();
+	    this.weight = 0;
+	}
+
+	synchronized V get(K key) {
+
+	    Entry<V> entry = this.entries.get(key);
+
+	    if (entry == null) {
+		return null;
+	    }
+
+	    if (this.strategy == CacheStrategy.LFU) {
+		this.removeFrequency(key, entry.frequency);
+		entry.frequency++;
+		this.frequencies.computeIfAbsent(entry.frequency, f -> new LinkedHashSet<K>()).add(key);
+	    }
+
+	    return entry.value;
+	}
+
+	synchronized void put(K key, V value, long weight) {
+
+	    this.remove(key);
+
+	    if (weight > this.capacity) {
+		return;
+	    }
+
+	    while (this.weight + weight > this.capacity) {
+		this.remove(this.pickVictim());
+	    }
+
+	    this.entries.put(key, new Entry<V>(value, weight));
+	    this.weight += weight;
+
+	    if (this.strategy == CacheStrategy.LFU) {
+		this.frequencies.computeIfAbsent(1, f -> new LinkedHashSet<K>()).add(key);
+	    }
+	}
+
+	private K pickVictim() {
+
+	    if (this.strategy == CacheStrategy.LFU) {
+		return this.frequencies.firstEntry().getValue().iterator().next();
+	    }
+
+	    return this.entries.keySet().iterator().next();
+	}
+
+	synchronized void remove(K key) {
+
+	    Entry<V> entry = this.entries.remove(key);
+
+	    if (entry == null) {
+		return;
+	    }
+
+	    this.weight -= entry.weight;
+
+	    if (this.strategy == CacheStrategy.LFU) {
+		this.removeFrequency(key, entry.frequency);
+	    }
+	}
+
+	private void removeFrequency(K key, int frequency) {
+
+	    LinkedHashSet<K> keys = this.frequencies.get(frequency);
+	    keys.remove(key);
+
+	    if (keys.isEmpty()) {
+		this.frequencies.remove(frequency);
+	    }
+	}
+
+	synchronized int size() {
+	    return this.entries.size();
+	}
+
+	synchronized void clear() {
+	    this.entries.clear();
+	    this.frequencies.clear();
+	    this.weight = 0;
+	}
+    }
+
+    private final CacheStrategy strategy;
+    private final ToLongFunction<V> weigher;
+    private final Shard<K, V>[] shards;
+
+    private final LongAdder hits;
+    private final LongAdder misses;
+
+    /**
+     * @param capacity total weight the cache may hold
+     * @param weigher weight of a value; a value heavier than a shard's
+     *           share of the capacity is never cached
+     */
+    public ShardedCache(CacheStrategy strategy, long capacity, ToLongFunction<V> weigher) {
+
+	this.strategy = strategy;
+	this.weigher = weigher;
+
+	int numShards = Integer.highestOneBit((int) Math.max(1, Math.min(MAX_SHARDS, capacity / MIN_SHARD_CAPACITY)));
+
+	@SuppressWarnings("unchecked")
+	Shard<K, V>[] shards = (Shard<K, V>[]) new Shard<?, ?>[numShards];
+
+	for (int i = 0; i < numShards; i++) {
+	    shards[i] = new Shard<K, V>(strategy, capacity / numShards);
+	}
+
+	this.shards = shards;
+
+	this.hits = new LongAdder();
+	this.misses = new LongAdder();
+    }
+
+    private Shard<K, V> shardFor(K key) {
+	int hash = key.hashCode();
+	hash ^= hash >>> 16;
+	return this.shards[hash & (this.shards.length - 1)];
+    }
+
+    /**
+     * @return the cached value of key, or null on a miss
+     */
+    public V get(K key) {
+
+	if (this.strategy == CacheStrategy.None) {
+	    return null;
+	}
+
+	V value = this.shardFor(key).get(key);
+
+	if (value == null) {
+	    this.misses.increment();
+	} else {
+	    this.hits.increment();
+	}
+
+	return value;
+    }
+
+    public void put(K key, V value) {
+	if (this.strategy != CacheStrategy.None) {
+	    this.shardFor(key).put(key, value, this.weigher.applyAsLong(value));
+	}
+    }
+
+    public void remove(K key) {
+	if (this.strategy != CacheStrategy.None) {
+	    this.shardFor(key).remove(key);
+	}
+    }
+
+    public void clear() {
+	for (Shard<K, V> shard: this.shards) {
+	    shard.clear();
+	}
+    }
+
+    public int size() {
+
+	int size = 0;
+
+	for (Shard<K, V> shard: this.shards) {
+	    size += shard.size();
+	}
+
+	return size;
+    }
+
+    public CacheStrategy getStrategy() {
+	return this.strategy;
+    }
+
+    public long getHitCount() {
+	return this.hits.sum();
+    }
+
+    public long getMissCount() {
+	return this.misses.sum();
+    }
+
+}
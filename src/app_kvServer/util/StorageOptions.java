@@ -0,0 +1,275 @@
+package app_kvServer.util;
+
+import app_kvServer.IKVServer.CacheStrategy;
+
+/**
+ * Tunables for the storage engine, and the server in front of it, that are
+ * fixed for the lifetime of a ServerFileManager.
+ */
+public class StorageOptions {
+
+    /**
+     * How store file blocks are compressed. Each block records its own
+     * codec, so files written under either setting can be read by every
+     * server.
+     */
+    public enum Compression {
+	NONE,
+	DEFLATE
+    }
+
+    /**
+     * How a primary keeps its replicas up to date. COPY resends every
+     * store file on each replication tick; WAL streams the WAL record of
+     * each write as it happens and only sends the store files to bring a
+     * replica up to date when it connects.
+     */
+    public enum Replication {
+	COPY,
+	WAL
+    }
+
+    /**
+     * How client connections are served. THREADS gives every connection a
+     * thread that blocks reading it; VIRTUAL does the same, and runs
+     * server-to-server connections too, on virtual threads where the JVM
+     * has them; SELECTOR multiplexes them over a few I/O threads and runs
+     * requests on a pool of worker threads.
+     */
+    public enum FrontEnd {
+	THREADS,
+	VIRTUAL,
+	SELECTOR
+    }
+
+    private WriteAheadLog.Durability walDurability;
+    private long walSyncInterval;
+    private long walSegmentSize;
+    private int level0CompactionTrigger;
+    private long levelBaseSize;
+    private int levelSizeMultiplier;
+    private long targetFileSize;
+    private CacheStrategy cacheStrategy;
+    private long blockCacheSize;
+    private boolean mmapReads;
+    private int valueLogThreshold;
+    private long valueLogFileSize;
+    private double valueLogGarbageRatio;
+    private Compression compression;
+    private Replication replication;
+    private FrontEnd frontEnd;
+    private int ioThreads;
+    private int workerThreads;
+
+    public StorageOptions() {
+	this.walDurability = WriteAheadLog.Durability.BUFFERED;
+	this.walSyncInterval = 100L;
+	this.walSegmentSize = 4L * 1024 * 1024;
+	this.level0CompactionTrigger = 4;
+	this.levelBaseSize = 10L * 1024 * 1024;
+	this.levelSizeMultiplier = 10;
+	this.targetFileSize = 2L * 1024 * 1024;
+	this.cacheStrategy = CacheStrategy.LRU;
+	this.blockCacheSize = 8L * 1024 * 1024;
+	this.mmapReads = false;
+	this.valueLogThreshold = 0;
+	this.valueLogFileSize = 64L * 1024 * 1024;
+	this.valueLogGarbageRatio = 0.5;
+	this.compression = Compression.NONE;
+	this.replication = Replication.COPY;
+	this.frontEnd = FrontEnd.THREADS;
+	this.ioThreads = 2;
+	this.workerThreads = 16;
+    }
+
+    public WriteAheadLog.Durability getWalDurability() {
+	return this.walDurability;
+    }
+
+    public void setWalDurability(WriteAheadLog.Durability walDurability) {
+	this.walDurability = walDurability;
+    }
+
+    public long getWalSyncInterval() {
+	return this.walSyncInterval;
+    }
+
+    public void setWalSyncInterval(long walSyncInterval) {
+	this.walSyncInterval = walSyncInterval;
+    }
+
+    public long getWalSegmentSize() {
+	return this.walSegmentSize;
+    }
+
+    public void setWalSegmentSize(long walSegmentSize) {
+	this.walSegmentSize = walSegmentSize;
+    }
+
+    /**
+     * Number of level 0 store files (flushed memtables, which may overlap)
+     * that triggers a compaction into level 1.
+     */
+    public int getLevel0CompactionTrigger() {
+	return this.level0CompactionTrigger;
+    }
+
+    public void setLevel0CompactionTrigger(int level0CompactionTrigger) {
+	this.level0CompactionTrigger = level0CompactionTrigger;
+    }
+
+    /**
+     * Total size in bytes level 1 may grow to before one of its files is
+     * compacted into level 2. Each deeper level may hold
+     * levelSizeMultiplier times as much as the one above it.
+     */
+    public long getLevelBaseSize() {
+	return this.levelBaseSize;
+    }
+
+    public void setLevelBaseSize(long levelBaseSize) {
+	this.levelBaseSize = levelBaseSize;
+    }
+
+    public int getLevelSizeMultiplier() {
+	return this.levelSizeMultiplier;
+    }
+
+    public void setLevelSizeMultiplier(int levelSizeMultiplier) {
+	this.levelSizeMultiplier = levelSizeMultiplier;
+    }
+
+    /**
+     * Size in bytes at which compaction starts a new output file.
+     */
+    public long getTargetFileSize() {
+	return this.targetFileSize;
+    }
+
+    public void setTargetFileSize(long targetFileSize) {
+	this.targetFileSize = targetFileSize;
+    }
+
+    /**
+     * Eviction strategy of the in-memory read caches; None disables them.
+     */
+    public CacheStrategy getCacheStrategy() {
+	return this.cacheStrategy;
+    }
+
+    public void setCacheStrategy(CacheStrategy cacheStrategy) {
+	this.cacheStrategy = cacheStrategy;
+    }
+
+    /**
+     * Size in bytes of the cache of store file blocks.
+     */
+    public long getBlockCacheSize() {
+	return this.blockCacheSize;
+    }
+
+    public void setBlockCacheSize(long blockCacheSize) {
+	this.blockCacheSize = blockCacheSize;
+    }
+
+    /**
+     * Whether lookups read memory-mapped store files instead of going
+     * through the block cache.
+     */
+    public boolean getMmapReads() {
+	return this.mmapReads;
+    }
+
+    public void setMmapReads(boolean mmapReads) {
+	this.mmapReads = mmapReads;
+    }
+
+    /**
+     * Values of at least this many bytes are kept in the value log and
+     * store files only hold pointers to them. 0 disables the value log.
+     */
+    public int getValueLogThreshold() {
+	return this.valueLogThreshold;
+    }
+
+    public void setValueLogThreshold(int valueLogThreshold) {
+	this.valueLogThreshold = valueLogThreshold;
+    }
+
+    /**
+     * Size in bytes at which the value log starts a new file.
+     */
+    public long getValueLogFileSize() {
+	return this.valueLogFileSize;
+    }
+
+    public void setValueLogFileSize(long valueLogFileSize) {
+	this.valueLogFileSize = valueLogFileSize;
+    }
+
+    /**
+     * Fraction of a value log file that must be garbage before its live
+     * values are moved to the head of the log so it can be deleted.
+     */
+    public double getValueLogGarbageRatio() {
+	return this.valueLogGarbageRatio;
+    }
+
+    public void setValueLogGarbageRatio(double valueLogGarbageRatio) {
+	this.valueLogGarbageRatio = valueLogGarbageRatio;
+    }
+
+    /**
+     * Codec new store file blocks are written with. Compressed blocks are
+     * sent to other servers as they are.
+     */
+    public Compression getCompression() {
+	return this.compression;
+    }
+
+    public void setCompression(Compression compression) {
+	this.compression = compression;
+    }
+
+    public Replication getReplication() {
+	return this.replication;
+    }
+
+    public void setReplication(Replication replication) {
+	this.replication = replication;
+    }
+
+    public FrontEnd getFrontEnd() {
+	return this.frontEnd;
+    }
+
+    public void setFrontEnd(FrontEnd frontEnd) {
+	this.frontEnd = frontEnd;
+    }
+
+    /**
+     * Number of threads the SELECTOR front end reads and writes client
+     * connections on.
+     */
+    public int getIoThreads() {
+	return this.ioThreads;
+    }
+
+    public void setIoThreads(int ioThreads) {
+	this.ioThreads = ioThreads;
+    }
+
+    /**
+     * Number of threads the SELECTOR front end runs client requests on.
+     * Requests may block on the WAL and store files, so there are more of
+     * these than I/O threads.
+     */
+    public int getWorkerThreads() {
+	return this.workerThreads;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+	this.workerThreads = workerThreads;
+    }
+
+}
@@ -0,0 +1,91 @@
+package app_kvServer.util;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * What the manifest records about one live store file.
+ */
+class StoreFileMetadata {
+
+    private final String name;
+    private final int level;
+    private final long number;
+    private final long sequence;
+    private final String firstKey;
+    private final String lastKey;
+
+    /**
+     * @param number generation of the file; higher numbers are newer
+     * @param sequence largest WAL sequence number whose write the file
+     *           holds, or 0 if it did not come from this server's WAL
+     */
+    StoreFileMetadata(String name, int level, long number, long sequence, String firstKey, String lastKey) {
+	this.name = name;
+	this.level = level;
+	this.number = number;
+	this.sequence = sequence;
+	this.firstKey = firstKey;
+	this.lastKey = lastKey;
+    }
+
+    String getName() {
+	return this.name;
+    }
+
+    int getLevel() {
+	return this.level;
+    }
+
+    long getNumber() {
+	return this.number;
+    }
+
+    long getSequence() {
+	return this.sequence;
+    }
+
+    String getFirstKey() {
+	return this.firstKey;
+    }
+
+    String getLastKey() {
+	return this.lastKey;
+    }
+
+    StoreFileMetadata withLevel(int level) {
+	return new StoreFileMetadata(this.name, level, this.number, this.sequence, this.firstKey, this.lastKey);
+    }
+
+    void writeTo(DataOutputStream output) throws IOException {
+
+	output.writeUTF(this.name);
+	output.writeInt(this.level);
+	output.writeLong(this.number);
+	output.writeLong(this.sequence);
+	output.writeBoolean(this.firstKey != null);
+
+	if (this.firstKey != null) {
+	    StoreFileWriter.writeBytes(output, this.firstKey.getBytes(StandardCharsets.UTF_8));
+	    StoreFileWriter.writeBytes(output, this.lastKey.getBytes(StandardCharsets.UTF_8));
+	}
+    }
+
+    static StoreFileMetadata readFrom(DataInputStream input) throws IOException {
+
+	String name = input.readUTF();
+	int level = input.readInt();
+	long number = input.readLong();
+	long sequence = input.readLong();
+	String firstKey = null;
+	String lastKey = null;
+
+	if (input.readBoolean()) {
+	    firstKey = StoreFileReader.readString(input);
+	    lastKey = StoreFileReader.readString(input);
+	}
+
+	return new StoreFileMetadata(name, level, number, sequence, firstKey, lastKey);
+    }
+
+}
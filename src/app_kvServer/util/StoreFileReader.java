@@ -0,0 +1,495 @@
+package app_kvServer.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
+
+/**
+ * Point lookups against a store file written by StoreFileWriter. The Bloom
+ * filter and sparse block index are loaded once when the reader is created,
+ * so a lookup for a key the file does not hold usually costs no I/O, and
+ * any other lookup is a binary search over the index followed by a single
+ * block read, which is served from the shared block cache when the block
+ * has been read recently.
+ *
+ * Alternatively the data blocks can be memory-mapped, in which case a
+ * lookup compares the key against the mapped records in place and only
+ * allocates for the value it returns, leaving caching to the page cache.
+ * Compressed blocks cannot be searched in place and are still inflated
+ * into the block cache. The mapping is dropped by release() once the file
+ * is no longer live.
+ *
+ * Blocks are read with positional reads on one FileChannel that stays open
+ * for the lifetime of the reader and is closed by release(), so lookups on
+ * different threads share it without seeking.
+ *
+ * Values moved to the value log are read from it through the ValueLog the
+ * reader was created with.
+ */
+class StoreFileReader {
+
+    private static final AtomicLong nextCacheId = new AtomicLong(0);
+
+    private final File file;
+    private final int flags;
+
+    private final ValueLog valueLog;
+    private final ShardedCache<Long, byte[]> blockCache;
+    private final long cacheId;
+    private volatile MappedByteBuffer mappedData;
+    private volatile FileChannel channel;
+    private volatile boolean released;
+
+    private final BloomFilter filter;
+
+    private final String[] blockLastKeys;
+    private final long[] blockOffsets;
+    private final int[] blockLengths;
+
+    private final long dataLength;
+    private final long fileLength;
+    private final String firstKey;
+
+    private volatile Map<Long, Long> valueLogReferences;
+
+    /**
+     * @param blockCache cache shared by every reader, keyed by a reader id
+     *           and block number
+     * @param mapped whether to memory-map the data blocks instead of
+     *           reading them through the block cache
+     */
+    public StoreFileReader(File file, ValueLog valueLog, ShardedCache<Long, byte[]> blockCache, boolean mapped) throws IOException {
+
+	this.file = file;
+	this.valueLog = valueLog;
+	this.blockCache = blockCache;
+	this.cacheId = nextCacheId.incrementAndGet();
+
+	this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+	try {
+
+	    long fileLength = this.channel.size();
+	    this.fileLength = fileLength;
+
+	    if (fileLength < StoreFileWriter.FOOTER_SIZE) {
+		throw new IOException("Error: Store file " + file.getName() + " is too short");
+	    }
+
+	    ByteBuffer footer = ByteBuffer.wrap(this.read(fileLength - StoreFileWriter.FOOTER_SIZE, StoreFileWriter.FOOTER_SIZE));
+
+	    long filterOffset = footer.getLong();
+	    int filterLength = footer.getInt();
+	    long indexOffset = footer.getLong();
+	    int indexLength = footer.getInt();
+	    int flags = footer.getInt();
+	    int version = footer.getInt();
+	    long magic = footer.getLong();
+
+	    if (magic != StoreFileWriter.MAGIC || version != StoreFileWriter.FORMAT_VERSION) {
+		throw new IOException("Error: " + file.getName() + " is not a valid store file");
+	    }
+
+	    this.flags = flags;
+
+	    byte[] filterContents = this.read(filterOffset, filterLength);
+
+	    this.filter = BloomFilter.readFrom(new DataInputStream(new ByteArrayInputStream(filterContents)));
+
+	    byte[] index = this.read(indexOffset, indexLength);
+
+	    var lastKeys = new ArrayList<String>();
+	    var offsets = new ArrayList<Long>();
+	    var lengths = new ArrayList<Integer>();
+
+	    var indexInput = new DataInputStream(new ByteArrayInputStream(index));
+
+	    while (indexInput.available() > 0) {
+		lastKeys.add(readString(indexInput));
+		offsets.add(indexInput.readLong());
+		lengths.add(indexInput.readInt());
+	    }
+
+	    this.blockLastKeys = lastKeys.toArray(new String[0]);
+	    this.blockOffsets = offsets.stream().mapToLong(Long::longValue).toArray();
+	    this.blockLengths = lengths.stream().mapToInt(Integer::intValue).toArray();
+	    this.dataLength = filterOffset;
+
+	    if (mapped && this.dataLength <= Integer.MAX_VALUE) {
+		this.mappedData = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, this.dataLength);
+	    }
+
+	    if (this.blockLastKeys.length > 0) {
+		this.firstKey = readString(new DataInputStream(new ByteArrayInputStream(this.loadBlock(0))));
+	    } else {
+		this.firstKey = null;
+	    }
+
+	} catch (IOException | RuntimeException e) {
+	    this.channel.close();
+	    throw e;
+	}
+    }
+
+    /**
+     * @return the value stored for key, ServerFileManager.TOMBSTONE if the
+     *         file records that key as deleted, or null if this file does
+     *         not contain it
+     */
+    public Optional<String> get(String key) throws IOException {
+
+	if (!this.filter.mightContain(key)) {
+	    return null;
+	}
+
+	int block = this.findBlock(key);
+
+	if (block < 0) {
+	    return null;
+	}
+
+	MappedByteBuffer mappedData = this.mappedData;
+
+	if (mappedData != null) {
+
+	    int start = (int) this.blockOffsets[block];
+	    int end = start + this.blockLengths[block];
+
+	    if (mappedData.get(start) == StoreFileWriter.CODEC_NONE) {
+		return this.getMapped(mappedData, start + StoreFileWriter.BLOCK_HEADER_SIZE, end, key.getBytes(StandardCharsets.UTF_8));
+	    }
+	}
+
+	byte[] blockContents = this.readBlock(block);
+
+	var blockInput = new DataInputStream(new ByteArrayInputStream(blockContents));
+
+	while (blockInput.available() > 0) {
+	    String testKey = readString(blockInput);
+	    int valueLength = blockInput.readInt();
+
+	    int comparison = testKey.compareTo(key);
+
+	    if (comparison == 0) {
+		if (valueLength == StoreFileWriter.POINTER_LENGTH) {
+		    return Optional.of(this.valueLog.read(ValuePointer.readFrom(blockInput)));
+		}
+		return readValue(blockInput, valueLength);
+	    } else if (comparison > 0) {
+		return null;
+	    }
+
+	    blockInput.skipBytes(storedValueLength(valueLength));
+	}
+
+	return null;
+    }
+
+    /**
+     * Scans the raw records of a mapped block for key using absolute reads,
+     * so concurrent lookups can share the buffer.
+     */
+    private Optional<String> getMapped(MappedByteBuffer mappedData, int position, int end, byte[] key) throws IOException {
+
+	while (position < end) {
+
+	    int keyLength = mappedData.getInt(position);
+	    int keyStart = position + 4;
+	    int valueLength = mappedData.getInt(keyStart + keyLength);
+	    int valueStart = keyStart + keyLength + 4;
+
+	    if (keyLength == key.length && matches(mappedData, keyStart, key)) {
+
+		if (valueLength == StoreFileWriter.POINTER_LENGTH) {
+		    return Optional.of(this.valueLog.read(new ValuePointer(mappedData.getLong(valueStart), mappedData.getLong(valueStart + 8), mappedData.getInt(valueStart + 16))));
+		} else if (valueLength < 0) {
+		    return ServerFileManager.TOMBSTONE;
+		}
+
+		byte[] value = new byte[valueLength];
+		mappedData.duplicate().position(valueStart).get(value);
+
+		return Optional.of(new String(value, StandardCharsets.UTF_8));
+	    }
+
+	    position = valueStart + storedValueLength(valueLength);
+	}
+
+	return null;
+    }
+
+    private static boolean matches(ByteBuffer buffer, int offset, byte[] key) {
+
+	for (int i = 0; i < key.length; i++) {
+	    if (buffer.get(offset + i) != key[i]) {
+		return false;
+	    }
+	}
+
+	return true;
+    }
+
+    private byte[] readBlock(int block) throws IOException {
+
+	long blockKey = (this.cacheId << 32) | block;
+	byte[] blockContents = this.blockCache.get(blockKey);
+
+	if (blockContents != null) {
+	    return blockContents;
+	}
+
+	blockContents = this.loadBlock(block);
+
+	this.blockCache.put(blockKey, blockContents);
+
+	return blockContents;
+    }
+
+    /**
+     * @return the records of a block read from disk, inflated if needed
+     */
+    private byte[] loadBlock(int block) throws IOException {
+
+	byte[] blockContents = this.read(this.blockOffsets[block], this.blockLengths[block]);
+
+	var blockInput = new DataInputStream(new ByteArrayInputStream(blockContents));
+
+	byte codec = blockInput.readByte();
+	int rawLength = blockInput.readInt();
+	byte[] stored = new byte[blockInput.readInt()];
+	blockInput.readFully(stored);
+
+	return decodeBlock(codec, rawLength, stored);
+    }
+
+    /**
+     * @return length bytes of the file starting at position
+     */
+    private byte[] read(long position, int length) throws IOException {
+
+	FileChannel channel = this.channel;
+
+	try {
+	    return readFully(channel, position, length);
+	} catch (ClosedChannelException cce) {
+	    // A thread interrupted during a read closes the channel for every
+	    // other thread; reopen it for them unless the file has been released
+	    if (this.released || Thread.currentThread().isInterrupted()) {
+		throw cce;
+	    }
+	    return readFully(this.reopen(channel), position, length);
+	}
+    }
+
+    private static byte[] readFully(FileChannel channel, long position, int length) throws IOException {
+
+	ByteBuffer buffer = ByteBuffer.allocate(length);
+
+	while (buffer.hasRemaining()) {
+	    if (channel.read(buffer, position + buffer.position()) < 0) {
+		throw new EOFException("Error: Unexpected end of store file");
+	    }
+	}
+
+	return buffer.array();
+    }
+
+    private synchronized FileChannel reopen(FileChannel closed) throws IOException {
+
+	if (this.channel == closed) {
+	    this.channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ);
+	}
+
+	return this.channel;
+    }
+
+    /**
+     * @return the records of a block stored with codec
+     */
+    static byte[] decodeBlock(byte codec, int rawLength, byte[] stored) throws IOException {
+
+	if (codec == StoreFileWriter.CODEC_NONE) {
+	    return stored;
+	} else if (codec != StoreFileWriter.CODEC_DEFLATE) {
+	    throw new IOException("Error: Unknown block codec " + codec);
+	}
+
+	var inflater = new Inflater();
+
+	try {
+	    byte[] records = new byte[rawLength];
+	    int inflated = 0;
+	    inflater.setInput(stored);
+	    while (inflated < rawLength && !inflater.finished() && !inflater.needsInput() && !inflater.needsDictionary()) {
+		inflated += inflater.inflate(records, inflated, rawLength - inflated);
+	    }
+	    if (inflated != rawLength || !inflater.finished()) {
+		throw new IOException("Error: Corrupt compressed block");
+	    }
+	    return records;
+	} catch (DataFormatException dfe) {
+	    throw new IOException("Error: Corrupt compressed block: " + dfe.getMessage());
+	} finally {
+	    inflater.end();
+	}
+    }
+
+    /**
+     * Drops this file's blocks from the block cache and its mapping and
+     * closes its channel once it is no longer live. The mapping itself is
+     * unmapped when the buffer is garbage collected.
+     */
+    synchronized void release() {
+
+	this.released = true;
+	this.mappedData = null;
+
+	try {
+	    this.channel.close();
+	} catch (IOException ioe) {
+	    // Nothing is read from the file after it is released
+	}
+
+	for (int block = 0; block < this.blockLengths.length; block++) {
+	    this.blockCache.remove((this.cacheId << 32) | block);
+	}
+    }
+
+    /**
+     * @return whether some values of this file are in the value log
+     */
+    public boolean hasValuePointers() {
+	return (this.flags & StoreFileWriter.FLAG_VALUE_POINTERS) != 0;
+    }
+
+    /**
+     * @return the number of value log bytes this file points at in each
+     *         value log file, worked out by scanning it the first time
+     */
+    public Map<Long, Long> getValueLogReferences() throws IOException {
+
+	Map<Long, Long> references = this.valueLogReferences;
+
+	if (references != null) {
+	    return references;
+	}
+
+	references = new HashMap<Long, Long>();
+
+	if (this.hasValuePointers()) {
+	    try (var scanner = this.scanner()) {
+		while (scanner.next()) {
+		    ValuePointer pointer = scanner.getPointer();
+		    if (pointer != null) {
+			references.merge(pointer.getFileId(), (long) pointer.getLength(), Long::sum);
+		    }
+		}
+	    }
+	}
+
+	this.valueLogReferences = references;
+
+	return references;
+    }
+
+    /**
+     * @return the smallest key in the file, or null if it is empty
+     */
+    public String getFirstKey() {
+	return this.firstKey;
+    }
+
+    /**
+     * @return the largest key in the file, or null if it is empty
+     */
+    public String getLastKey() {
+	return this.blockLastKeys.length == 0 ? null : this.blockLastKeys[this.blockLastKeys.length - 1];
+    }
+
+    /**
+     * @return whether key lies within the key range covered by this file
+     */
+    public boolean covers(String key) {
+	return this.firstKey != null && this.firstKey.compareTo(key) <= 0 && this.getLastKey().compareTo(key) >= 0;
+    }
+
+    /**
+     * @return whether the key range of this file intersects [from, to]
+     */
+    public boolean overlaps(String from, String to) {
+	return this.firstKey != null && this.firstKey.compareTo(to) <= 0 && this.getLastKey().compareTo(from) >= 0;
+    }
+
+    public long getLength() {
+	return this.fileLength;
+    }
+
+    public StoreFileScanner scanner() throws IOException {
+	return new StoreFileScanner(this.file, this.dataLength, this.valueLog);
+    }
+
+    public File getFile() {
+	return this.file;
+    }
+
+    /**
+     * @return index of the first block whose last key is >= key, or -1 if
+     *         key is past the end of the file
+     */
+    private int findBlock(String key) {
+
+	int low = 0;
+	int high = this.blockLastKeys.length - 1;
+	int result = -1;
+
+	while (low <= high) {
+	    int mid = (low + high) >>> 1;
+	    if (this.blockLastKeys[mid].compareTo(key) >= 0) {
+		result = mid;
+		high = mid - 1;
+	    } else {
+		low = mid + 1;
+	    }
+	}
+
+	return result;
+    }
+
+    /**
+     * @return how many bytes follow the value length of a record
+     */
+    static int storedValueLength(int valueLength) {
+	if (valueLength == StoreFileWriter.POINTER_LENGTH) {
+	    return ValuePointer.SERIALIZED_SIZE;
+	}
+	return Math.max(valueLength, 0);
+    }
+
+    /**
+     * Reads the inline value of a record whose length has already been
+     * read.
+     */
+    static Optional<String> readValue(DataInputStream input, int valueLength) throws IOException {
+
+	if (valueLength < 0) {
+	    return ServerFileManager.TOMBSTONE;
+	}
+
+	byte[] b = new byte[valueLength];
+	input.readFully(b);
+
+	return Optional.of(new String(b, StandardCharsets.UTF_8));
+    }
+
+    static String readString(DataInputStream input) throws IOException {
+	byte[] b = new byte[input.readInt()];
+	input.readFully(b);
+	return new String(b, StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,115 @@
+package app_kvServer.util;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+
+/**
+ * Sequential, in-order iteration over every record of a store file. Blocks
+ * are inflated one at a time as the scan reaches them. Values in the value
+ * log are only read if getValue() is called, so compaction can copy their
+ * pointers without touching the log.
+ */
+class StoreFileScanner implements AutoCloseable {
+
+    private final DataInputStream input;
+    private final ValueLog valueLog;
+    private long remaining;
+    private DataInputStream records;
+
+    private String key;
+    private Optional<String> value;
+    private ValuePointer pointer;
+
+    StoreFileScanner(File file, long dataLength, ValueLog valueLog) throws IOException {
+	this.input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+	this.valueLog = valueLog;
+	this.remaining = dataLength;
+	this.records = null;
+    }
+
+    /**
+     * Advances to the next record.
+     * @return false once every record has been consumed
+     */
+    public boolean next() throws IOException {
+
+	this.pointer = null;
+
+	if (!this.hasNextRecord()) {
+	    this.key = null;
+	    this.value = null;
+	    return false;
+	}
+
+	byte[] keyBytes = new byte[this.records.readInt()];
+	this.records.readFully(keyBytes);
+	int valueLength = this.records.readInt();
+
+	this.key = new String(keyBytes, StandardCharsets.UTF_8);
+
+	if (valueLength == StoreFileWriter.POINTER_LENGTH) {
+	    this.pointer = ValuePointer.readFrom(this.records);
+	    this.value = null;
+	} else {
+	    this.value = StoreFileReader.readValue(this.records, valueLength);
+	}
+
+	return true;
+    }
+
+    /**
+     * Moves on to the next block once the records of the current one are
+     * used up.
+     */
+    private boolean hasNextRecord() throws IOException {
+
+	while (this.records == null || this.records.available() == 0) {
+
+	    if (this.remaining <= 0) {
+		return false;
+	    }
+
+	    byte codec = this.input.readByte();
+	    int rawLength = this.input.readInt();
+	    byte[] stored = new byte[this.input.readInt()];
+	    this.input.readFully(stored);
+
+	    this.records = new DataInputStream(new ByteArrayInputStream(StoreFileReader.decodeBlock(codec, rawLength, stored)));
+	    this.remaining -= StoreFileWriter.BLOCK_HEADER_SIZE + stored.length;
+	}
+
+	return true;
+    }
+
+    public String getKey() {
+	return this.key;
+    }
+
+    /**
+     * @return the value of the current record, which may be
+     *         ServerFileManager.TOMBSTONE
+     */
+    public Optional<String> getValue() throws IOException {
+
+	if (this.value == null && this.pointer != null) {
+	    this.value = Optional.of(this.valueLog.read(this.pointer));
+	}
+
+	return this.value;
+    }
+
+    /**
+     * @return where the value of the current record is in the value log, or
+     *         null if it is stored inline
+     */
+    public ValuePointer getPointer() {
+	return this.pointer;
+    }
+
+    @Override
+    public void close() throws IOException {
+	this.input.close();
+    }
+
+}
@@ -0,0 +1,292 @@
+package app_kvServer.util;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.Deflater;
+
+import app_kvServer.util.StorageOptions.Compression;
+
+/**
+ * Writes a sorted store file. Records are laid out as length-prefixed
+ * key/value pairs grouped into blocks of roughly BLOCK_SIZE bytes, followed
+ * by a Bloom filter over every key, a sparse index holding the last key and
+ * location of every block, and a fixed-size footer pointing at both.
+ *
+ *   [block 0] ... [block n] [filter] [index] [footer]
+ *
+ *   block: byte codec | int rawLength | int storedLength | stored records
+ *   record: int keyLength | key | int valueLength | value
+ *           (valueLength is -1, with no value bytes, for a tombstone, and
+ *           -2, followed by a value pointer, for a value in the value log)
+ *   filter: int numProbes | int numWords | long[numWords] bits
+ *   index entry: int keyLength | last key of block | long offset | int length
+ *   footer: long filterOffset | int filterLength | long indexOffset |
+ *           int indexLength | int flags | int version | long magic
+ *
+ * Blocks are compressed one at a time, so a lookup only inflates the block
+ * it reads, and a block that does not shrink by at least an eighth is
+ * stored raw. Files holding value pointers are flagged with
+ * FLAG_VALUE_POINTERS so they can be told apart without scanning them.
+ * Keys are written as given, which ServerFileManager makes stored keys
+ * (see HashBuckets).
+ *
+ * Keys must be appended in strictly increasing order. The file is written
+ * under a temporary name and only renamed into place once it is complete,
+ * so readers never observe a partially written store file.
+ */
+class StoreFileWriter implements AutoCloseable {
+
+    static final int BLOCK_SIZE = 4096;
+    static final int FOOTER_SIZE = 40;
+    static final int FORMAT_VERSION = 5;
+    static final int BLOCK_HEADER_SIZE = 9;
+
+    static final int FLAG_VALUE_POINTERS = 1;
+
+    static final byte CODEC_NONE = 0;
+    static final byte CODEC_DEFLATE = 1;
+
+    static final int TOMBSTONE_LENGTH = -1;
+    static final int POINTER_LENGTH = -2;
+    static final long MAGIC = 0x4b5653746f726546L;
+
+    static final String TEMPORARY_PREFIX = "Tmp";
+
+    private final File file;
+    private final ValueLog valueLog;
+    private final Deflater deflater;
+    private final FileOutputStream fileOutput;
+    private final DataOutputStream output;
+
+    private final ByteArrayOutputStream blockBuffer;
+    private final DataOutputStream blockOutput;
+
+    private final ByteArrayOutputStream indexBuffer;
+    private final DataOutputStream indexOutput;
+
+    private long[] keyHashes;
+
+    private long offset;
+    private String lastKey;
+    private int entryCount;
+    private int pointerCount;
+
+    /**
+     * @param valueLog log to move large values into, or null to keep every
+     *           value in the file, as for files sent to other servers
+     * @param compression codec blocks are written with
+     */
+    public StoreFileWriter(File file, ValueLog valueLog, Compression compression) throws IOException {
+	this.file = file;
+	this.valueLog = valueLog;
+	this.deflater = compression == Compression.DEFLATE ? new Deflater() : null;
+	this.fileOutput = new FileOutputStream(temporaryFile(file));
+	this.output = new DataOutputStream(new BufferedOutputStream(this.fileOutput, 64 * 1024));
+
+	this.blockBuffer = new ByteArrayOutputStream(2 * BLOCK_SIZE);
+	this.blockOutput = new DataOutputStream(this.blockBuffer);
+
+	this.indexBuffer = new ByteArrayOutputStream();
+	this.indexOutput = new DataOutputStream(this.indexBuffer);
+
+	this.keyHashes = new long[64];
+
+	this.offset = 0;
+	this.lastKey = null;
+	this.entryCount = 0;
+	this.pointerCount = 0;
+    }
+
+    public void append(String key, Optional<String> value) throws IOException {
+
+	this.checkOrder(key);
+
+	byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+	writeBytes(this.blockOutput, keyBytes);
+
+	if (ServerFileManager.isTombstone(value)) {
+	    this.blockOutput.writeInt(TOMBSTONE_LENGTH);
+	} else {
+	    byte[] valueBytes = value.get().getBytes(StandardCharsets.UTF_8);
+	    if (this.valueLog != null && this.valueLog.shouldSeparate(valueBytes.length)) {
+		this.writePointer(this.valueLog.append(keyBytes, valueBytes));
+	    } else {
+		writeBytes(this.blockOutput, valueBytes);
+	    }
+	}
+
+	this.finishRecord(key);
+    }
+
+    /**
+     * Appends a value that is already in the value log without reading it.
+     */
+    public void appendPointer(String key, ValuePointer pointer) throws IOException {
+
+	this.checkOrder(key);
+
+	writeBytes(this.blockOutput, key.getBytes(StandardCharsets.UTF_8));
+	this.writePointer(pointer);
+
+	this.finishRecord(key);
+    }
+
+    private void checkOrder(String key) {
+	if (this.lastKey != null && key.compareTo(this.lastKey) <= 0) {
+	    throw new IllegalArgumentException("Error: Store file keys must be appended in increasing order");
+	}
+    }
+
+    private void writePointer(ValuePointer pointer) throws IOException {
+	this.blockOutput.writeInt(POINTER_LENGTH);
+	pointer.writeTo(this.blockOutput);
+	this.pointerCount++;
+    }
+
+    private void finishRecord(String key) throws IOException {
+
+	if (this.entryCount == this.keyHashes.length) {
+	    this.keyHashes = Arrays.copyOf(this.keyHashes, 2 * this.keyHashes.length);
+	}
+
+	this.keyHashes[this.entryCount] = BloomFilter.hash(key);
+	this.lastKey = key;
+	this.entryCount++;
+
+	if (this.blockBuffer.size() >= BLOCK_SIZE) {
+	    this.finishBlock();
+	}
+    }
+
+    public File getFile() {
+	return this.file;
+    }
+
+    public int getEntryCount() {
+	return this.entryCount;
+    }
+
+    /**
+     * @return the number of data bytes appended so far
+     */
+    public long getLength() {
+	return this.offset + this.blockBuffer.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+
+	this.finishBlock();
+
+	BloomFilter filter = BloomFilter.fromHashes(this.keyHashes, this.entryCount);
+
+	long filterOffset = this.offset;
+	int filterLength = filter.getSerializedSize();
+	filter.writeTo(this.output);
+
+	long indexOffset = filterOffset + filterLength;
+	this.indexBuffer.writeTo(this.output);
+
+	this.output.writeLong(filterOffset);
+	this.output.writeInt(filterLength);
+	this.output.writeLong(indexOffset);
+	this.output.writeInt(this.indexBuffer.size());
+	this.output.writeInt(this.pointerCount > 0 ? FLAG_VALUE_POINTERS : 0);
+	this.output.writeInt(FORMAT_VERSION);
+	this.output.writeLong(MAGIC);
+	this.output.flush();
+	this.fileOutput.getFD().sync();
+	this.output.close();
+
+	if (this.deflater != null) {
+	    this.deflater.end();
+	}
+
+	if (this.pointerCount > 0 && this.valueLog != null) {
+	    this.valueLog.sync();
+	}
+
+	publish(this.file);
+    }
+
+    private void finishBlock() throws IOException {
+
+	if (this.blockBuffer.size() == 0) {
+	    return;
+	}
+
+	byte[] records = this.blockBuffer.toByteArray();
+	byte[] stored = this.deflater == null ? null : this.deflate(records);
+	byte codec = CODEC_DEFLATE;
+
+	if (stored == null || stored.length > records.length - records.length / 8) {
+	    stored = records;
+	    codec = CODEC_NONE;
+	}
+
+	int blockLength = BLOCK_HEADER_SIZE + stored.length;
+
+	writeBytes(this.indexOutput, this.lastKey.getBytes(StandardCharsets.UTF_8));
+	this.indexOutput.writeLong(this.offset);
+	this.indexOutput.writeInt(blockLength);
+
+	this.output.writeByte(codec);
+	this.output.writeInt(records.length);
+	writeBytes(this.output, stored);
+
+	this.offset += blockLength;
+	this.blockBuffer.reset();
+    }
+
+    private byte[] deflate(byte[] records) {
+
+	this.deflater.reset();
+	this.deflater.setInput(records);
+	this.deflater.finish();
+
+	var compressed = new ByteArrayOutputStream(records.length / 2);
+	byte[] chunk = new byte[BLOCK_SIZE];
+
+	while (!this.deflater.finished()) {
+	    compressed.write(chunk, 0, this.deflater.deflate(chunk));
+	}
+
+	return compressed.toByteArray();
+    }
+
+    /**
+     * Names a new store file from prefix and a file number handed out by the
+     * manifest, and reserves the name by creating the (empty) temporary file
+     * it is written to.
+     */
+    static File createFile(File directory, String prefix, long number) throws IOException {
+
+	File file = new File(directory, String.format("%s%06d.sst", prefix, number));
+
+	if (file.exists() || !temporaryFile(file).createNewFile()) {
+	    throw new IOException("Error: Store file " + file.getName() + " already exists");
+	}
+
+	return file;
+    }
+
+    static File temporaryFile(File file) {
+	return new File(file.getParentFile(), TEMPORARY_PREFIX + file.getName());
+    }
+
+    /**
+     * Moves a fully written temporary file to its final name.
+     */
+    static void publish(File file) throws IOException {
+	if (!temporaryFile(file).renameTo(file)) {
+	    throw new IOException("Error: Failed to publish store file " + file.getName());
+	}
+    }
+
+    static void writeBytes(DataOutputStream output, byte[] b) throws IOException {
+	output.writeInt(b.length);
+	output.write(b);
+    }
+
+}
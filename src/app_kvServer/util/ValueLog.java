@@ -0,0 +1,233 @@
+package app_kvServer.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32C;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Append-only log holding values too large to be worth copying through
+ * every flush and compaction. Store files keep a ValuePointer to the record
+ * instead, so compaction only rewrites keys and pointers. Records go to the
+ * newest file (vlog_<id>.log), and a new file is started once it reaches
+ * valueLogFileSize and on every restart.
+ *
+ *   record: int crc | int keyLength | key | int valueLength | value
+ *
+ * The CRC32C covers everything after it. The key is kept with the value
+ * so a damaged pointer is detected rather than returning another key's
+ * value. Files are never modified once written; ServerFileManager deletes
+ * a file once no live store file points into it.
+ */
+class ValueLog implements AutoCloseable {
+
+    static final String FILE_PREFIX = "vlog_";
+    static final String FILE_SUFFIX = ".log";
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private final File directory;
+    private final int threshold;
+    private final long fileSize;
+
+    private final ConcurrentHashMap<Long, FileChannel> readChannels;
+
+    private FileChannel channel;
+    private long headId;
+    private long headLength;
+
+    /**
+     * @param threshold values of at least this many bytes are moved into
+     *           the log; 0 keeps every value in the store files
+     */
+    ValueLog(File directory, int threshold, long fileSize) {
+
+	this.directory = directory;
+	this.threshold = threshold;
+	this.fileSize = fileSize;
+	this.readChannels = new ConcurrentHashMap<Long, FileChannel>();
+
+	long[] fileIds = listFiles(directory);
+	this.headId = fileIds.length == 0 ? 0 : fileIds[fileIds.length - 1];
+	this.channel = null;
+    }
+
+    /**
+     * @return whether a value of this many bytes belongs in the log
+     */
+    boolean shouldSeparate(int valueLength) {
+	return this.threshold > 0 && valueLength >= this.threshold;
+    }
+
+    /**
+     * Appends a value. The record is only written to the OS; call sync()
+     * before anything that points at it is made durable.
+     */
+    synchronized ValuePointer append(byte[] key, byte[] value) throws IOException {
+
+	if (this.channel == null || this.headLength >= this.fileSize) {
+	    this.startFile();
+	}
+
+	var record = ByteBuffer.allocate(12 + key.length + value.length);
+	record.position(4);
+	record.putInt(key.length);
+	record.put(key);
+	record.putInt(value.length);
+	record.put(value);
+
+	var crc = new CRC32C();
+	crc.update(record.array(), 4, record.capacity() - 4);
+	record.putInt(0, (int) crc.getValue());
+	record.flip();
+
+	var pointer = new ValuePointer(this.headId, this.headLength, record.limit());
+
+	while (record.hasRemaining()) {
+	    this.headLength += this.channel.write(record);
+	}
+
+	return pointer;
+    }
+
+    private void startFile() throws IOException {
+
+	if (this.channel != null) {
+	    this.channel.force(false);
+	    this.channel.close();
+	}
+
+	this.headId++;
+	this.headLength = 0;
+	this.channel = FileChannel.open(file(this.directory, this.headId).toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    synchronized void sync() throws IOException {
+	if (this.channel != null) {
+	    this.channel.force(false);
+	}
+    }
+
+    /**
+     * @return the value pointer refers to
+     */
+    String read(ValuePointer pointer) throws IOException {
+
+	FileChannel readChannel = this.getReadChannel(pointer.getFileId());
+
+	var record = ByteBuffer.allocate(pointer.getLength());
+
+	while (record.hasRemaining()) {
+	    if (readChannel.read(record, pointer.getOffset() + record.position()) < 0) {
+		throw new IOException(String.format("Error: Value log file %d ends before offset %d", pointer.getFileId(), pointer.getOffset() + pointer.getLength()));
+	    }
+	}
+
+	var crc = new CRC32C();
+	crc.update(record.array(), 4, record.capacity() - 4);
+
+	int keyLength = record.getInt(4);
+
+	if ((int) crc.getValue() != record.getInt(0) || keyLength < 0 || keyLength > record.capacity() - 12) {
+	    throw new IOException(String.format("Error: Corrupt value log record at offset %d of file %d", pointer.getOffset(), pointer.getFileId()));
+	}
+
+	int valueLength = record.getInt(8 + keyLength);
+
+	return new String(record.array(), 12 + keyLength, valueLength, StandardCharsets.UTF_8);
+    }
+
+    private FileChannel getReadChannel(long fileId) throws IOException {
+
+	FileChannel readChannel = this.readChannels.get(fileId);
+
+	if (readChannel == null) {
+	    readChannel = FileChannel.open(file(this.directory, fileId).toPath(), StandardOpenOption.READ);
+	    FileChannel existing = this.readChannels.putIfAbsent(fileId, readChannel);
+	    if (existing != null) {
+		readChannel.close();
+		readChannel = existing;
+	    }
+	}
+
+	return readChannel;
+    }
+
+    /**
+     * @return the id of the file being appended to; it is never deleted
+     */
+    synchronized long getHeadId() {
+	return this.headId;
+    }
+
+    long getFileLength(long fileId) {
+	return file(this.directory, fileId).length();
+    }
+
+    /**
+     * Deletes a file no live store file points into any more.
+     */
+    void delete(long fileId) {
+
+	FileChannel readChannel = this.readChannels.remove(fileId);
+
+	if (readChannel != null) {
+	    try {
+		readChannel.close();
+	    } catch (IOException ioe) {
+		logger.warn("Failed to close value log file " + fileId + ": " + ioe.getMessage());
+	    }
+	}
+
+	file(this.directory, fileId).delete();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+
+	if (this.channel != null) {
+	    this.channel.force(false);
+	    this.channel.close();
+	}
+
+	for (FileChannel readChannel: this.readChannels.values()) {
+	    readChannel.close();
+	}
+    }
+
+    static File file(File directory, long fileId) {
+	return new File(directory, String.format("%s%016d%s", FILE_PREFIX, fileId, FILE_SUFFIX));
+    }
+
+    /**
+     * @return the ids of every value log file in directory, oldest first
+     */
+    static long[] listFiles(File directory) {
+
+	File[] files = directory.listFiles((d, name) -> name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX));
+
+	if (files == null) {
+	    return new long[0];
+	}
+
+	var fileIds = new ArrayList<Long>();
+
+	for (File file: files) {
+	    String name = file.getName();
+	    try {
+		fileIds.add(Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length())));
+	    } catch (NumberFormatException nfe) {
+		logger.warn("Ignoring unrecognised value log file " + name);
+	    }
+	}
+
+	return fileIds.stream().mapToLong(Long::longValue).sorted().toArray();
+    }
+
+}
@@ -0,0 +1,45 @@
+package app_kvServer.util;
+
+import java.io.*;
+
+/**
+ * Location of a value that was moved out of a store file into the value
+ * log: the value log file, and the offset and length of its record.
+ */
+class ValuePointer {
+
+    static final int SERIALIZED_SIZE = 20;
+
+    private final long fileId;
+    private final long offset;
+    private final int length;
+
+    ValuePointer(long fileId, long offset, int length) {
+	this.fileId = fileId;
+	this.offset = offset;
+	this.length = length;
+    }
+
+    long getFileId() {
+	return this.fileId;
+    }
+
+    long getOffset() {
+	return this.offset;
+    }
+
+    int getLength() {
+	return this.length;
+    }
+
+    void writeTo(DataOutputStream output) throws IOException {
+	output.writeLong(this.fileId);
+	output.writeLong(this.offset);
+	output.writeInt(this.length);
+    }
+
+    static ValuePointer readFrom(DataInputStream input) throws IOException {
+	return new ValuePointer(input.readLong(), input.readLong(), input.readInt());
+    }
+
+}
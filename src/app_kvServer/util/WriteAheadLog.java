@@ -0,0 +1,451 @@
+package app_kvServer.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.zip.CRC32C;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Segmented, append-only write-ahead log. Records go to the newest segment
+ * (wal_<id>.log) over a single FileChannel; a new segment is started once
+ * the current one reaches the configured size and on every memtable swap,
+ * so the segments covering a flushed memtable can simply be deleted.
+ *
+ *   record: int payloadLength | int crc | long sequence | payload
+ *   payload: int keyLength | key | int valueLength | value
+ *            (valueLength is -1, with no value bytes, for a tombstone)
+ *
+ * The CRC32C covers the sequence number and the payload, so a torn or
+ * corrupted record is detected on replay and the log is cut off there.
+ *
+ * Concurrent appends are group committed: the first writer to arrive while
+ * no commit is in progress becomes the leader, takes every record queued so
+ * far and writes them with one gathering write (and one fsync under SYNC),
+ * while the other writers wait for the batch that holds their record. An
+ * append only returns once its record is durable under the configured
+ * policy.
+ */
+public class WriteAheadLog implements AutoCloseable {
+
+    public enum Durability {
+	SYNC,		/* fsync every group commit before acknowledging it */
+	PERIODIC,	/* write every group commit, fsync on a timer */
+	BUFFERED,	/* write every group commit, leave flushing to the OS */
+    }
+
+    static final int HEADER_SIZE = 16;
+    static final String SEGMENT_PREFIX = "wal_";
+    static final String SEGMENT_SUFFIX = ".log";
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private final File directory;
+    private final Durability durability;
+    private final long segmentSize;
+    private Timer syncTimer;
+
+    private volatile FileChannel channel;
+    private long segmentId;
+    private long segmentLength;
+
+    private final Object commitLock;
+    private ArrayList<ByteBuffer> pendingRecords;
+    private long nextSequence;
+    private long appendedCount;
+    private long committedCount;
+    private boolean committing;
+    private IOException failure;
+
+    /**
+     * Opens a new, empty segment to append to.
+     * @param segmentId id of the segment to create; must be newer than any
+     *           existing segment
+     * @param nextSequence sequence number for the first appended record
+     */
+    public WriteAheadLog(File directory, long segmentId, long nextSequence, StorageOptions options) throws IOException {
+
+	this.directory = directory;
+	this.durability = options.getWalDurability();
+	this.segmentSize = options.getWalSegmentSize();
+
+	this.segmentId = segmentId;
+	this.segmentLength = 0;
+	this.channel = openSegment(directory, segmentId);
+
+	this.commitLock = new Object();
+	this.pendingRecords = new ArrayList<ByteBuffer>();
+	this.nextSequence = nextSequence;
+	this.appendedCount = 0;
+	this.committedCount = 0;
+	this.committing = false;
+	this.failure = null;
+
+	if (this.durability == Durability.PERIODIC) {
+	    long syncInterval = options.getWalSyncInterval();
+	    this.syncTimer = new Timer("WAL Sync Timer", true);
+	    this.syncTimer.schedule(new TimerTask() {
+		@Override
+		public void run() {
+		    WriteAheadLog.this.sync();
+		}
+	    }, syncInterval, syncInterval);
+	}
+    }
+
+    private static FileChannel openSegment(File directory, long segmentId) throws IOException {
+	return FileChannel.open(segmentFile(directory, segmentId).toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Appends a PUT, or a delete if value is ServerFileManager.TOMBSTONE,
+     * and blocks until the group commit containing it is durable under the
+     * configured policy.
+     * @return the record as it was written, positioned at its start, so it
+     *         can be shipped to replicas as it is
+     */
+    public ByteBuffer append(String key, Optional<String> value) throws IOException {
+
+	byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+	boolean tombstone = ServerFileManager.isTombstone(value);
+	byte[] valueBytes = tombstone ? new byte[0] : value.get().getBytes(StandardCharsets.UTF_8);
+
+	var record = ByteBuffer.allocate(HEADER_SIZE + 8 + keyBytes.length + valueBytes.length);
+	record.putInt(8 + keyBytes.length + valueBytes.length);
+	record.position(HEADER_SIZE);
+	record.putInt(keyBytes.length);
+	record.put(keyBytes);
+	record.putInt(tombstone ? -1 : valueBytes.length);
+	record.put(valueBytes);
+	record.flip();
+
+	this.append(record);
+
+	return record.duplicate().rewind();
+    }
+
+    /**
+     * @return the sequence number of a record returned by append
+     */
+    public static long getSequence(ByteBuffer record) {
+	return record.getLong(record.position() + 8);
+    }
+
+    private void append(ByteBuffer record) throws IOException {
+
+	ByteBuffer[] batch;
+	long batchEnd;
+
+	synchronized (this.commitLock) {
+
+	    record.putLong(8, this.nextSequence++);
+	    var crc = new CRC32C();
+	    crc.update(record.array(), 8, record.limit() - 8);
+	    record.putInt(4, (int) crc.getValue());
+
+	    this.pendingRecords.add(record);
+	    long sequence = ++this.appendedCount;
+
+	    try {
+		while (this.committing && this.committedCount < sequence && this.failure == null) {
+		    this.commitLock.wait();
+		}
+	    } catch (InterruptedException ie) {
+		throw new InterruptedIOException("Interrupted while waiting for WAL commit");
+	    }
+
+	    if (this.failure != null) {
+		throw new IOException("Error: WAL is unavailable", this.failure);
+	    }
+
+	    if (this.committedCount >= sequence) {
+		return;
+	    }
+
+	    this.committing = true;
+	    batch = this.pendingRecords.toArray(new ByteBuffer[0]);
+	    this.pendingRecords.clear();
+	    batchEnd = this.appendedCount;
+	}
+
+	IOException error = null;
+
+	try {
+	    this.writeBatch(batch);
+	    if (this.durability == Durability.SYNC) {
+		this.channel.force(false);
+	    }
+	    if (this.segmentLength >= this.segmentSize) {
+		this.rollSegment();
+	    }
+	} catch (IOException ioe) {
+	    error = ioe;
+	}
+
+	synchronized (this.commitLock) {
+	    this.committing = false;
+	    if (error == null) {
+		this.committedCount = batchEnd;
+	    } else {
+		this.failure = error;
+	    }
+	    this.commitLock.notifyAll();
+	}
+
+	if (error != null) {
+	    throw error;
+	}
+    }
+
+    public void sync() {
+	try {
+	    this.channel.force(false);
+	} catch (ClosedChannelException cce) {
+	    return;
+	} catch (IOException ioe) {
+	    logger.error("Failed to sync WAL segment " + this.segmentId + ": " + ioe.getMessage());
+	}
+    }
+
+    /**
+     * @return the sequence number of the last record appended
+     */
+    public long getLastSequence() {
+	synchronized (this.commitLock) {
+	    return this.nextSequence - 1;
+	}
+    }
+
+    /**
+     * Starts a new segment. Must not race with appends; the caller is
+     * expected to have stopped writers first.
+     * @return the id of the new segment, which holds every record appended
+     *         from now on
+     */
+    public long rotate() throws IOException {
+
+	synchronized (this.commitLock) {
+
+	    try {
+		while (this.committing) {
+		    this.commitLock.wait();
+		}
+	    } catch (InterruptedException ie) {
+		throw new InterruptedIOException("Interrupted while waiting for WAL commit");
+	    }
+
+	    this.rollSegment();
+
+	    return this.segmentId;
+	}
+    }
+
+    private void rollSegment() throws IOException {
+
+	FileChannel previous = this.channel;
+
+	this.channel = openSegment(this.directory, this.segmentId + 1);
+	this.segmentId++;
+	this.segmentLength = 0;
+
+	if (this.durability != Durability.BUFFERED) {
+	    previous.force(false);
+	}
+	previous.close();
+    }
+
+    @Override
+    public void close() throws IOException {
+
+	if (this.syncTimer != null) {
+	    this.syncTimer.cancel();
+	}
+
+	if (this.channel.isOpen()) {
+	    if (this.durability != Durability.BUFFERED) {
+		this.channel.force(false);
+	    }
+	    this.channel.close();
+	}
+    }
+
+    private void writeBatch(ByteBuffer[] batch) throws IOException {
+
+	int current = 0;
+
+	while (current < batch.length) {
+	    this.segmentLength += this.channel.write(batch, current, batch.length - current);
+	    while (current < batch.length && !batch[current].hasRemaining()) {
+		current++;
+	    }
+	}
+    }
+
+    static File segmentFile(File directory, long segmentId) {
+	return new File(directory, String.format("%s%016d%s", SEGMENT_PREFIX, segmentId, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * @return the ids of every WAL segment in directory, oldest first
+     */
+    static long[] listSegments(File directory) {
+
+	File[] files = directory.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+
+	if (files == null) {
+	    return new long[0];
+	}
+
+	var segmentIds = new ArrayList<Long>();
+
+	for (File file: files) {
+	    String name = file.getName();
+	    try {
+		segmentIds.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+	    } catch (NumberFormatException nfe) {
+		logger.warn("Ignoring unrecognised WAL file " + name);
+	    }
+	}
+
+	return segmentIds.stream().mapToLong(Long::longValue).sorted().toArray();
+    }
+
+    /**
+     * Deletes every segment older than segmentId.
+     */
+    static void deleteSegmentsBefore(File directory, long segmentId) {
+
+	for (long id: listSegments(directory)) {
+	    if (id < segmentId) {
+		segmentFile(directory, id).delete();
+	    }
+	}
+    }
+
+    /**
+     * Reads length bytes of records shipped from another server's WAL off
+     * input and passes each to apply in the order they were shipped.
+     * @return the sequence number of the last record read
+     * @throws IOException if a record is torn or fails its checksum
+     */
+    public static long readShippedRecords(InputStream input, long length, BiConsumer<String, Optional<String>> apply) throws IOException {
+
+	long lastSequence = 0;
+
+	try (var reader = new WriteAheadLogReader(input, length)) {
+	    while (reader.next()) {
+		apply.accept(reader.getKey(), reader.getValue());
+		lastSequence = reader.getSequence();
+	    }
+	    if (reader.isCorrupt()) {
+		throw new IOException(String.format("Error: Corrupt shipped WAL record at byte %d of %d", reader.getValidLength(), length));
+	    }
+	}
+
+	return lastSequence;
+    }
+
+    /**
+     * Result of decoding one segment: the latest value of every key in it
+     * and where, if anywhere, the segment stopped being readable.
+     */
+    private static class DecodedSegment {
+	HashMap<String, Optional<String>> entries = new HashMap<String, Optional<String>>();
+	long firstSequence = -1;
+	long lastSequence = -1;
+	long validLength;
+	boolean corrupt;
+    }
+
+    private static DecodedSegment decodeSegment(File segment) {
+
+	var decoded = new DecodedSegment();
+
+	try (var reader = new WriteAheadLogReader(segment)) {
+	    while (reader.next()) {
+		if (decoded.firstSequence < 0) {
+		    decoded.firstSequence = reader.getSequence();
+		}
+		decoded.lastSequence = reader.getSequence();
+		decoded.entries.put(reader.getKey(), reader.getValue());
+	    }
+	    decoded.validLength = reader.getValidLength();
+	    decoded.corrupt = reader.isCorrupt();
+	} catch (IOException ioe) {
+	    throw new UncheckedIOException(ioe);
+	}
+
+	return decoded;
+    }
+
+    /**
+     * Replays segments into cache. Segments are decoded in parallel, each
+     * into the latest value per key, and then applied oldest first so newer
+     * records win. Replay stops at the first torn or corrupt record: that
+     * segment is truncated to its last good record and any newer segments
+     * are deleted, since they were written after the damaged data.
+     * @return the sequence number of the last record replayed, or 0 if none
+     */
+    static long replay(File directory, long[] segmentIds, Map<String, Optional<String>> cache) throws IOException {
+
+	var decodedSegments = new ArrayList<CompletableFuture<DecodedSegment>>();
+
+	for (long id: segmentIds) {
+	    File segment = segmentFile(directory, id);
+	    decodedSegments.add(CompletableFuture.supplyAsync(() -> decodeSegment(segment)));
+	}
+
+	long lastSequence = 0;
+
+	for (int i = 0; i < segmentIds.length; i++) {
+
+	    DecodedSegment decoded;
+
+	    try {
+		decoded = decodedSegments.get(i).join();
+	    } catch (CompletionException ce) {
+		if (ce.getCause() instanceof UncheckedIOException) {
+		    throw ((UncheckedIOException) ce.getCause()).getCause();
+		}
+		throw ce;
+	    }
+
+	    if (decoded.firstSequence >= 0 && decoded.firstSequence <= lastSequence) {
+		logger.warn(String.format("WAL segment %d starts at sequence %d, expected more than %d", segmentIds[i], decoded.firstSequence, lastSequence));
+	    }
+
+	    cache.putAll(decoded.entries);
+
+	    if (decoded.lastSequence >= 0) {
+		lastSequence = decoded.lastSequence;
+	    }
+
+	    if (decoded.corrupt) {
+		File segment = segmentFile(directory, segmentIds[i]);
+		logger.warn(String.format("Truncating WAL segment %d at byte %d of %d after a torn or corrupt record", segmentIds[i], decoded.validLength, segment.length()));
+
+		try (var channel = FileChannel.open(segment.toPath(), StandardOpenOption.WRITE)) {
+		    channel.truncate(decoded.validLength);
+		    channel.force(true);
+		}
+
+		for (int j = i + 1; j < segmentIds.length; j++) {
+		    logger.warn("Discarding WAL segment " + segmentIds[j] + " written after the corrupt record");
+		    decodedSegments.get(j).cancel(false);
+		    segmentFile(directory, segmentIds[j]).delete();
+		}
+
+		break;
+	    }
+	}
+
+	return lastSequence;
+    }
+
+}
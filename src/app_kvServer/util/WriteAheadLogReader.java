@@ -0,0 +1,152 @@
+package app_kvServer.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.zip.CRC32C;
+
+/**
+ * Sequential reader over the records of a single WAL segment, or of a
+ * batch of records shipped to a replica. Stops at the end of the segment or at the first record that is torn or fails its
+ * checksum; getValidLength then tells how much of the segment can be kept.
+ */
+class WriteAheadLogReader implements AutoCloseable {
+
+    private final DataInputStream input;
+    private final long segmentLength;
+    private final byte[] header;
+
+    private long validLength;
+    private boolean corrupt;
+
+    private long sequence;
+    private String key;
+    private Optional<String> value;
+
+    WriteAheadLogReader(File segment) throws IOException {
+	this(new BufferedInputStream(new FileInputStream(segment), 64 * 1024), segment.length());
+    }
+
+    /**
+     * Reads records from length bytes of input, such as a batch shipped by
+     * another server.
+     */
+    WriteAheadLogReader(InputStream input, long length) {
+	this.input = new DataInputStream(input);
+	this.segmentLength = length;
+	this.header = new byte[WriteAheadLog.HEADER_SIZE];
+	this.validLength = 0;
+	this.corrupt = false;
+    }
+
+    /**
+     * Advances to the next record.
+     * @return false at the end of the segment or at the first bad record
+     */
+    public boolean next() throws IOException {
+
+	this.key = null;
+	this.value = null;
+
+	long remaining = this.segmentLength - this.validLength;
+
+	if (this.corrupt || remaining == 0) {
+	    return false;
+	}
+
+	if (remaining < WriteAheadLog.HEADER_SIZE) {
+	    return this.stop();
+	}
+
+	this.input.readFully(this.header);
+
+	var headerBuffer = ByteBuffer.wrap(this.header);
+	int payloadLength = headerBuffer.getInt();
+	int checksum = headerBuffer.getInt();
+
+	if (payloadLength < 8 || payloadLength > remaining - WriteAheadLog.HEADER_SIZE) {
+	    return this.stop();
+	}
+
+	byte[] payload = new byte[payloadLength];
+	this.input.readFully(payload);
+
+	var crc = new CRC32C();
+	crc.update(this.header, 8, 8);
+	crc.update(payload);
+
+	if ((int) crc.getValue() != checksum) {
+	    return this.stop();
+	}
+
+	var payloadBuffer = ByteBuffer.wrap(payload);
+	int keyLength = payloadBuffer.getInt();
+
+	if (keyLength < 0 || keyLength > payloadLength - 8) {
+	    return this.stop();
+	}
+
+	this.key = new String(payload, 4, keyLength, StandardCharsets.UTF_8);
+	payloadBuffer.position(4 + keyLength);
+	int valueLength = payloadBuffer.getInt();
+	int valueBytes = payloadLength - 8 - keyLength;
+
+	if (valueLength != valueBytes && !(valueLength == -1 && valueBytes == 0)) {
+	    this.key = null;
+	    return this.stop();
+	}
+
+	if (valueLength < 0) {
+	    this.value = ServerFileManager.TOMBSTONE;
+	} else {
+	    this.value = Optional.of(new String(payload, 8 + keyLength, valueLength, StandardCharsets.UTF_8));
+	}
+	this.sequence = headerBuffer.getLong();
+	this.validLength += WriteAheadLog.HEADER_SIZE + payloadLength;
+
+	return true;
+    }
+
+    private boolean stop() {
+	this.corrupt = true;
+	return false;
+    }
+
+    public long getSequence() {
+	return this.sequence;
+    }
+
+    public String getKey() {
+	return this.key;
+    }
+
+    /**
+     * @return the value of the current record, or ServerFileManager.TOMBSTONE
+     *         if it is a delete
+     */
+    public Optional<String> getValue() {
+	return this.value;
+    }
+
+    /**
+     * @return whether reading stopped at a torn or corrupt record rather
+     *         than at the end of the segment
+     */
+    public boolean isCorrupt() {
+	return this.corrupt;
+    }
+
+    /**
+     * @return the length of the prefix of the segment made up of good records
+     */
+    public long getValidLength() {
+	return this.validLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+	this.input.close();
+    }
+
+}
@@ -2,7 +2,9 @@ package client;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.*;
 import java.security.*;
 
 import org.apache.log4j.Logger;
@@ -14,14 +16,21 @@ public class KVStore implements KVCommInterface {
 
     private static Logger logger = Logger.getRootLogger();
 
-    private static final int BUFFER_SIZE = 1024;
-    private static final int DROP_SIZE = 128 * BUFFER_SIZE;
+    private static final int MAX_FRAME_SIZE = 128 * 1024 + 1;
+    private static final int MAX_REDIRECTS = 5;
 
     private Socket socket;
+    private Socket framedSocket;
+    private FrameReader frames;
+    private boolean binaryProtocol;
+    private boolean binary;
+    private int nextRequestId;
     private String currentAddress;
     private int currentPort;
 	
-    private TreeMap<byte[], KeyRange> metadata;
+    private volatile TreeMap<byte[], KeyRange> metadata;
+
+    private HashMap<String, PipelinedConnection> pipelinedConnections;
 
     /**
 	 * Initialize KVStore with address and port of KVServer
@@ -29,9 +38,21 @@ public class KVStore implements KVCommInterface {
 	 * @param port the port of the KVServer
     */
     public KVStore(String address, int port) {
+	this(address, port, false);
+    }
+
+    /**
+     * @param binaryProtocol whether to switch every connection to the
+     *           binary protocol, where the server supports it
+     */
+    public KVStore(String address, int port, boolean binaryProtocol) {
 	this.currentAddress = address;	
 	this.currentPort = port;
 	this.metadata = new TreeMap<byte[], KeyRange>(new ByteArrayComparator());
+	this.binaryProtocol = binaryProtocol;
+	this.binary = false;
+	this.nextRequestId = 0;
+	this.pipelinedConnections = new HashMap<String, PipelinedConnection>();
     }
 
     @Override
@@ -53,23 +74,23 @@ public class KVStore implements KVCommInterface {
 	    logger.error("Failed to gracefully close connection: " + e.getMessage());
 	}
 
+	synchronized (this.pipelinedConnections) {
+	    for (PipelinedConnection connection: this.pipelinedConnections.values()) {
+		connection.close(null);
+	    }
+	    this.pipelinedConnections.clear();
+	}
+
     }
 
     @Override
     public KVMessage put(String key, String value) throws Exception {
 
-	OutputStream output = this.socket.getOutputStream();
-	InputStream input = this.socket.getInputStream();
-
-	String p = new String("put " + key + " " + value + "\r\n"); 
-	byte[] b = p.getBytes("UTF-8");
-
-	output.write(b);
-	output.flush();	
+	this.sendRequest(KVMessage.StatusType.PUT, key, value, "put " + key + " " + value + "\r\n");
 
 	logger.info("Sent protocol message: Put request with key = " + key + ", value = " + value); 
 
-	ProtocolMessage putReply = this.receiveMessage(input);
+	ProtocolMessage putReply = this.receiveMessage();
 
 	logger.info(String.format("Received protocol message: status = %s, key = %s, value = %s", putReply.getStatus(), putReply.getKey(), putReply.getValue())); 
 
@@ -87,18 +108,11 @@ public class KVStore implements KVCommInterface {
     @Override
     public KVMessage get(String key) throws Exception {
 
-	OutputStream output = this.socket.getOutputStream();
-	InputStream input = this.socket.getInputStream();
-
-	String p = new String("get " + key + "\r\n"); 
-	byte[] b = p.getBytes("UTF-8");
-
-	output.write(b);
-	output.flush();	
+	this.sendRequest(KVMessage.StatusType.GET, key, null, "get " + key + "\r\n");
 
 	logger.info("Sent protocol message: GET request with key = " + key + ", value = null"); 
 
-	ProtocolMessage getReply = this.receiveMessage(input);
+	ProtocolMessage getReply = this.receiveMessage();
 
 	logger.info(String.format("Received protocol message: status = %s, key = %s, value = %s", getReply.getStatus(), getReply.getKey(), getReply.getValue())); 
 
@@ -113,14 +127,9 @@ public class KVStore implements KVCommInterface {
 
     public ProtocolMessage keyrange() throws Exception {
 
-	OutputStream output = this.socket.getOutputStream();
-	InputStream input = this.socket.getInputStream();
-
-	String keyrangeRequest = "keyrange\r\n";
-	output.write(keyrangeRequest.getBytes());
-	output.flush();
+	this.sendRequest(KVMessage.StatusType.KEYRANGE, null, null, "keyrange\r\n");
 
-	ProtocolMessage keyrangeReply = this.receiveMessage(input);
+	ProtocolMessage keyrangeReply = this.receiveMessage();
 
 	return keyrangeReply;
 
@@ -128,78 +137,194 @@ public class KVStore implements KVCommInterface {
 
     public ProtocolMessage keyrangeread() throws Exception {
 
-	OutputStream output = this.socket.getOutputStream();
-	InputStream input = this.socket.getInputStream();
-
-	String keyrangeReadRequest = "keyrange_read\r\n";
-	output.write(keyrangeReadRequest.getBytes());
-	output.flush();
+	this.sendRequest(KVMessage.StatusType.KEYRANGE_READ, null, null, "keyrange_read\r\n");
 
-	ProtocolMessage keyrangeReadReply = this.receiveMessage(input);
+	ProtocolMessage keyrangeReadReply = this.receiveMessage();
 
 	return keyrangeReadReply;
     }	
 
-    public ProtocolMessage receiveMessage(InputStream input) throws Exception {
+    /**
+     * @return the server's statistics in the key, as name=value pairs
+     *         separated by ';'
+     */
+    public ProtocolMessage stats() throws Exception {
 
-	int byteCount = 0;
-	int index = 0;
-	byte[] msgBuf = new byte[BUFFER_SIZE];
+	this.sendRequest(KVMessage.StatusType.STATS, null, null, "stats\r\n");
 
-	byte prev_value = 0;
-	byte cur_value = 0;
+	return this.receiveMessage();
+    }
 
-    while ((cur_value = (byte) input.read()) != -1) {
+    /**
+     * Sends a request to the server currently connected to, as text unless
+     * the connection was switched to the binary protocol.
+     */
+    private void sendRequest(KVMessage.StatusType status, String key, String value, String text) throws Exception {
 
-	    msgBuf[byteCount++] = cur_value;
-	    index++;
+	this.useSocket();
 
-	    if (byteCount > DROP_SIZE) {
-		break;
-	    }
+	OutputStream output = this.socket.getOutputStream();
 
-	    if (prev_value == 13 && cur_value == 10) {
-		break;
-	    }
+	if (this.binary) {
+	    output.write(new ProtocolMessage(status, key, value, ++this.nextRequestId).getBinaryBytes());
+	} else {
+	    output.write(text.getBytes("UTF-8"));
+	}
 
-	    if (index == BUFFER_SIZE) {
-		byte[] tmpBuf = new byte[BUFFER_SIZE + byteCount];
-		System.arraycopy(msgBuf, 0, tmpBuf, 0, byteCount);
-		msgBuf = tmpBuf;
-		index = 0;
-	    }
+	output.flush();
+    }
+
+    /**
+     * Reads the next response from the server currently connected to. The
+     * FrameReader, and whatever it has read ahead, is kept until the
+     * connection changes.
+     */
+    public ProtocolMessage receiveMessage() throws Exception {
+
+	this.useSocket();
+
+	ByteBuffer frame = null;
 
-	    prev_value = cur_value;
+	if (this.binary) {
+	    frame = this.frames.readLengthPrefixedFrame();
+	    return ProtocolMessage.fromBinaryAtClient(frame.array(), frame.position(), frame.remaining());
+	}
+
+	frame = this.frames.readFrame();
 
+	return ProtocolMessage.fromBytesAtClient(frame.array(), frame.position(), frame.remaining());
+    }
+
+    /**
+     * Sets up reading from the socket the first time it is used and, if
+     * the binary protocol was asked for, tries to switch it over. Servers
+     * that do not know it reply with an error, and the connection stays on
+     * the text protocol.
+     */
+    private void useSocket() throws Exception {
+
+	if (this.framedSocket == this.socket) {
+	    return;
+	}
+
+	this.frames = new FrameReader(this.socket.getInputStream(), MAX_FRAME_SIZE);
+	this.framedSocket = this.socket;
+	this.binary = this.binaryProtocol && negotiateBinaryProtocol(this.socket, this.frames);
+    }
+
+    /**
+     * Asks the server on the other end of a new connection to switch it to
+     * the binary protocol.
+     * @return whether it did
+     */
+    static boolean negotiateBinaryProtocol(Socket socket, FrameReader frames) throws Exception {
+
+	OutputStream output = socket.getOutputStream();
+	output.write(new ProtocolMessage(KVMessage.StatusType.BINARY_PROTOCOL, ProtocolMessage.BINARY_PROTOCOL_VERSION, null).getBytes());
+	output.flush();
+
+	boolean binary = false;
+
+	try {
+	    ByteBuffer frame = frames.readFrame();
+	    ProtocolMessage reply = ProtocolMessage.fromBytesAtClient(frame.array(), frame.position(), frame.remaining());
+	    binary = reply.getStatus() == KVMessage.StatusType.BINARY_PROTOCOL_ACK;
+	} catch (IllegalArgumentException iae) {
+	    logger.info("Server did not accept binary protocol: " + iae.getMessage());
 	}
 
-	if (cur_value == -1 && byteCount == 0) {
-	    throw new EOFException("EOF reached");
+	logger.info(String.format("Using %s protocol with %s:%d", binary ? "binary" : "text", socket.getInetAddress().getHostName(), socket.getPort()));
+
+	return binary;
+    }
+
+    /**
+     * Gets the value of key without waiting for earlier requests to be
+     * answered. Requests to the same server share one connection, over
+     * the binary protocol if it was asked for, with up to a thousand of
+     * them in flight. Use connect() first to load the metadata.
+     * @return the response, completed on a connection thread, so further
+     *         blocking work should be done with the async methods of the
+     *         future
+     */
+    public CompletableFuture<KVMessage> getAsync(String key) {
+	return this.submitAsync(KVMessage.StatusType.GET, key, null, "get " + key + "\r\n", 0);
+    }
+
+    /**
+     * Puts key like put(), without waiting for earlier requests to be
+     * answered; see getAsync().
+     */
+    public CompletableFuture<KVMessage> putAsync(String key, String value) {
+	return this.submitAsync(KVMessage.StatusType.PUT, key, value, "put " + key + " " + value + "\r\n", 0);
+    }
+
+    /**
+     * Sends a request to the server responsible for key and, if it is no
+     * longer responsible, reloads the metadata from it and tries again.
+     */
+    private CompletableFuture<KVMessage> submitAsync(KVMessage.StatusType status, String key, String value, String text, int redirects) {
+
+	PipelinedConnection connection = null;
+
+	try {
+	    connection = this.getPipelinedConnection(key);
+	} catch (Exception e) {
+	    return CompletableFuture.failedFuture(e);
 	}
 
-	byte[] tmpBuf = new byte[byteCount];
-	System.arraycopy(msgBuf, 0, tmpBuf, 0, byteCount);
-	msgBuf = tmpBuf;
+	PipelinedConnection server = connection;
+
+	return server.submit(status, key, value, text).thenCompose(reply -> {
 
-	return ProtocolMessage.fromBytesAtClient(msgBuf);
+	    if (reply.getStatus() != KVMessage.StatusType.SERVER_NOT_RESPONSIBLE || redirects >= MAX_REDIRECTS) {
+		return CompletableFuture.completedFuture(reply);
+	    }
+
+	    // This runs on the thread reading the responses, which must not
+	    // wait for room to send the next request itself.
+	    return CompletableFuture.supplyAsync(() -> server.submit(KVMessage.StatusType.KEYRANGE, null, null, "keyrange\r\n")).thenCompose(keyRangeReply -> keyRangeReply).thenComposeAsync(keyRangeReply -> {
+		try {
+		    this.metadata = this.parseKeyRangeMessage((ProtocolMessage) keyRangeReply);
+		} catch (Exception e) {
+		    throw new CompletionException(e);
+		}
+		return this.submitAsync(status, key, value, text, redirects + 1);
+	    });
+
+	});
+    }
+
+    private PipelinedConnection getPipelinedConnection(String key) throws Exception {
+
+	KeyRange serverKeyRange = this.findKeyRange(key);
+	String server = serverKeyRange.getAddress() + ":" + serverKeyRange.getPort();
+
+	synchronized (this.pipelinedConnections) {
+
+	    PipelinedConnection connection = this.pipelinedConnections.get(server);
+
+	    if (connection == null || !connection.isOpen()) {
+		connection = new PipelinedConnection(serverKeyRange.getAddress(), serverKeyRange.getPort(), MAX_FRAME_SIZE);
+		connection.start();
+		this.pipelinedConnections.put(server, connection);
+	    }
+
+	    return connection;
+	}
     }
 	
     public KVMessage subscribe(String key, String address, int port) throws Exception {
     	
 	this.socket = identifySocketByKey(key);
 
-	OutputStream output = this.socket.getOutputStream();
-	InputStream input = this.socket.getInputStream();
-
 	String value = address + ":" + Integer.toString(port);
 
-	String subscribeMessage = "subscribe " + key + " " + value + "\r\n";
-	output.write(subscribeMessage.getBytes());
-	output.flush();
+	this.sendRequest(KVMessage.StatusType.SUBSCRIBE, key, value, "subscribe " + key + " " + value + "\r\n");
 	
 	logger.info("Sent protocol message: SUBSCRIBE request with key = " + key);
 
-	ProtocolMessage subscribeReply = this.receiveMessage(input);
+	ProtocolMessage subscribeReply = this.receiveMessage();
 	
 	logger.info(String.format("Received protocol message: status = %s, key = %s, value = %s", subscribeReply.getStatus(), subscribeReply.getKey(), subscribeReply.getValue()));
 
@@ -218,18 +343,13 @@ public class KVStore implements KVCommInterface {
     	
 	this.socket = identifySocketByKey(key);
 
-  	OutputStream output = this.socket.getOutputStream();
-	InputStream input = this.socket.getInputStream();
-
 	String value = address + ":" + Integer.toString(port);
 
-	String unsubscribeMessage = "unsubscribe " + key + " " + value + "\r\n";
-	output.write(unsubscribeMessage.getBytes());
-	output.flush();
+	this.sendRequest(KVMessage.StatusType.UNSUBSCRIBE, key, value, "unsubscribe " + key + " " + value + "\r\n");
 	
 	logger.info("Sent protocol message: UNSUBSCRIBE request with key = " + key);
 
-	ProtocolMessage unsubscribeReply = this.receiveMessage(input);
+	ProtocolMessage unsubscribeReply = this.receiveMessage();
 	
 	logger.info(String.format("Received protocol message: status = %s, key = %s, value = %s", unsubscribeReply.getStatus(), unsubscribeReply.getKey(), unsubscribeReply.getValue()));
 
@@ -303,15 +423,7 @@ public class KVStore implements KVCommInterface {
 
     private Socket identifySocketByKey(String key) throws Exception {
 
-	byte[] hashedKey = this.hashKey(key); 
-
-	var targetServerKeyRangeEntry = this.metadata.ceilingEntry(hashedKey);
-
-	if (targetServerKeyRangeEntry == null) {
-	    targetServerKeyRangeEntry = this.metadata.firstEntry();	
-	}
-
-	var targetServerKeyRange = targetServerKeyRangeEntry.getValue();
+	var targetServerKeyRange = this.findKeyRange(key);
 
 	Socket socket = new Socket(targetServerKeyRange.getAddress(), targetServerKeyRange.getPort());
 	this.currentAddress = targetServerKeyRange.getAddress();
@@ -320,6 +432,23 @@ public class KVStore implements KVCommInterface {
 	return socket;
     }
 
+    /**
+     * @return the key range of the server responsible for key
+     */
+    private KeyRange findKeyRange(String key) throws Exception {
+
+	byte[] hashedKey = this.hashKey(key); 
+
+	var metadata = this.metadata;
+	var targetServerKeyRangeEntry = metadata.ceilingEntry(hashedKey);
+
+	if (targetServerKeyRangeEntry == null) {
+	    targetServerKeyRangeEntry = metadata.firstEntry();	
+	}
+
+	return targetServerKeyRangeEntry.getValue();
+    }
+
     private TreeMap<byte[], KeyRange> parseKeyRangeMessage(ProtocolMessage message) throws Exception {
 
 	var metadata = new TreeMap<byte[], KeyRange>(new ByteArrayComparator());
@@ -0,0 +1,183 @@
+package client;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.*;
+
+import org.apache.log4j.Logger;
+
+import shared.FrameReader;
+import shared.messages.KVMessage;
+
+/**
+ * Connection to one server that carries many requests at once. Requests
+ * are written as soon as they are submitted, without waiting for the
+ * responses to earlier ones, and this thread reads the responses and
+ * completes the future of each request. Over the binary protocol the
+ * responses are matched to requests by their request id; should the
+ * server only speak text, they are matched in order, which is the order
+ * the server handles the requests of a connection in. At most
+ * MAX_OUTSTANDING requests are unanswered at a time; submitting more
+ * blocks until responses arrive.
+ */
+class PipelinedConnection extends Thread {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private static final int MAX_OUTSTANDING = 1024;
+
+    private Socket socket;
+    private OutputStream output;
+    private FrameReader frames;
+    private boolean binary;
+
+    private Object writeLock;
+    private int nextRequestId;
+    private ConcurrentHashMap<Integer, CompletableFuture<KVMessage>> pending;
+    private ConcurrentLinkedQueue<Integer> order;
+    private Semaphore outstanding;
+    private volatile boolean open;
+
+    PipelinedConnection(String address, int port, int maxFrameSize) throws Exception {
+
+	super("Pipelined Connection " + address + ":" + port);
+
+	this.socket = new Socket(address, port);
+	this.socket.setTcpNoDelay(true);
+	this.output = new BufferedOutputStream(this.socket.getOutputStream());
+	this.frames = new FrameReader(this.socket.getInputStream(), maxFrameSize);
+	this.binary = KVStore.negotiateBinaryProtocol(this.socket, this.frames);
+
+	this.writeLock = new Object();
+	this.nextRequestId = 0;
+	this.pending = new ConcurrentHashMap<Integer, CompletableFuture<KVMessage>>();
+	this.order = new ConcurrentLinkedQueue<Integer>();
+	this.outstanding = new Semaphore(MAX_OUTSTANDING);
+	this.open = true;
+
+	this.setDaemon(true);
+    }
+
+    /**
+     * Sends a request without waiting for the response.
+     * @return the response, or an exception if the connection failed first
+     */
+    CompletableFuture<KVMessage> submit(KVMessage.StatusType status, String key, String value, String text) {
+
+	var response = new CompletableFuture<KVMessage>();
+
+	try {
+	    this.outstanding.acquire();
+	} catch (InterruptedException ie) {
+	    response.completeExceptionally(ie);
+	    return response;
+	}
+
+	try {
+
+	    synchronized (this.writeLock) {
+
+		if (!this.open) {
+		    this.outstanding.release();
+		    throw new IOException(this.getName() + " is closed");
+		}
+
+		int requestId = ++this.nextRequestId;
+
+		this.pending.put(requestId, response);
+
+		if (this.binary) {
+		    this.output.write(new ProtocolMessage(status, key, value, requestId).getBinaryBytes());
+		} else {
+		    this.order.add(requestId);
+		    this.output.write(text.getBytes("UTF-8"));
+		}
+
+		this.output.flush();
+	    }
+
+	} catch (Exception e) {
+	    this.close(e);
+	    response.completeExceptionally(e);
+	}
+
+	return response;
+    }
+
+    @Override
+    public void run() {
+
+	try {
+
+	    while (this.open) {
+
+		ProtocolMessage reply = null;
+
+		if (this.binary) {
+		    ByteBuffer frame = this.frames.readLengthPrefixedFrame();
+		    reply = ProtocolMessage.fromBinaryAtClient(frame.array(), frame.position(), frame.remaining());
+		} else {
+		    ByteBuffer frame = this.frames.readFrame();
+		    reply = ProtocolMessage.fromBytesAtClient(frame.array(), frame.position(), frame.remaining());
+		}
+
+		Integer requestId = this.binary ? Integer.valueOf(reply.getRequestId()) : this.order.poll();
+		CompletableFuture<KVMessage> response = requestId == null ? null : this.pending.remove(requestId);
+
+		if (response == null) {
+		    throw new IOException("Received response to unknown request " + requestId);
+		}
+
+		this.outstanding.release();
+		response.complete(reply);
+	    }
+
+	} catch (Exception e) {
+	    this.close(e);
+	}
+
+    }
+
+    boolean isOpen() {
+	return this.open;
+    }
+
+    /**
+     * Closes the connection and fails every request still waiting for its
+     * response.
+     * @param e why, or null if the client disconnected
+     */
+    void close(Exception e) {
+
+	synchronized (this.writeLock) {
+
+	    if (!this.open) {
+		return;
+	    }
+
+	    this.open = false;
+
+	    if (e != null) {
+		logger.info("Pipelined connection failure: " + e.toString());
+	    }
+
+	    try {
+		this.socket.close();
+	    } catch (IOException ioe) {
+		logger.error("Failed to gracefully close connection: " + ioe.toString());
+	    }
+	}
+
+	Exception cause = e != null ? e : new IOException("Disconnected");
+
+	for (Integer requestId: this.pending.keySet()) {
+	    CompletableFuture<KVMessage> response = this.pending.remove(requestId);
+	    if (response != null) {
+		this.outstanding.release();
+		response.completeExceptionally(cause);
+	    }
+	}
+    }
+
+}
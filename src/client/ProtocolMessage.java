@@ -1,36 +1,83 @@
 package client;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 import shared.messages.KVMessage;
 
 public class ProtocolMessage implements Serializable, KVMessage {
 
-    private static final long serialVersionUID = 0x419;
+    private static final long serialVersionUID = 0x41a;
+
+    /**
+     * Version of the binary protocol a client asks for with a
+     * BINARY_PROTOCOL request, and the server confirms with
+     * BINARY_PROTOCOL_ACK. Servers that do not know it answer FAILED and the
+     * connection stays on the text protocol.
+     */
+    public static final String BINARY_PROTOCOL_VERSION = "1";
+
+    /**
+     * Status of every binary protocol opcode, or null for bytes that are
+     * not an opcode.
+     */
+    private static final StatusType[] STATUS_BY_OPCODE = new StatusType[256];
+
+    static {
+	for (StatusType status: StatusType.values()) {
+	    int opcode = status.getOpcode() & 0xff;
+	    if (STATUS_BY_OPCODE[opcode] != null) {
+		throw new IllegalStateException("Opcode " + opcode + " is used by both " + STATUS_BY_OPCODE[opcode] + " and " + status);
+	    }
+	    STATUS_BY_OPCODE[opcode] = status;
+	}
+    }
    
     private StatusType status; 
     private String key;
     private String value;
+    private int requestId;
 
     public ProtocolMessage(StatusType status, String key, String value) {
+	this(status, key, value, 0);
+    }
+
+    /**
+     * @param requestId identifies a binary request, and is repeated in the
+     *           response to it; always 0 in the text protocol
+     */
+    public ProtocolMessage(StatusType status, String key, String value, int requestId) {
 	this.status = status;
 	this.key = key;
 	this.value = value;
+	this.requestId = requestId;
     }
 
     public static ProtocolMessage fromBytesAtServer(byte[] buf) throws Exception {
+	return fromBytesAtServer(buf, 0, buf.length);
+    }
+
+    /**
+     * Parses the request in buf[offset, offset + length), e.g. a frame
+     * handed out by a FrameReader.
+     */
+    public static ProtocolMessage fromBytesAtServer(byte[] buf, int offset, int length) throws Exception {
 
 	StatusType protocolStatus = null;
 	String protocolKey = null;
 	String protocolValue = null;
 
-	String msgString = new String(buf, StandardCharsets.UTF_8);
+	String msgString = new String(buf, offset, length, StandardCharsets.UTF_8);
 
 	if (msgString.equals("keyrange\r\n")) {
 	    return new ProtocolMessage(StatusType.KEYRANGE, null, null);
 	} else if (msgString.equals("keyrange_read\r\n")) {
 	    return new ProtocolMessage(StatusType.KEYRANGE_READ, null, null);
+	} else if (msgString.equals("stats\r\n")) {
+	    return new ProtocolMessage(StatusType.STATS, null, null);
 	}
 	
 	int indexOfFirstSpace = msgString.indexOf(" ");
@@ -66,6 +113,9 @@ public class ProtocolMessage implements Serializable, KVMessage {
 	    case "replicate_kv_handshake_nack":
 		protocolStatus = KVMessage.StatusType.REPLICATE_KV_HANDSHAKE_NACK;
 		break;
+	    case "binary_protocol":
+		protocolStatus = KVMessage.StatusType.BINARY_PROTOCOL;
+		break;
 	    default:
 		throw new IllegalArgumentException("Error: Request type must be either PUT or GET");
 	}
@@ -135,7 +185,7 @@ public class ProtocolMessage implements Serializable, KVMessage {
 		protocolValue = value.substring(0, value.length() - 2);
 	    }
 	
-	} else if (protocolStatus == KVMessage.StatusType.REPLICATE_KV_HANDSHAKE) {
+	} else if (protocolStatus == KVMessage.StatusType.REPLICATE_KV_HANDSHAKE || protocolStatus == KVMessage.StatusType.BINARY_PROTOCOL) {
 
 	    String key = msgString.substring(indexOfFirstSpace + 1);
 
@@ -153,12 +203,19 @@ public class ProtocolMessage implements Serializable, KVMessage {
     }
 
     public static ProtocolMessage fromBytesAtClient(byte[] buf) throws Exception {
+	return fromBytesAtClient(buf, 0, buf.length);
+    }
+
+    /**
+     * Parses the response in buf[offset, offset + length).
+     */
+    public static ProtocolMessage fromBytesAtClient(byte[] buf, int offset, int length) throws Exception {
 
 	StatusType protocolStatus = null;
 	String protocolKey = null;
 	String protocolValue = null;
 
-	String msgString = new String(buf, StandardCharsets.UTF_8);
+	String msgString = new String(buf, offset, length, StandardCharsets.UTF_8);
 
 	if (msgString.equals("SERVER_NOT_RESPONSIBLE\r\n")) {
 	    return new ProtocolMessage(StatusType.SERVER_NOT_RESPONSIBLE, null, null);
@@ -193,6 +250,10 @@ public class ProtocolMessage implements Serializable, KVMessage {
 	    protocolStatus = StatusType.UNSUBSCRIBE_SUCCESS;
     	} else if (status.toLowerCase().equals("unsubscribe_error")) {
 	    protocolStatus = StatusType.UNSUBSCRIBE_ERROR;
+	} else if (status.toLowerCase().equals("binary_protocol_ack")) {
+	    protocolStatus = StatusType.BINARY_PROTOCOL_ACK;
+	} else if (status.toLowerCase().equals("stats_success")) {
+	    protocolStatus = StatusType.STATS_SUCCESS;
 	} else {
 	    throw new IllegalArgumentException("Error: Malformed StatusType response from server");
 	}
@@ -230,7 +291,7 @@ public class ProtocolMessage implements Serializable, KVMessage {
 	    protocolKey = key.substring(0, key.length() - 2);
 	    protocolValue = "null";
 
-	} else if (protocolStatus == StatusType.KEYRANGE_SUCCESS || protocolStatus == StatusType.KEYRANGE_READ_SUCCESS) {
+	} else if (protocolStatus == StatusType.KEYRANGE_SUCCESS || protocolStatus == StatusType.KEYRANGE_READ_SUCCESS || protocolStatus == StatusType.STATS_SUCCESS) {
 
 	    String key = msgString.substring(indexOfFirstSpace + 1);
 
@@ -280,7 +341,8 @@ public class ProtocolMessage implements Serializable, KVMessage {
 
 	String msgString = null;
 
-	if (this.status == StatusType.KEYRANGE_SUCCESS || this.status == StatusType.KEYRANGE_READ_SUCCESS || this.status == StatusType.REPLICATE_KV_HANDSHAKE) {
+	if (this.status == StatusType.KEYRANGE_SUCCESS || this.status == StatusType.KEYRANGE_READ_SUCCESS || this.status == StatusType.REPLICATE_KV_HANDSHAKE ||
+	    this.status == StatusType.BINARY_PROTOCOL || this.status == StatusType.BINARY_PROTOCOL_ACK || this.status == StatusType.STATS_SUCCESS) {
 	    msgString = this.status.toString() + " " + this.key + "\r\n";     
 	} else if (this.status == StatusType.SERVER_NOT_RESPONSIBLE) {
 	    msgString = this.status.toString() + "\r\n";
@@ -291,6 +353,140 @@ public class ProtocolMessage implements Serializable, KVMessage {
 	return msgString.getBytes("UTF-8");
     }
 
+    /**
+     * Decodes a request sent over the binary protocol and checks it like
+     * fromBytesAtServer does.
+     * @param buf holds the message after its length in
+     *           buf[offset, offset + length)
+     */
+    public static ProtocolMessage fromBinaryAtServer(byte[] buf, int offset, int length) throws IOException, IllegalArgumentException {
+
+	ProtocolMessage message = fromBinary(buf, offset, length);
+
+	StatusType status = message.getStatus();
+
+	if (status != StatusType.PUT && status != StatusType.GET && status != StatusType.KEYRANGE && status != StatusType.KEYRANGE_READ &&
+	    status != StatusType.SUBSCRIBE && status != StatusType.UNSUBSCRIBE && status != StatusType.STATS) {
+	    throw new IllegalArgumentException("Error: Invalid request type");
+	}
+
+	if (status == StatusType.KEYRANGE || status == StatusType.KEYRANGE_READ || status == StatusType.STATS) {
+	    return message;
+	}
+
+	if (message.getKey() == null) {
+	    throw new IllegalArgumentException("Error: " + status.toString() + " request must have a key");
+	} else if (message.getKey().getBytes(StandardCharsets.UTF_8).length > 20) {
+	    throw new IllegalArgumentException("Error: Key must be less than or equal to 20 bytes");
+	}
+
+	if (status == StatusType.GET) {
+	    return new ProtocolMessage(status, message.getKey(), "null", message.getRequestId());
+	}
+
+	if (message.getValue() == null) {
+	    throw new IllegalArgumentException("Error: " + status.toString() + " request must have an associated value");
+	} else if (message.getValue().getBytes(StandardCharsets.UTF_8).length > 120 * 1024) {
+	    throw new IllegalArgumentException("Error: Value must be less than or equal to 120 kilobytes");
+	}
+
+	return message;
+    }
+
+    /**
+     * Decodes a response sent over the binary protocol.
+     * @param buf holds the message after its length in
+     *           buf[offset, offset + length)
+     */
+    public static ProtocolMessage fromBinaryAtClient(byte[] buf, int offset, int length) throws IOException, IllegalArgumentException {
+	return fromBinary(buf, offset, length);
+    }
+
+    /**
+     * @throws IOException if the message starts with a byte that is not an
+     *           opcode, since the peer then speaks a protocol this side does
+     *           not know and nothing it sends can be trusted
+     */
+    private static ProtocolMessage fromBinary(byte[] buf, int offset, int length) throws IOException, IllegalArgumentException {
+
+	ByteBuffer message = ByteBuffer.wrap(buf, offset, length);
+
+	try {
+
+	    int opcode = message.get() & 0xff;
+	    StatusType status = STATUS_BY_OPCODE[opcode];
+
+	    if (status == null) {
+		throw new IOException("Error: Unknown binary protocol opcode " + opcode);
+	    }
+
+	    int requestId = message.getInt();
+	    String key = getBinaryString(message);
+	    String value = getBinaryString(message);
+
+	    if (message.hasRemaining()) {
+		throw new IllegalArgumentException("Error: Malformed message");
+	    }
+
+	    return new ProtocolMessage(status, key, value, requestId);
+
+	} catch (BufferUnderflowException bue) {
+	    throw new IllegalArgumentException("Error: Malformed message");
+	}
+    }
+
+    private static String getBinaryString(ByteBuffer message) {
+
+	int length = message.getInt();
+
+	if (length == -1) {
+	    return null;
+	} else if (length < 0 || length > message.remaining()) {
+	    throw new IllegalArgumentException("Error: Malformed message");
+	}
+
+	String string = new String(message.array(), message.arrayOffset() + message.position(), length, StandardCharsets.UTF_8);
+	message.position(message.position() + length);
+
+	return string;
+    }
+
+    /**
+     * Encodes the message for a connection that switched to the binary
+     * protocol:
+     *
+     *   int length | byte status | int requestId | int keyLength | key | int valueLength | value
+     *
+     * length counts the bytes after it, status is the StatusType's opcode,
+     * and a key or value length of -1 stands for null. Keys and values are
+     * UTF-8 and, unlike in the text protocol, may contain spaces and CRLF.
+     */
+    public byte[] getBinaryBytes() {
+
+	byte[] keyBytes = this.key == null ? null : this.key.getBytes(StandardCharsets.UTF_8);
+	byte[] valueBytes = this.value == null ? null : this.value.getBytes(StandardCharsets.UTF_8);
+
+	int length = 1 + 4 + 4 + (keyBytes == null ? 0 : keyBytes.length) + 4 + (valueBytes == null ? 0 : valueBytes.length);
+
+	ByteBuffer message = ByteBuffer.allocate(4 + length);
+	message.putInt(length);
+	message.put(this.status.getOpcode());
+	message.putInt(this.requestId);
+	putBinaryBytes(message, keyBytes);
+	putBinaryBytes(message, valueBytes);
+
+	return message.array();
+    }
+
+    private static void putBinaryBytes(ByteBuffer message, byte[] bytes) {
+	if (bytes == null) {
+	    message.putInt(-1);
+	} else {
+	    message.putInt(bytes.length);
+	    message.put(bytes);
+	}
+    }
+
     public String getKey() {
 	return this.key;
     }
@@ -303,4 +499,8 @@ public class ProtocolMessage implements Serializable, KVMessage {
 	return this.status;
     }
 
+    public int getRequestId() {
+	return this.requestId;
+    }
+
 }
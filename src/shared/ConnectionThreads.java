@@ -0,0 +1,76 @@
+package shared;
+
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Starts the handlers of client and server-to-server connections. Each
+ * handler is a Thread subclass that blocks on its socket; normally it is
+ * started as the platform thread it is. Once useVirtualThreads() was
+ * called, its run() is instead run on a new virtual thread of the same
+ * name, so a process can hold far more connections without changing how
+ * the handlers are written. The setting applies to the whole process.
+ *
+ * The build targets Java 11, so virtual threads are looked up reflectively
+ * and the handlers stay on platform threads on JVMs without them.
+ */
+public final class ConnectionThreads {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private static volatile ThreadFactory virtualThreadFactory = null;
+
+    private ConnectionThreads() {
+    }
+
+    /**
+     * Runs every handler started from now on on a virtual thread.
+     * @return false if this JVM has no virtual threads, so handlers keep
+     *         running on platform threads
+     */
+    public static boolean useVirtualThreads() {
+
+	try {
+	    Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+	    Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+	    virtualThreadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+	    return true;
+	} catch (ReflectiveOperationException | RuntimeException e) {
+	    logger.warn("Virtual threads are not available, using platform threads: " + e.toString());
+	    return false;
+	}
+    }
+
+    /**
+     * Starts handlers as platform threads again, as before
+     * useVirtualThreads() was called.
+     */
+    public static void usePlatformThreads() {
+	virtualThreadFactory = null;
+    }
+
+    public static boolean usingVirtualThreads() {
+	return virtualThreadFactory != null;
+    }
+
+    /**
+     * Starts handler, either as a platform thread or by running it on a
+     * virtual thread. In the latter case handler itself is never started,
+     * so it must not be joined or interrupted.
+     */
+    public static void start(Thread handler) {
+
+	ThreadFactory factory = virtualThreadFactory;
+
+	if (factory == null) {
+	    handler.start();
+	    return;
+	}
+
+	Thread thread = factory.newThread(handler);
+	thread.setName(handler.getName());
+	thread.start();
+    }
+
+}
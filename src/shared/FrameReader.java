@@ -0,0 +1,163 @@
+package shared;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits a stream into CRLF terminated protocol messages. The stream is
+ * read in bulk into a buffer kept for the whole connection, each byte is
+ * scanned for the CRLF once, and the buffer only grows for messages that
+ * do not fit, up to maxFrameSize. A frame is handed out as a view of the
+ * buffer that stays valid until the next call, so messages are parsed
+ * where they were read to instead of being copied.
+ *
+ * Messages of the binary protocol are instead preceded by their length,
+ * see readLengthPrefixedFrame(). Bytes after a message may already have
+ * been read, so a connection that switches to another protocol has to
+ * continue reading through remaining().
+ */
+public class FrameReader {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final InputStream input;
+    private final int maxFrameSize;
+
+    private byte[] buffer;
+    private int start;
+    private int end;
+
+    /**
+     * @param maxFrameSize messages longer than this are split after this
+     *           many bytes
+     */
+    public FrameReader(InputStream input, int maxFrameSize) {
+	this.input = input;
+	this.maxFrameSize = maxFrameSize;
+	this.buffer = new byte[0];
+	this.start = 0;
+	this.end = 0;
+    }
+
+    /**
+     * @return the next message including its CRLF, its first maxFrameSize
+     *         bytes if it is longer, or what is left of it if the stream
+     *         ends first
+     * @throws EOFException if the stream ended before the next message
+     */
+    public ByteBuffer readFrame() throws IOException {
+
+	int scanned = 1;
+
+	while (true) {
+
+	    int scanEnd = Math.min(this.end, this.start + this.maxFrameSize);
+
+	    for (int i = this.start + scanned; i < scanEnd; i++) {
+		if (this.buffer[i] == 10 && this.buffer[i - 1] == 13) {
+		    return this.take(i + 1 - this.start);
+		}
+	    }
+
+	    scanned = Math.max(scanned, scanEnd - this.start);
+
+	    if (this.end - this.start >= this.maxFrameSize) {
+		return this.take(this.maxFrameSize);
+	    }
+
+	    if (!this.fill()) {
+		if (this.end == this.start) {
+		    throw new EOFException("EOF reached");
+		}
+		return this.take(this.end - this.start);
+	    }
+
+	}
+
+    }
+
+    /**
+     * @return the next message of the binary protocol, without the int
+     *         before it that gives its length
+     * @throws EOFException if the stream ends before the whole message
+     * @throws IOException if the length is negative or over maxFrameSize
+     */
+    public ByteBuffer readLengthPrefixedFrame() throws IOException {
+
+	this.require(4);
+
+	int length = ByteBuffer.wrap(this.buffer, this.start, 4).getInt();
+
+	if (length < 0 || length > this.maxFrameSize) {
+	    throw new IOException("Error: Invalid message length " + length);
+	}
+
+	this.require(4 + length);
+	this.start += 4;
+
+	return this.take(length);
+    }
+
+    private void require(int length) throws IOException {
+	while (this.end - this.start < length) {
+	    if (!this.fill()) {
+		throw new EOFException("EOF reached");
+	    }
+	}
+    }
+
+    private ByteBuffer take(int length) {
+	ByteBuffer frame = ByteBuffer.wrap(this.buffer, this.start, length);
+	this.start += length;
+	return frame;
+    }
+
+    /**
+     * Reads as much as is available into the buffer after the unread
+     * bytes, first moving them to its front or growing it if it is full.
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException {
+
+	if (this.start == this.end) {
+	    this.start = 0;
+	    this.end = 0;
+	}
+
+	if (this.end == this.buffer.length) {
+	    int unread = this.end - this.start;
+	    byte[] target = this.buffer;
+	    if (this.start == 0) {
+		target = new byte[Math.min(Math.max(2 * this.buffer.length, BUFFER_SIZE), this.maxFrameSize + 4)];
+	    }
+	    System.arraycopy(this.buffer, this.start, target, 0, unread);
+	    this.buffer = target;
+	    this.start = 0;
+	    this.end = unread;
+	}
+
+	int read = this.input.read(this.buffer, this.end, this.buffer.length - this.end);
+
+	if (read < 0) {
+	    return false;
+	}
+
+	this.end += read;
+
+	return true;
+    }
+
+    /**
+     * @return a stream of the bytes read past the last message followed by
+     *         the rest of the input; the reader must not be used afterwards
+     */
+    public InputStream remaining() {
+
+	var readAhead = new ByteArrayInputStream(this.buffer, this.start, this.end - this.start);
+
+	this.start = this.end;
+
+	return new SequenceInputStream(readAhead, this.input);
+    }
+
+}
@@ -3,37 +3,58 @@ package shared.messages;
 public interface KVMessage {
 	
 	public enum StatusType {
-		GET, 			/* Get - request */
-		GET_ERROR, 		/* requested tuple (i.e. value) not found */
-		GET_SUCCESS, 	/* requested tuple (i.e. value) found */
-		PUT, 			/* Put - request */
-		PUT_SUCCESS, 	/* Put - request successful, tuple inserted */
-		PUT_UPDATE, 	/* Put - request successful, i.e. value updated */
-		PUT_ERROR, 		/* Put - request not successful */
-		DELETE_SUCCESS, /* Delete - request successful */
-		DELETE_ERROR, 	/* Delete - request successful */
-		FAILED,
-
-		KEYRANGE,
-		KEYRANGE_SUCCESS,
-		KEYRANGE_READ,
-		KEYRANGE_READ_SUCCESS,
-		SERVER_STOPPED,
-		SERVER_WRITE_LOCK,
-		SERVER_NOT_RESPONSIBLE,
-
-		SERVER_INIT,
-
-		REPLICATE_KV_HANDSHAKE,
-		REPLICATE_KV_HANDSHAKE_ACK,
-		REPLICATE_KV_HANDSHAKE_NACK,
-
-		SUBSCRIBE,
-		SUBSCRIBE_SUCCESS,
-		SUBSCRIBE_ERROR,
-		UNSUBSCRIBE,
-		UNSUBSCRIBE_SUCCESS,
-		UNSUBSCRIBE_ERROR,
+		GET(0), 			/* Get - request */
+		GET_ERROR(1), 		/* requested tuple (i.e. value) not found */
+		GET_SUCCESS(2), 	/* requested tuple (i.e. value) found */
+		PUT(3), 			/* Put - request */
+		PUT_SUCCESS(4), 	/* Put - request successful, tuple inserted */
+		PUT_UPDATE(5), 	/* Put - request successful, i.e. value updated */
+		PUT_ERROR(6), 		/* Put - request not successful */
+		DELETE_SUCCESS(7), /* Delete - request successful */
+		DELETE_ERROR(8), 	/* Delete - request successful */
+		FAILED(9),
+
+		KEYRANGE(10),
+		KEYRANGE_SUCCESS(11),
+		KEYRANGE_READ(12),
+		KEYRANGE_READ_SUCCESS(13),
+		SERVER_STOPPED(14),
+		SERVER_WRITE_LOCK(15),
+		SERVER_NOT_RESPONSIBLE(16),
+
+		SERVER_INIT(17),
+
+		REPLICATE_KV_HANDSHAKE(18),
+		REPLICATE_KV_HANDSHAKE_ACK(19),
+		REPLICATE_KV_HANDSHAKE_NACK(20),
+
+		SUBSCRIBE(21),
+		SUBSCRIBE_SUCCESS(22),
+		SUBSCRIBE_ERROR(23),
+		UNSUBSCRIBE(24),
+		UNSUBSCRIBE_SUCCESS(25),
+		UNSUBSCRIBE_ERROR(26),
+
+		BINARY_PROTOCOL(27), 		/* switch connection to the binary protocol - request */
+		BINARY_PROTOCOL_ACK(28), 	/* connection uses the binary protocol from now on */
+
+		STATS(29), 			/* server statistics - request */
+		STATS_SUCCESS(30); 	/* server statistics, as name=value pairs separated by ';' */
+
+		private final byte opcode;
+
+		private StatusType(int opcode) {
+			this.opcode = (byte) opcode;
+		}
+
+		/**
+		 * @return the byte that stands for this status in the binary
+		 * 		protocol. Opcodes are fixed, so statuses can be added
+		 * 		anywhere without changing what clients send.
+		 */
+		public byte getOpcode() {
+			return this.opcode;
+		}
 	}
 
 	/**
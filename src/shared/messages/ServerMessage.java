@@ -5,9 +5,16 @@ import java.util.*;
 
 import client.ClientSubscriptionInfo;
 
+/**
+ * Message between servers. Messages that carry a store file only describe
+ * it; its fileLength bytes follow the message on the connection, so files
+ * are streamed between disk and socket instead of being held in memory.
+ * REPLICATE_WAL messages are followed the same way by a batch of WAL
+ * records.
+ */
 public class ServerMessage implements Serializable {
 
-    private static final long serialVersionUID = 0x419;
+    private static final long serialVersionUID = 0x41b;
 
     public enum StatusType {
 	SEND_KV,
@@ -20,30 +27,51 @@ public class ServerMessage implements Serializable {
 	REPLICATE_KV_2_FIN,
 	SEND_SUBSCRIPTIONS,
 	REPLICATE_SUBSCRIPTIONS, 
+	REPLICATE_WAL_1,
+	REPLICATE_WAL_2,
+	REPLICATE_ACK,
     }
 
-    public ServerMessage(StatusType status, byte[][] fileContents, TreeMap<String, List<ClientSubscriptionInfo>> subscriptions) {
+    /**
+     * @param fileLength length of the store file or WAL records that follow
+     *           the message, or -1 if nothing does
+     */
+    public ServerMessage(StatusType status, long fileLength, TreeMap<String, List<ClientSubscriptionInfo>> subscriptions) {
+	this(status, fileLength, subscriptions, -1);
+    }
+
+    /**
+     * @param sequence WAL sequence number a replica holds every write up
+     *           to: the one a full copy was taken at on REPLICATE_KV_*_FIN,
+     *           the highest one applied on REPLICATE_ACK; -1 if the sender
+     *           does not expect an acknowledgement
+     */
+    public ServerMessage(StatusType status, long fileLength, TreeMap<String, List<ClientSubscriptionInfo>> subscriptions, long sequence) {
 	this.status = status;
-	if (fileContents != null) {
-	    this.fileContents = Arrays.stream(fileContents).map(byte[]::clone).toArray(byte[][]::new);
-	}
+	this.fileLength = fileLength;
 	this.subscriptions = subscriptions;
+	this.sequence = sequence;
     }
 
     private StatusType status;
-    private byte[][] fileContents;
+    private long fileLength;
     private TreeMap<String, List<ClientSubscriptionInfo>> subscriptions;
+    private long sequence;
 
     public StatusType getStatus() {
 	return this.status;
     }
 
-    public byte[][] getFileContents() {
-	return this.fileContents;
+    public long getFileLength() {
+	return this.fileLength;
     }
 
     public TreeMap<String, List<ClientSubscriptionInfo>> getSubscriptions() {
 	return this.subscriptions;
     }
 
+    public long getSequence() {
+	return this.sequence;
+    }
+
 }
@@ -23,7 +23,7 @@ public class AllTests {
     
     public static Test suite() {
 	TestSuite clientSuite = new TestSuite("Basic Storage ServerTest-Suite");
-	//clientSuite.addTestSuite(ProtocolTest.class);
+	clientSuite.addTestSuite(ProtocolTest.class);
 	//clientSuite.addTestSuite(ClientTest.class);
 	//clientSuite.addTestSuite(ServerTest.class);
 	//clientSuite.addTestSuite(KeyRangeTest.class);
@@ -31,7 +31,15 @@ public class AllTests {
 	//clientSuite.addTestSuite(StoreTest.class);
 	//clientSuite.addTestSuite(KeyrangeReadTest.class);
 	//clientSuite.addTestSuite(ReplicationTest.class);
+	clientSuite.addTest(TestSuite.createTest(ReplicationTest.class, "testBothReplicasReceiveSameSnapshot"));
 	clientSuite.addTestSuite(ClientRandomTest.class);
+	clientSuite.addTestSuite(StoreFileTest.class);
+	clientSuite.addTestSuite(MemtableTest.class);
+	clientSuite.addTestSuite(WriteAheadLogTest.class);
+	clientSuite.addTestSuite(CacheTest.class);
+	clientSuite.addTestSuite(SelectorFrontEndTest.class);
+	clientSuite.addTestSuite(ConnectionThreadsTest.class);
+	clientSuite.addTestSuite(AsyncClientTest.class);
 	//clientSuite.addTestSuite(PerformanceTest.class);
 	//clientSuite.addTestSuite(PerformanceTestM2.class);
 	return clientSuite;
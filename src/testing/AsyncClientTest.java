@@ -0,0 +1,404 @@
+package testing;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+
+import client.KVStore;
+import client.ProtocolMessage;
+import shared.FrameReader;
+import shared.messages.KVMessage;
+import shared.messages.KVMessage.StatusType;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+
+public class AsyncClientTest extends TestCase {
+
+    private static final int MAX_FRAME_SIZE = 128 * 1024 + 1;
+    private static final int MAX_OUTSTANDING = 1024;
+
+    private ScriptedServer server;
+    private ScriptedServer otherServer;
+    private KVStore kvStore;
+
+    public void setUp() {
+
+	try {
+	    server = new ScriptedServer();
+	    otherServer = new ScriptedServer();
+	} catch (Exception e) {
+	    e.printStackTrace();
+	    return;
+	}
+
+    }
+
+    public void tearDown() {
+
+	if (kvStore != null) {
+	    kvStore.disconnect();
+	}
+
+	server.close();
+	otherServer.close();
+
+    }
+
+    @Test
+    public void testBinaryResponsesMatchedByRequestId() {
+	Exception ex = null;
+
+	try {
+	    kvStore = new KVStore("localhost", server.getPort(), true);
+	    kvStore.connect();
+
+	    var responses = new ArrayList<CompletableFuture<KVMessage>>();
+	    for (int i = 0; i < 10; i++) {
+		responses.add(kvStore.getAsync("key" + i));
+	    }
+
+	    var requests = server.take(10);
+
+	    // Answered last to first, as a server handling them concurrently
+	    // might.
+	    Collections.reverse(requests);
+	    for (Request request: requests) {
+		assertTrue(request.binary);
+		request.respond(StatusType.GET_SUCCESS, request.message.getKey(), "value of " + request.message.getKey());
+	    }
+
+	    for (int i = 0; i < 10; i++) {
+		KVMessage response = responses.get(i).get(5, TimeUnit.SECONDS);
+		assertEquals(StatusType.GET_SUCCESS, response.getStatus());
+		assertEquals("value of key" + i, response.getValue());
+	    }
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+    }
+
+    @Test
+    public void testTextResponsesMatchedInOrder() {
+	Exception ex = null;
+
+	try {
+	    server.acceptBinary = false;
+
+	    kvStore = new KVStore("localhost", server.getPort(), true);
+	    kvStore.connect();
+
+	    var responses = new ArrayList<CompletableFuture<KVMessage>>();
+	    for (int i = 0; i < 10; i++) {
+		responses.add(i % 2 == 0 ? kvStore.putAsync("key" + i, "value" + i) : kvStore.getAsync("key" + i));
+	    }
+
+	    for (Request request: server.take(10)) {
+		assertFalse(request.binary);
+		if (request.message.getStatus() == StatusType.PUT) {
+		    request.respond(StatusType.PUT_SUCCESS, request.message.getKey(), request.message.getValue());
+		} else {
+		    request.respond(StatusType.GET_SUCCESS, request.message.getKey(), "stored " + request.message.getKey());
+		}
+	    }
+
+	    for (int i = 0; i < 10; i++) {
+		KVMessage response = responses.get(i).get(5, TimeUnit.SECONDS);
+		assertEquals("key" + i, response.getKey());
+		if (i % 2 == 0) {
+		    assertEquals(StatusType.PUT_SUCCESS, response.getStatus());
+		} else {
+		    assertEquals(StatusType.GET_SUCCESS, response.getStatus());
+		    assertEquals("stored key" + i, response.getValue());
+		}
+	    }
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+    }
+
+    @Test
+    public void testOutstandingRequestsLimited() {
+	Exception ex = null;
+
+	try {
+	    kvStore = new KVStore("localhost", server.getPort(), true);
+	    kvStore.connect();
+
+	    var responses = Collections.synchronizedList(new ArrayList<CompletableFuture<KVMessage>>());
+
+	    Thread submitter = new Thread(() -> {
+		for (int i = 0; i <= MAX_OUTSTANDING; i++) {
+		    responses.add(kvStore.getAsync("key" + i));
+		}
+	    });
+	    submitter.start();
+
+	    var requests = server.take(MAX_OUTSTANDING);
+
+	    // One more than the limit must wait for a response.
+	    assertNull(server.requests.poll(500, TimeUnit.MILLISECONDS));
+	    assertTrue(submitter.isAlive());
+
+	    Request first = requests.remove(0);
+	    first.respond(StatusType.GET_SUCCESS, first.message.getKey(), "value");
+
+	    requests.add(server.take(1).get(0));
+	    submitter.join(5000);
+	    assertFalse(submitter.isAlive());
+
+	    for (Request request: requests) {
+		request.respond(StatusType.GET_SUCCESS, request.message.getKey(), "value");
+	    }
+
+	    assertEquals(MAX_OUTSTANDING + 1, responses.size());
+	    for (var response: responses) {
+		assertEquals(StatusType.GET_SUCCESS, response.get(5, TimeUnit.SECONDS).getStatus());
+	    }
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+    }
+
+    @Test
+    public void testRetriedAfterServerNotResponsible() {
+	Exception ex = null;
+
+	try {
+	    kvStore = new KVStore("localhost", server.getPort(), true);
+	    kvStore.connect();
+
+	    CompletableFuture<KVMessage> response = kvStore.putAsync("moved", "value");
+
+	    // The client then asks the same server for the new metadata, which
+	    // hands the whole ring to the other server.
+	    Request request = server.take(1).get(0);
+	    server.keyRange = fullRing(otherServer.getPort());
+	    request.respond(StatusType.SERVER_NOT_RESPONSIBLE, null, null);
+
+	    Request retried = otherServer.take(1).get(0);
+	    assertEquals(StatusType.PUT, retried.message.getStatus());
+	    assertEquals("moved", retried.message.getKey());
+	    assertEquals("value", retried.message.getValue());
+	    retried.respond(StatusType.PUT_SUCCESS, "moved", "value");
+
+	    assertEquals(StatusType.PUT_SUCCESS, response.get(5, TimeUnit.SECONDS).getStatus());
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+    }
+
+    @Test
+    public void testPendingRequestsFailWhenConnectionCloses() {
+	Exception ex = null;
+
+	try {
+	    kvStore = new KVStore("localhost", server.getPort(), true);
+	    kvStore.connect();
+
+	    var responses = new ArrayList<CompletableFuture<KVMessage>>();
+	    for (int i = 0; i < 5; i++) {
+		responses.add(kvStore.getAsync("key" + i));
+	    }
+
+	    // The server goes away with every request unanswered.
+	    server.take(5).get(0).socket.close();
+
+	    for (var response: responses) {
+		assertFailed(response);
+	    }
+
+	    // The next request opens a new connection, and disconnecting
+	    // fails what it left waiting.
+	    responses.clear();
+	    for (int i = 0; i < 5; i++) {
+		responses.add(kvStore.getAsync("key" + i));
+	    }
+
+	    server.take(5);
+	    kvStore.disconnect();
+
+	    for (var response: responses) {
+		assertFailed(response);
+	    }
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+    }
+
+    private static void assertFailed(CompletableFuture<KVMessage> response) throws Exception {
+	try {
+	    response.get(5, TimeUnit.SECONDS);
+	    fail("Request should have failed");
+	} catch (ExecutionException ee) {
+	    assertTrue(ee.getCause() instanceof IOException);
+	}
+    }
+
+    /**
+     * Metadata in which the server on port is responsible for every key.
+     */
+    private static String fullRing(int port) {
+	String position = "00000000000000000000000000000000";
+	return position + "," + position + ",localhost:" + port + ";";
+    }
+
+    /**
+     * A request received by a ScriptedServer, answered when and in what
+     * order the test chooses.
+     */
+    private static class Request {
+
+	private ProtocolMessage message;
+	private boolean binary;
+	private Socket socket;
+
+	Request(ProtocolMessage message, boolean binary, Socket socket) {
+	    this.message = message;
+	    this.binary = binary;
+	    this.socket = socket;
+	}
+
+	void respond(StatusType status, String key, String value) throws Exception {
+	    ScriptedServer.send(this.socket, this.binary, new ProtocolMessage(status, key, value, this.message.getRequestId()));
+	}
+
+    }
+
+    /**
+     * Stands in for a KVServer. It switches connections to the binary
+     * protocol if acceptBinary, answers KEYRANGE with keyRange itself and
+     * queues every other request for the test to answer.
+     */
+    private static class ScriptedServer {
+
+	private ServerSocket listener;
+	private List<Socket> sockets;
+	private LinkedBlockingQueue<Request> requests;
+	private volatile boolean acceptBinary;
+	private volatile String keyRange;
+
+	ScriptedServer() throws IOException {
+
+	    this.listener = new ServerSocket(0, 0, InetAddress.getByName("localhost"));
+	    this.sockets = Collections.synchronizedList(new ArrayList<Socket>());
+	    this.requests = new LinkedBlockingQueue<Request>();
+	    this.acceptBinary = true;
+	    this.keyRange = fullRing(this.getPort());
+
+	    var acceptor = new Thread(() -> {
+		try {
+		    while (true) {
+			Socket socket = this.listener.accept();
+			this.sockets.add(socket);
+			var handler = new Thread(() -> this.serve(socket));
+			handler.setDaemon(true);
+			handler.start();
+		    }
+		} catch (IOException ioe) {
+		    // Closed by the test.
+		}
+	    });
+	    acceptor.setDaemon(true);
+	    acceptor.start();
+	}
+
+	int getPort() {
+	    return this.listener.getLocalPort();
+	}
+
+	/**
+	 * @return the next count requests, in the order they were received
+	 */
+	List<Request> take(int count) throws Exception {
+
+	    var taken = new ArrayList<Request>();
+
+	    for (int i = 0; i < count; i++) {
+		Request request = this.requests.poll(5, TimeUnit.SECONDS);
+		if (request == null) {
+		    throw new Exception("Received " + i + " of " + count + " requests");
+		}
+		taken.add(request);
+	    }
+
+	    return taken;
+	}
+
+	private void serve(Socket socket) {
+
+	    try {
+
+		FrameReader frames = new FrameReader(socket.getInputStream(), MAX_FRAME_SIZE);
+		boolean binary = false;
+
+		while (true) {
+
+		    ProtocolMessage request = null;
+
+		    if (binary) {
+			ByteBuffer frame = frames.readLengthPrefixedFrame();
+			request = ProtocolMessage.fromBinaryAtServer(frame.array(), frame.position(), frame.remaining());
+		    } else {
+			ByteBuffer frame = frames.readFrame();
+			request = ProtocolMessage.fromBytesAtServer(frame.array(), frame.position(), frame.remaining());
+		    }
+
+		    if (request.getStatus() == StatusType.BINARY_PROTOCOL) {
+			if (this.acceptBinary) {
+			    send(socket, false, new ProtocolMessage(StatusType.BINARY_PROTOCOL_ACK, ProtocolMessage.BINARY_PROTOCOL_VERSION, null));
+			    binary = true;
+			} else {
+			    send(socket, false, new ProtocolMessage(StatusType.FAILED, "Error:", "Unsupported"));
+			}
+		    } else if (request.getStatus() == StatusType.KEYRANGE) {
+			send(socket, binary, new ProtocolMessage(StatusType.KEYRANGE_SUCCESS, this.keyRange, null, request.getRequestId()));
+		    } else {
+			this.requests.add(new Request(request, binary, socket));
+		    }
+		}
+
+	    } catch (Exception e) {
+		// The client or the test closed the connection.
+	    }
+	}
+
+	static void send(Socket socket, boolean binary, ProtocolMessage response) throws Exception {
+	    synchronized (socket) {
+		OutputStream output = socket.getOutputStream();
+		output.write(binary ? response.getBinaryBytes() : response.getBytes());
+		output.flush();
+	    }
+	}
+
+	void close() {
+
+	    try {
+		this.listener.close();
+		synchronized (this.sockets) {
+		    for (Socket socket: this.sockets) {
+			socket.close();
+		    }
+		}
+	    } catch (IOException ioe) {
+		ioe.printStackTrace();
+	    }
+	}
+
+    }
+
+}
@@ -0,0 +1,114 @@
+package testing;
+
+import java.io.*;
+import java.util.*;
+
+import app_kvServer.IKVServer.CacheStrategy;
+import app_kvServer.util.ServerFileManager;
+import app_kvServer.util.ShardedCache;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+
+public class CacheTest extends TestCase {
+
+    private ShardedCache<String, String> newCache(CacheStrategy strategy) {
+	return new ShardedCache<String, String>(strategy, 3, value -> 1);
+    }
+
+    @Test
+    public void testFIFOEvictsOldestInsert() {
+	var cache = newCache(CacheStrategy.FIFO);
+
+	cache.put("a", "1");
+	cache.put("b", "2");
+	cache.put("c", "3");
+	cache.get("a");
+	cache.put("d", "4");
+
+	assertNull(cache.get("a"));
+	assertEquals("2", cache.get("b"));
+	assertEquals("4", cache.get("d"));
+    }
+
+    @Test
+    public void testLRUEvictsLeastRecentlyUsed() {
+	var cache = newCache(CacheStrategy.LRU);
+
+	cache.put("a", "1");
+	cache.put("b", "2");
+	cache.put("c", "3");
+	cache.get("a");
+	cache.put("d", "4");
+
+	assertEquals("1", cache.get("a"));
+	assertNull(cache.get("b"));
+	assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void testLFUEvictsLeastFrequentlyUsed() {
+	var cache = newCache(CacheStrategy.LFU);
+
+	cache.put("a", "1");
+	cache.put("b", "2");
+	cache.put("c", "3");
+	cache.get("a");
+	cache.get("a");
+	cache.get("c");
+	cache.put("d", "4");
+
+	assertEquals("1", cache.get("a"));
+	assertNull(cache.get("b"));
+	assertEquals("3", cache.get("c"));
+	assertEquals("4", cache.get("d"));
+    }
+
+    @Test
+    public void testNoneCachesNothing() {
+	var cache = newCache(CacheStrategy.None);
+
+	cache.put("a", "1");
+
+	assertNull(cache.get("a"));
+	assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testBlockCacheServesRepeatedReads() {
+	Exception ex = null;
+	File dataDirectory = new File("src/testing/data/cache");
+	ServerFileManager serverFileManager = null;
+
+	try {
+	    dataDirectory.mkdirs();
+	    serverFileManager = new ServerFileManager(dataDirectory.getPath(), new TreeMap<String, Optional<String>>(), 10000);
+
+	    var memtable = new TreeMap<String, Optional<String>>();
+	    memtable.put("a", Optional.of("1"));
+	    serverFileManager.dumpCacheToStoreFile(memtable);
+
+	    for (int i = 0; i < 10; i++) {
+		assertEquals("1", serverFileManager.searchForKeyInFiles("a", "KVServerStoreFile_"));
+	    }
+
+	    assertEquals(1, serverFileManager.getBlockCache().getMissCount());
+	    assertEquals(9, serverFileManager.getBlockCache().getHitCount());
+	} catch (Exception e) {
+	    ex = e;
+	} finally {
+	    if (serverFileManager != null) {
+		serverFileManager.close();
+	    }
+	    for (File f: dataDirectory.listFiles()) {
+		f.delete();
+	    }
+	    dataDirectory.delete();
+	}
+
+	assertNull(ex);
+    }
+
+}
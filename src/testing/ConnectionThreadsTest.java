@@ -0,0 +1,151 @@
+package testing;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+
+import app_kvServer.Connection;
+import app_kvServer.KVServer;
+import app_kvServer.util.StorageOptions;
+import client.ProtocolMessage;
+import shared.ConnectionThreads;
+import shared.FrameReader;
+import shared.messages.KVMessage.StatusType;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+
+public class ConnectionThreadsTest extends TestCase {
+
+    private File dataDirectory;
+
+    public void setUp() {
+	dataDirectory = new File("src/testing/data/threads");
+	dataDirectory.mkdirs();
+    }
+
+    public void tearDown() {
+
+	// The setting is process wide, and the other tests expect platform
+	// threads.
+	ConnectionThreads.usePlatformThreads();
+
+	for (File f: dataDirectory.listFiles()) {
+	    f.delete();
+	}
+
+	dataDirectory.delete();
+
+    }
+
+    @Test
+    public void testVirtualFrontEndServesClient() {
+	Exception ex = null;
+
+	KVServer kvServer = null;
+
+	try {
+	    var storageOptions = new StorageOptions();
+	    storageOptions.setFrontEnd(StorageOptions.FrontEnd.VIRTUAL);
+	    kvServer = new KVServer("localhost", 0, "localhost", 0, dataDirectory.getPath(), 10, 5000L, storageOptions);
+
+	    assertEquals(virtualThreadsAvailable(), ConnectionThreads.usingVirtualThreads());
+
+	    TestServers.ownWholeRing(kvServer);
+
+	    try (ServerSocket listener = new ServerSocket(0, 0, InetAddress.getByName("localhost"));
+		 Socket client = new Socket("localhost", listener.getLocalPort());
+		 Socket accepted = listener.accept()) {
+
+		Connection handler = new Connection(accepted, kvServer);
+		ConnectionThreads.start(handler);
+
+		OutputStream output = client.getOutputStream();
+		FrameReader frames = new FrameReader(client.getInputStream(), 128 * 1024 + 1);
+
+		output.write("put virtual value\r\n".getBytes(StandardCharsets.UTF_8));
+		assertEquals(StatusType.PUT_SUCCESS, TestServers.readText(frames).getStatus());
+
+		output.write("get virtual\r\n".getBytes(StandardCharsets.UTF_8));
+		ProtocolMessage get = TestServers.readText(frames);
+		assertEquals(StatusType.GET_SUCCESS, get.getStatus());
+		assertEquals("value", get.getValue());
+
+		// On a virtual thread only the handler's run() is used, the
+		// handler itself is never started.
+		if (virtualThreadsAvailable()) {
+		    assertEquals(Thread.State.NEW, handler.getState());
+		} else {
+		    assertTrue(handler.isAlive());
+		}
+	    }
+	} catch (Exception e) {
+	    ex = e;
+	} finally {
+	    if (kvServer != null) {
+		kvServer.close();
+	    }
+	}
+
+	assertNull(ex);
+    }
+
+    @Test
+    public void testFallbackToPlatformThreads() {
+	Exception ex = null;
+
+	try {
+	    boolean available = virtualThreadsAvailable();
+
+	    assertEquals(available, ConnectionThreads.useVirtualThreads());
+	    assertEquals(available, ConnectionThreads.usingVirtualThreads());
+
+	    var ranOn = new CompletableFuture<Thread>();
+
+	    Thread handler = new Thread("Probe Handler") {
+		@Override
+		public void run() {
+		    ranOn.complete(Thread.currentThread());
+		}
+	    };
+
+	    ConnectionThreads.start(handler);
+
+	    Thread thread = ranOn.get(5, TimeUnit.SECONDS);
+
+	    assertEquals("Probe Handler", thread.getName());
+	    assertEquals(available, isVirtual(thread));
+
+	    if (!available) {
+		assertSame(handler, thread);
+	    }
+
+	    ConnectionThreads.usePlatformThreads();
+	    assertFalse(ConnectionThreads.usingVirtualThreads());
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+    }
+
+    /**
+     * Virtual threads are final from Java 21 on; the build targets Java 11,
+     * and JVMs before 21 must fall back to platform threads.
+     */
+    private static boolean virtualThreadsAvailable() {
+	return Runtime.version().feature() >= 21;
+    }
+
+    private static boolean isVirtual(Thread thread) throws Exception {
+	try {
+	    return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+	} catch (NoSuchMethodException nsme) {
+	    return false;
+	}
+    }
+
+}
@@ -0,0 +1,419 @@
+package testing;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import app_kvServer.KVServer;
+import app_kvServer.ReplicationLag;
+import app_kvServer.util.ServerFileManager;
+import app_kvServer.util.StorageOptions;
+import app_kvServer.util.WriteAheadLog;
+import shared.messages.KVMessage.StatusType;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+
+public class MemtableTest extends TestCase {
+
+    private File dataDirectory;
+    private KVServer kvServer;
+
+    public void setUp() {
+
+	try {
+	    dataDirectory = new File("src/testing/data/memtable");
+	    dataDirectory.mkdirs();
+	    kvServer = new KVServer("localhost", 0, "localhost", 0, dataDirectory.getPath(), 10, 5000L);
+	} catch (Exception e) {
+	    e.printStackTrace();
+	    return;
+	}
+
+    }
+
+    public void tearDown() {
+
+	kvServer.close();
+
+	for (File f: dataDirectory.listFiles()) {
+	    f.delete();
+	}
+
+	dataDirectory.delete();
+
+    }
+
+    @Test
+    public void testPutGetAcrossFlushes() {
+	Exception ex = null;
+
+	try {
+	    for (int i = 0; i < 500; i++) {
+		assertEquals(StatusType.PUT_SUCCESS, kvServer.putKV("key" + i, "value" + i));
+	    }
+	    for (int i = 0; i < 500; i += 7) {
+		assertEquals(StatusType.PUT_UPDATE, kvServer.putKV("key" + i, "updated" + i));
+	    }
+	    for (int i = 0; i < 500; i++) {
+		String expected = (i % 7 == 0 ? "updated" : "value") + i;
+		assertEquals(expected, kvServer.getKV("key" + i));
+	    }
+	    assertNull(kvServer.getKV("missing"));
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+    }
+
+    @Test
+    public void testConcurrentPuts() {
+	Exception ex = null;
+
+	var writers = new ArrayList<Thread>();
+	var failures = Collections.synchronizedList(new ArrayList<Exception>());
+
+	for (int t = 0; t < 8; t++) {
+	    final int writer = t;
+	    writers.add(new Thread(() -> {
+		try {
+		    for (int i = 0; i < 100; i++) {
+			kvServer.putKV("writer" + writer + "_" + i, "value" + i);
+		    }
+		} catch (Exception e) {
+		    failures.add(e);
+		}
+	    }));
+	}
+
+	try {
+	    for (Thread writer: writers) {
+		writer.start();
+	    }
+	    for (Thread writer: writers) {
+		writer.join();
+	    }
+	    for (int t = 0; t < 8; t++) {
+		for (int i = 0; i < 100; i++) {
+		    assertEquals("value" + i, kvServer.getKV("writer" + t + "_" + i));
+		}
+	    }
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+	assertTrue(failures.isEmpty());
+    }
+
+    @Test
+    public void testConcurrentPutsOfNewKeySucceedOnce() {
+	Exception ex = null;
+
+	var writers = new ArrayList<Thread>();
+	var failures = Collections.synchronizedList(new ArrayList<Exception>());
+	var successes = new AtomicIntegerArray(200);
+
+	for (int t = 0; t < 8; t++) {
+	    writers.add(new Thread(() -> {
+		try {
+		    for (int i = 0; i < 200; i++) {
+			if (kvServer.putKV("shared" + i, "value" + i) == StatusType.PUT_SUCCESS) {
+			    successes.incrementAndGet(i);
+			}
+		    }
+		} catch (Exception e) {
+		    failures.add(e);
+		}
+	    }));
+	}
+
+	try {
+	    for (Thread writer: writers) {
+		writer.start();
+	    }
+	    for (Thread writer: writers) {
+		writer.join();
+	    }
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+	assertTrue(failures.isEmpty());
+	for (int i = 0; i < 200; i++) {
+	    assertEquals(1, successes.get(i));
+	}
+    }
+
+    @Test
+    public void testFlushMemtable() {
+	Exception ex = null;
+
+	try {
+	    kvServer.putKV("a", "1");
+	    kvServer.putKV("b", "2");
+	    kvServer.flushMemtable();
+	    assertFalse(kvServer.inCache("a"));
+	    assertTrue(kvServer.inStorage("a"));
+	    assertTrue(kvServer.inStorage("b"));
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+    }
+
+    @Test
+    public void testReadsDoNotFillMemtable() {
+	Exception ex = null;
+
+	try {
+	    for (int i = 0; i < 5; i++) {
+		kvServer.putKV("key" + i, "value" + i);
+	    }
+	    kvServer.flushMemtable();
+	    int storeFiles = kvServer.getServerFileManager().filterFilesByPrefix("KVServerStoreFile_").length;
+	    for (int round = 0; round < 20; round++) {
+		for (int i = 0; i < 5; i++) {
+		    assertEquals("value" + i, kvServer.getKV("key" + i));
+		}
+	    }
+	    assertEquals(storeFiles, kvServer.getServerFileManager().filterFilesByPrefix("KVServerStoreFile_").length);
+	    assertEquals(95, kvServer.getRowCache().getHitCount());
+
+	    kvServer.putKV("key0", "updated");
+	    kvServer.flushMemtable();
+	    assertEquals("updated", kvServer.getKV("key0"));
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+    }
+
+    @Test
+    public void testRecoverFromWriteAheadLog() {
+	Exception ex = null;
+	KVServer restarted = null;
+
+	try {
+	    for (int i = 0; i < 25; i++) {
+		kvServer.putKV("key" + i, "value" + i);
+	    }
+	    kvServer.close();
+	    restarted = new KVServer("localhost", 0, "localhost", 0, dataDirectory.getPath(), 10, 5000L);
+	    for (int i = 0; i < 25; i++) {
+		assertEquals("value" + i, restarted.getKV("key" + i));
+	    }
+	} catch (Exception e) {
+	    ex = e;
+	} finally {
+	    if (restarted != null) {
+		restarted.close();
+	    }
+	}
+
+	assertNull(ex);
+    }
+
+    @Test
+    public void testReplicaTombstoneHidesOlderCopy() {
+	Exception ex = null;
+
+	try {
+	    // An older copy in the primary store files, e.g. left behind by a
+	    // topology change, and a delete of it replicated since.
+	    kvServer.putKV("moved", "old");
+	    kvServer.putKV("kept", "old");
+	    kvServer.flushMemtable();
+
+	    var replicated = new TreeMap<String, Optional<String>>();
+	    replicated.put("moved", ServerFileManager.TOMBSTONE);
+	    kvServer.getServerFileManager().dumpReplicaToStoreFile(replicated, "Replica1KVServerStoreFile_", 1);
+
+	    assertNull(kvServer.getKV("moved"));
+	    assertEquals("old", kvServer.getKV("kept"));
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+    }
+
+    @Test
+    public void testPutAfterCloseReportsServerStopped() {
+	Exception ex = null;
+	KVServer restarted = null;
+
+	try {
+	    assertEquals(StatusType.PUT_SUCCESS, kvServer.putKV("before", "value"));
+	    kvServer.close();
+	    assertEquals(StatusType.SERVER_STOPPED, kvServer.putKV("after", "value"));
+	    restarted = new KVServer("localhost", 0, "localhost", 0, dataDirectory.getPath(), 10, 5000L);
+	    assertEquals("value", restarted.getKV("before"));
+	    assertNull(restarted.getKV("after"));
+	} catch (Exception e) {
+	    ex = e;
+	} finally {
+	    if (restarted != null) {
+		restarted.close();
+	    }
+	}
+
+	assertNull(ex);
+    }
+
+    @Test
+    public void testGroupCommitWithSyncDurability() {
+	Exception ex = null;
+	KVServer syncServer = null;
+	KVServer restarted = null;
+
+	var writers = new ArrayList<Thread>();
+	var failures = Collections.synchronizedList(new ArrayList<Exception>());
+
+	try {
+	    kvServer.close();
+
+	    var storageOptions = new StorageOptions();
+	    storageOptions.setWalDurability(WriteAheadLog.Durability.SYNC);
+	    syncServer = new KVServer("localhost", 0, "localhost", 0, dataDirectory.getPath(), 1000, 5000L, storageOptions);
+
+	    for (int t = 0; t < 4; t++) {
+		final int writer = t;
+		final KVServer server = syncServer;
+		writers.add(new Thread(() -> {
+		    try {
+			for (int i = 0; i < 50; i++) {
+			    server.putKV("writer" + writer + "_" + i, "value" + i);
+			}
+		    } catch (Exception e) {
+			failures.add(e);
+		    }
+		}));
+	    }
+
+	    for (Thread writer: writers) {
+		writer.start();
+	    }
+	    for (Thread writer: writers) {
+		writer.join();
+	    }
+
+	    syncServer.close();
+
+	    restarted = new KVServer("localhost", 0, "localhost", 0, dataDirectory.getPath(), 1000, 5000L);
+	    for (int t = 0; t < 4; t++) {
+		for (int i = 0; i < 50; i++) {
+		    assertTrue(restarted.inCache("writer" + t + "_" + i));
+		}
+	    }
+	} catch (Exception e) {
+	    ex = e;
+	} finally {
+	    if (restarted != null) {
+		restarted.close();
+	    }
+	}
+
+	assertNull(ex);
+	assertTrue(failures.isEmpty());
+    }
+
+    @Test
+    public void testReplicationLagCountsUnacknowledgedWrites() {
+	Exception ex = null;
+	ReplicationLag lag = kvServer.getReplicationLag();
+	long start = lag.getAcknowledgedSequence(1);
+	long laggingRecords = -1;
+	long laggingMillis = -1;
+
+	try {
+	    for (int i = 0; i < 5; i++) {
+		kvServer.putKV("key" + i, "value" + i);
+	    }
+	    Thread.sleep(50);
+	    lag.acknowledge(1, start + 2);
+	    laggingRecords = lag.getLagRecords(1);
+	    laggingMillis = lag.getLagMillis(1);
+	    lag.acknowledge(2, start + 5);
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+	assertEquals(3, laggingRecords);
+	assertTrue(laggingMillis >= 50);
+	assertEquals(0, lag.getLagRecords(2));
+	assertEquals(0, lag.getLagMillis(2));
+	lag.forget(1);
+	assertEquals(0, lag.getLagRecords(1));
+	assertEquals(0, lag.getLagMillis(1));
+    }
+
+    @Test
+    public void testReplicationLagArithmetic() {
+	var lag = new ReplicationLag(2, 100);
+
+	assertEquals(100, lag.getAcknowledgedSequence(1));
+	assertEquals(0, lag.getLagRecords(1));
+	assertEquals(0, lag.getLagMillis(1));
+
+	for (long sequence = 101; sequence <= 110; sequence++) {
+	    lag.recordWrite(sequence);
+	}
+
+	assertEquals(10, lag.getLagRecords(1));
+	assertEquals(10, lag.getLagRecords(2));
+
+	lag.acknowledge(1, 104);
+	assertEquals(104, lag.getAcknowledgedSequence(1));
+	assertEquals(6, lag.getLagRecords(1));
+	assertEquals(10, lag.getLagRecords(2));
+
+	lag.acknowledge(1, 110);
+	assertEquals(0, lag.getLagRecords(1));
+	assertEquals(0, lag.getLagMillis(1));
+
+	lag.acknowledge(1, 95);
+	assertEquals(15, lag.getLagRecords(1));
+
+	lag.acknowledge(2, 120);
+	assertEquals(0, lag.getLagRecords(2));
+
+	lag.recordWrite(111);
+	assertEquals(16, lag.getLagRecords(1));
+	assertEquals(0, lag.getLagRecords(2));
+
+	lag.forget(1);
+	assertEquals(0, lag.getLagRecords(1));
+    }
+
+    @Test
+    public void testStatsReportReplicationLag() {
+	Exception ex = null;
+	long start = kvServer.getReplicationLag().getAcknowledgedSequence(1);
+	String stats = null;
+
+	try {
+	    for (int i = 0; i < 4; i++) {
+		kvServer.putKV("key" + i, "value" + i);
+	    }
+	    kvServer.getReplicationLag().acknowledge(1, start + 1);
+	    kvServer.getReplicationLag().acknowledge(2, start + 4);
+	    stats = kvServer.getStatsString();
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+	assertTrue(stats.contains("replica1_lag_records=3;"));
+	assertTrue(stats.contains("replica2_lag_records=0;"));
+	assertTrue(stats.contains("replica2_lag_ms=0;"));
+    }
+
+}
@@ -2,12 +2,15 @@ package testing;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
 import app_kvServer.KVServer;
 import app_kvClient.KVClient;
 import client.KVStore;
 import client.ProtocolMessage;
+import shared.FrameReader;
 import shared.messages.KVMessage;
 import shared.messages.KVMessage.StatusType;
 
@@ -46,6 +49,29 @@ public class ProtocolTest extends TestCase {
 
     }
 
+    @Test
+    public void testStatsRoundTrip() {
+
+	Exception ex = null;
+
+	ProtocolMessage request = null;
+	ProtocolMessage response = null;
+
+	try {
+	    request = ProtocolMessage.fromBytesAtServer("stats\r\n".getBytes(StandardCharsets.UTF_8));
+	    byte[] responseBytes = new ProtocolMessage(StatusType.STATS_SUCCESS, "replica1_lag_records=3;replica1_lag_ms=12;", null).getBytes();
+	    response = ProtocolMessage.fromBytesAtClient(responseBytes);
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+	assertEquals(StatusType.STATS, request.getStatus());
+	assertEquals(StatusType.STATS_SUCCESS, response.getStatus());
+	assertEquals("replica1_lag_records=3;replica1_lag_ms=12;", response.getKey());
+
+    }
+
     @Test
     public void testProtocolDecodeAtServer() {
 
@@ -64,4 +90,118 @@ public class ProtocolTest extends TestCase {
 
     }
 
+    @Test
+    public void testFrameReaderSplitsBufferedMessages() throws Exception {
+
+	char[] large = new char[20000];
+	Arrays.fill(large, 'v');
+
+	String messages = "get key\r\nput key " + new String(large) + "\r\ntoolong\r\nSERVER_INIT_FIN";
+	byte[] bytes = messages.getBytes(StandardCharsets.UTF_8);
+
+	// Hands out at most 7 bytes per read, so frames span reads.
+	InputStream input = new ByteArrayInputStream(bytes) {
+	    @Override
+	    public int read(byte[] b, int off, int len) {
+		return super.read(b, off, Math.min(len, 7));
+	    }
+	};
+
+	FrameReader frames = new FrameReader(input, 30000);
+
+	ByteBuffer frame = frames.readFrame();
+	ProtocolMessage get = ProtocolMessage.fromBytesAtServer(frame.array(), frame.position(), frame.remaining());
+
+	frame = frames.readFrame();
+	ProtocolMessage put = ProtocolMessage.fromBytesAtServer(frame.array(), frame.position(), frame.remaining());
+
+	assertEquals(StatusType.GET, get.getStatus());
+	assertEquals("key", get.getKey());
+	assertEquals(StatusType.PUT, put.getStatus());
+	assertEquals(new String(large), put.getValue());
+
+	frame = frames.readFrame();
+	assertEquals("toolong\r\n", new String(frame.array(), frame.position(), frame.remaining(), StandardCharsets.UTF_8));
+
+	assertEquals("SERVER_INIT_FIN", new String(frames.remaining().readAllBytes(), StandardCharsets.UTF_8));
+
+	FrameReader truncated = new FrameReader(new ByteArrayInputStream("abcdefgh\r\n".getBytes(StandardCharsets.UTF_8)), 4);
+	assertEquals(4, truncated.readFrame().remaining());
+	assertEquals(4, truncated.readFrame().remaining());
+	assertEquals(2, truncated.readFrame().remaining());
+
+	try {
+	    truncated.readFrame();
+	    fail("Expected EOFException");
+	} catch (EOFException eofe) {
+	}
+
+    }
+
+    @Test
+    public void testBinaryProtocolRoundTrip() throws Exception {
+
+	String value = "line one\r\nline two with spaces";
+
+	byte[] request = new ProtocolMessage(StatusType.PUT, "some key", value, 42).getBinaryBytes();
+	byte[] response = new ProtocolMessage(StatusType.GET_ERROR, "some key", null, 43).getBinaryBytes();
+
+	assertEquals(3, request[4]);
+	assertEquals(1, response[4]);
+
+	ByteArrayOutputStream stream = new ByteArrayOutputStream();
+	stream.write(request);
+	stream.write(response);
+
+	FrameReader frames = new FrameReader(new ByteArrayInputStream(stream.toByteArray()), 1024);
+
+	ByteBuffer frame = frames.readLengthPrefixedFrame();
+	ProtocolMessage put = ProtocolMessage.fromBinaryAtServer(frame.array(), frame.position(), frame.remaining());
+
+	assertEquals(StatusType.PUT, put.getStatus());
+	assertEquals(42, put.getRequestId());
+	assertEquals("some key", put.getKey());
+	assertEquals(value, put.getValue());
+
+	frame = frames.readLengthPrefixedFrame();
+	ProtocolMessage getError = ProtocolMessage.fromBinaryAtClient(frame.array(), frame.position(), frame.remaining());
+
+	assertEquals(StatusType.GET_ERROR, getError.getStatus());
+	assertEquals(43, getError.getRequestId());
+	assertNull(getError.getValue());
+
+	byte[] get = new ProtocolMessage(StatusType.GET, "key", null, 1).getBinaryBytes();
+	ProtocolMessage parsedGet = ProtocolMessage.fromBinaryAtServer(get, 4, get.length - 4);
+	assertEquals("null", parsedGet.getValue());
+
+	byte[] init = new ProtocolMessage(StatusType.SERVER_INIT, null, null, 2).getBinaryBytes();
+
+	try {
+	    ProtocolMessage.fromBinaryAtServer(init, 4, init.length - 4);
+	    fail("Expected IllegalArgumentException");
+	} catch (IllegalArgumentException iae) {
+	}
+
+	try {
+	    ProtocolMessage.fromBinaryAtServer(request, 4, request.length - 6);
+	    fail("Expected IllegalArgumentException");
+	} catch (IllegalArgumentException iae) {
+	}
+
+	byte[] unknown = new ProtocolMessage(StatusType.GET, "key", null, 3).getBinaryBytes();
+	unknown[4] = (byte) 0xff;
+
+	try {
+	    ProtocolMessage.fromBinaryAtClient(unknown, 4, unknown.length - 4);
+	    fail("Expected IOException");
+	} catch (IOException ioe) {
+	}
+
+	for (StatusType status: StatusType.values()) {
+	    byte[] encoded = new ProtocolMessage(status, "key", "value", 4).getBinaryBytes();
+	    assertEquals(status, ProtocolMessage.fromBinaryAtClient(encoded, 4, encoded.length - 4).getStatus());
+	}
+
+    }
+
 }
@@ -313,4 +313,88 @@ public class ReplicationTest extends TestCase {
 
     }
 
+    @Test
+    public void testBothReplicasReceiveSameSnapshot() {
+
+	Exception ex = null;
+	KVServer[] servers = {kvServer1, kvServer2, kvServer3, kvServer4};
+	var writerFailure = new ArrayList<Exception>();
+	var replica1Values = new HashMap<String, List<String>>();
+	var replica2Values = new HashMap<String, List<String>>();
+
+	try {
+	    Thread.sleep(1000);
+
+	    for (KVServer server: servers) {
+		server.stopReplicationTimer();
+	    }
+
+	    for (int i = 0; i < 200; i++) {
+		kvServer1.putKV("snapshot" + i, "round1_" + i);
+	    }
+
+	    Thread writer = new Thread(() -> {
+		try {
+		    for (int i = 0; i < 200; i++) {
+			kvServer1.putKV("snapshot" + i, "round2_" + i);
+		    }
+		} catch (Exception e) {
+		    writerFailure.add(e);
+		}
+	    });
+
+	    writer.start();
+	    kvServer1.replicate();
+	    writer.join();
+
+	    for (int i = 0; i < 200; i++) {
+		String key = "snapshot" + i;
+		replica1Values.put(key, new ArrayList<String>());
+		replica2Values.put(key, new ArrayList<String>());
+		for (KVServer server: servers) {
+		    String value = server.getServerFileManager().searchForKeyInFiles(key, "Replica1KVServerStoreFile_");
+		    if (value != null) {
+			replica1Values.get(key).add(value);
+		    }
+		    value = server.getServerFileManager().searchForKeyInFiles(key, "Replica2KVServerStoreFile_");
+		    if (value != null) {
+			replica2Values.get(key).add(value);
+		    }
+		}
+	    }
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+	assertTrue(writerFailure.isEmpty());
+
+	// The writer overwrites the keys in order, so a snapshot holds the
+	// round 2 values of a prefix of them and the round 1 values of the
+	// rest, and both replicas hold that same snapshot.
+	boolean inRound2Prefix = true;
+
+	for (int i = 0; i < 200; i++) {
+	    String key = "snapshot" + i;
+	    assertEquals(1, replica1Values.get(key).size());
+	    assertEquals(1, replica2Values.get(key).size());
+
+	    String replica1Value = replica1Values.get(key).get(0);
+	    String replica2Value = replica2Values.get(key).get(0);
+
+	    assertTrue(replica1Value, replica1Value.equals("round1_" + i) || replica1Value.equals("round2_" + i));
+	    if (replica1Value.equals("round2_" + i)) {
+		assertEquals("round2_" + i, replica2Value);
+	    }
+	    assertEquals(replica1Value, replica2Value);
+
+	    if (replica1Value.equals("round1_" + i)) {
+		inRound2Prefix = false;
+	    } else {
+		assertTrue(key + " holds round 2 after a key still on round 1", inRound2Prefix);
+	    }
+	}
+
+    }
+
 }
@@ -0,0 +1,336 @@
+package testing;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import app_kvServer.KVServer;
+import app_kvServer.SelectorFrontEnd;
+import app_kvServer.ServerConnection;
+import client.ProtocolMessage;
+import shared.FrameReader;
+import shared.messages.ServerMessage;
+import shared.messages.KVMessage.StatusType;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+
+public class SelectorFrontEndTest extends TestCase {
+
+    private static final int MAX_FRAME_SIZE = 128 * 1024 + 1;
+
+    private File dataDirectory;
+    private KVServer kvServer;
+    private SelectorFrontEnd frontEnd;
+    private ServerSocketChannel serverChannel;
+    private Thread acceptor;
+
+    public void setUp() {
+
+	try {
+	    dataDirectory = new File("src/testing/data/selector");
+	    dataDirectory.mkdirs();
+	    kvServer = new KVServer("localhost", 0, "localhost", 0, dataDirectory.getPath(), 10, 5000L);
+
+	    TestServers.ownWholeRing(kvServer);
+
+	    frontEnd = new SelectorFrontEnd(kvServer, 2, 4);
+	    frontEnd.start();
+
+	    serverChannel = ServerSocketChannel.open();
+	    serverChannel.bind(new InetSocketAddress(InetAddress.getByName("localhost"), 0));
+
+	    acceptor = new Thread(() -> {
+		try {
+		    while (true) {
+			SocketChannel client = serverChannel.accept();
+			client.socket().setTcpNoDelay(true);
+			frontEnd.register(client);
+		    }
+		} catch (IOException ioe) {
+		    // Closed by tearDown.
+		}
+	    });
+	    acceptor.start();
+	} catch (Exception e) {
+	    e.printStackTrace();
+	    return;
+	}
+
+    }
+
+    public void tearDown() {
+
+	try {
+	    serverChannel.close();
+	    acceptor.join();
+	} catch (Exception e) {
+	    e.printStackTrace();
+	}
+
+	frontEnd.shutdown();
+	kvServer.close();
+
+	for (File f: dataDirectory.listFiles()) {
+	    f.delete();
+	}
+
+	dataDirectory.delete();
+
+    }
+
+    @Test
+    public void testConcurrentClients() {
+	Exception ex = null;
+
+	var clients = new ArrayList<Thread>();
+	var failures = Collections.synchronizedList(new ArrayList<Exception>());
+
+	for (int t = 0; t < 8; t++) {
+	    final int client = t;
+	    clients.add(new Thread(() -> {
+		try (Socket socket = connect()) {
+		    OutputStream output = socket.getOutputStream();
+		    FrameReader frames = new FrameReader(socket.getInputStream(), MAX_FRAME_SIZE);
+		    for (int i = 0; i < 50; i++) {
+			String key = "client" + client + "_key" + i;
+			output.write(("put " + key + " value" + client + "_" + i + "\r\n").getBytes(StandardCharsets.UTF_8));
+			ProtocolMessage put = TestServers.readText(frames);
+			if (put.getStatus() != StatusType.PUT_SUCCESS || !key.equals(put.getKey())) {
+			    throw new Exception("Unexpected response " + put.getStatus() + " " + put.getKey() + " to put " + key);
+			}
+			output.write(("get " + key + "\r\n").getBytes(StandardCharsets.UTF_8));
+			ProtocolMessage get = TestServers.readText(frames);
+			if (get.getStatus() != StatusType.GET_SUCCESS || !("value" + client + "_" + i).equals(get.getValue())) {
+			    throw new Exception("Unexpected response " + get.getStatus() + " " + get.getValue() + " to get " + key);
+			}
+		    }
+		} catch (Exception e) {
+		    failures.add(e);
+		}
+	    }));
+	}
+
+	try {
+	    clients.forEach(Thread::start);
+	    for (Thread client: clients) {
+		client.join();
+	    }
+	    assertTrue(failures.toString(), failures.isEmpty());
+	    for (int t = 0; t < 8; t++) {
+		assertEquals("value" + t + "_49", kvServer.getKV("client" + t + "_key49"));
+	    }
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+    }
+
+    @Test
+    public void testRequestsSplitAcrossPackets() {
+	Exception ex = null;
+
+	try (Socket socket = connect()) {
+	    OutputStream output = socket.getOutputStream();
+	    FrameReader frames = new FrameReader(socket.getInputStream(), MAX_FRAME_SIZE);
+
+	    // A text request arriving a few bytes at a time, with its CRLF
+	    // split as well.
+	    writeInPieces(output, "put split text\r\n".getBytes(StandardCharsets.UTF_8), 3);
+	    assertEquals(StatusType.PUT_SUCCESS, TestServers.readText(frames).getStatus());
+
+	    output.write("binary_protocol 1\r\n".getBytes(StandardCharsets.UTF_8));
+	    assertEquals(StatusType.BINARY_PROTOCOL_ACK, TestServers.readText(frames).getStatus());
+
+	    // A binary request whose length arrives split, and one larger
+	    // than the front end's initial buffer.
+	    char[] large = new char[100 * 1024];
+	    Arrays.fill(large, 'v');
+	    String largeValue = new String(large);
+
+	    writeInPieces(output, new ProtocolMessage(StatusType.PUT, "large", largeValue, 1).getBinaryBytes(), 3);
+	    ProtocolMessage put = TestServers.readBinary(frames);
+	    assertEquals(StatusType.PUT_SUCCESS, put.getStatus());
+	    assertEquals(1, put.getRequestId());
+
+	    writeInPieces(output, new ProtocolMessage(StatusType.GET, "split", null, 2).getBinaryBytes(), 1);
+	    ProtocolMessage get = TestServers.readBinary(frames);
+	    assertEquals(StatusType.GET_SUCCESS, get.getStatus());
+	    assertEquals("text", get.getValue());
+	    assertEquals(2, get.getRequestId());
+
+	    output.write(new ProtocolMessage(StatusType.GET, "large", null, 3).getBinaryBytes());
+	    get = TestServers.readBinary(frames);
+	    assertEquals(StatusType.GET_SUCCESS, get.getStatus());
+	    assertEquals(largeValue, get.getValue());
+	    assertEquals(3, get.getRequestId());
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+    }
+
+    @Test
+    public void testResponsesWrittenInPieces() {
+	Exception ex = null;
+
+	try (Socket socket = new Socket()) {
+	    // A small receive window so responses back up into the server's
+	    // send buffer and have to be written in several goes.
+	    socket.setReceiveBufferSize(4096);
+	    socket.connect(new InetSocketAddress("localhost", serverChannel.socket().getLocalPort()));
+
+	    OutputStream output = socket.getOutputStream();
+	    FrameReader frames = new FrameReader(socket.getInputStream(), MAX_FRAME_SIZE);
+
+	    output.write("binary_protocol 1\r\n".getBytes(StandardCharsets.UTF_8));
+	    assertEquals(StatusType.BINARY_PROTOCOL_ACK, TestServers.readText(frames).getStatus());
+
+	    char[] large = new char[100 * 1024];
+	    Arrays.fill(large, 'w');
+	    String largeValue = new String(large);
+
+	    output.write(new ProtocolMessage(StatusType.PUT, "large", largeValue, 0).getBinaryBytes());
+	    assertEquals(StatusType.PUT_SUCCESS, TestServers.readBinary(frames).getStatus());
+
+	    var requests = new ByteArrayOutputStream();
+	    for (int i = 1; i <= 20; i++) {
+		requests.write(new ProtocolMessage(StatusType.GET, "large", null, i).getBinaryBytes());
+	    }
+	    output.write(requests.toByteArray());
+
+	    Thread.sleep(500);
+
+	    for (int i = 1; i <= 20; i++) {
+		ProtocolMessage get = TestServers.readBinary(frames);
+		assertEquals(StatusType.GET_SUCCESS, get.getStatus());
+		assertEquals(i, get.getRequestId());
+		assertEquals(largeValue, get.getValue());
+	    }
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+    }
+
+    @Test
+    public void testPipelinedResponsesInRequestOrder() {
+	Exception ex = null;
+
+	try (Socket socket = connect()) {
+	    OutputStream output = socket.getOutputStream();
+	    FrameReader frames = new FrameReader(socket.getInputStream(), MAX_FRAME_SIZE);
+
+	    var requests = new StringBuilder();
+	    for (int i = 0; i < 100; i++) {
+		requests.append("put ordered" + i + " value" + i + "\r\n");
+		requests.append("get ordered" + i + "\r\n");
+	    }
+	    output.write(requests.toString().getBytes(StandardCharsets.UTF_8));
+
+	    for (int i = 0; i < 100; i++) {
+		ProtocolMessage put = TestServers.readText(frames);
+		assertEquals(StatusType.PUT_SUCCESS, put.getStatus());
+		assertEquals("ordered" + i, put.getKey());
+		ProtocolMessage get = TestServers.readText(frames);
+		assertEquals(StatusType.GET_SUCCESS, get.getStatus());
+		assertEquals("ordered" + i, get.getKey());
+		assertEquals("value" + i, get.getValue());
+	    }
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+    }
+
+    @Test
+    public void testServerInitHandsOffToServerConnection() {
+	Exception ex = null;
+
+	try (Socket socket = connect()) {
+	    // The server message follows SERVER_INIT in the same write, so
+	    // the front end has already read it when it hands the socket off.
+	    var request = new ByteArrayOutputStream();
+	    request.write(new ProtocolMessage(StatusType.SERVER_INIT, null, null).getBytes());
+	    ServerConnection.sendMessage(Channels.newChannel(request), ServerMessage.StatusType.REPLICATE_KV_1_FIN, null, 7);
+	    socket.getOutputStream().write(request.toByteArray());
+
+	    ServerMessage response = ServerConnection.receiveMessage(Channels.newChannel(socket.getInputStream()));
+	    assertEquals(ServerMessage.StatusType.REPLICATE_ACK, response.getStatus());
+	    assertEquals(7, response.getSequence());
+
+	    // Still served by the blocking ServerConnection.
+	    ServerConnection.sendMessage(Channels.newChannel(socket.getOutputStream()), ServerMessage.StatusType.REPLICATE_KV_2_FIN, null, 8);
+	    response = ServerConnection.receiveMessage(Channels.newChannel(socket.getInputStream()));
+	    assertEquals(ServerMessage.StatusType.REPLICATE_ACK, response.getStatus());
+	    assertEquals(8, response.getSequence());
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+    }
+
+    @Test
+    public void testShutdownClosesConnections() {
+	Exception ex = null;
+
+	var sockets = new ArrayList<Socket>();
+
+	try {
+	    for (int i = 0; i < 4; i++) {
+		Socket socket = connect();
+		sockets.add(socket);
+		socket.getOutputStream().write(("put shutdown" + i + " value\r\n").getBytes(StandardCharsets.UTF_8));
+		assertEquals(StatusType.PUT_SUCCESS, TestServers.readText(new FrameReader(socket.getInputStream(), MAX_FRAME_SIZE)).getStatus());
+	    }
+
+	    frontEnd.shutdown();
+
+	    for (Socket socket: sockets) {
+		socket.setSoTimeout(5000);
+		assertEquals(-1, socket.getInputStream().read());
+	    }
+
+	    for (Thread thread: Thread.getAllStackTraces().keySet()) {
+		assertFalse(thread.getName() + " still running", thread.getName().startsWith("Client I/O"));
+	    }
+	} catch (Exception e) {
+	    ex = e;
+	} finally {
+	    for (Socket socket: sockets) {
+		try {
+		    socket.close();
+		} catch (IOException ioe) {
+		}
+	    }
+	}
+
+	assertNull(ex);
+    }
+
+    private Socket connect() throws IOException {
+	Socket socket = new Socket("localhost", serverChannel.socket().getLocalPort());
+	socket.setTcpNoDelay(true);
+	return socket;
+    }
+
+    private static void writeInPieces(OutputStream output, byte[] message, int pieceLength) throws Exception {
+	for (int i = 0; i < message.length; i += pieceLength) {
+	    output.write(message, i, Math.min(pieceLength, message.length - i));
+	    output.flush();
+	    if (i < 64) {
+		Thread.sleep(2);
+	    }
+	}
+    }
+
+}
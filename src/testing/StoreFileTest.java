@@ -0,0 +1,664 @@
+package testing;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.util.*;
+
+import app_kvServer.util.ServerFileManager;
+import app_kvServer.util.StorageOptions;
+import shared.KeyRange;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+
+public class StoreFileTest extends TestCase {
+
+    private File dataDirectory;
+    private File receiverDirectory;
+    private TreeMap<String, Optional<String>> memtable;
+    private ServerFileManager serverFileManager;
+    private ServerFileManager receiver;
+
+    public void setUp() {
+
+	try {
+	    dataDirectory = new File("src/testing/data/store");
+	    dataDirectory.mkdirs();
+	    receiverDirectory = new File("src/testing/data/store_receiver");
+	    memtable = new TreeMap<String, Optional<String>>();
+	    serverFileManager = new ServerFileManager(dataDirectory.getPath(), memtable, 10000);
+	} catch (Exception e) {
+	    e.printStackTrace();
+	    return;
+	}
+
+    }
+
+    private static void transfer(ServerFileManager sender, ServerFileManager receiver, File file) throws Exception {
+	File sent = sender.exportForTransfer(file);
+	try (var channel = FileChannel.open(sent.toPath())) {
+	    receiver.receiveStoreFile("KVServerStoreFile_", channel, sent.length());
+	} finally {
+	    if (sent != file) {
+		sent.delete();
+	    }
+	}
+    }
+
+    /**
+     * Closes the manager under test and opens a new one on the same
+     * directory in its place, so tearDown closes whichever is open last.
+     */
+    private ServerFileManager reopen(StorageOptions storageOptions) throws Exception {
+	serverFileManager.close();
+	serverFileManager = null;
+	serverFileManager = new ServerFileManager(dataDirectory.getPath(), new TreeMap<String, Optional<String>>(), 10000, storageOptions);
+	return serverFileManager;
+    }
+
+    /**
+     * Opens a second manager to receive transferred store files, which
+     * tearDown closes and deletes.
+     */
+    private ServerFileManager openReceiver() throws Exception {
+	receiverDirectory.mkdirs();
+	receiver = new ServerFileManager(receiverDirectory.getPath(), new TreeMap<String, Optional<String>>(), 10000);
+	return receiver;
+    }
+
+    private static void deleteDirectory(File directory) {
+
+	File[] files = directory.listFiles();
+
+	if (files != null) {
+	    for (File f: files) {
+		f.delete();
+	    }
+	}
+
+	directory.delete();
+    }
+
+    public void tearDown() {
+
+	if (serverFileManager != null) {
+	    serverFileManager.close();
+	}
+
+	if (receiver != null) {
+	    receiver.close();
+	}
+
+	deleteDirectory(dataDirectory);
+	deleteDirectory(receiverDirectory);
+
+    }
+
+    @Test
+    public void testSearchFlushedStoreFile() {
+	Exception ex = null;
+
+	try {
+	    for (int i = 0; i < 2000; i++) {
+		memtable.put("key" + i, Optional.of("value" + i));
+	    }
+	    serverFileManager.dumpCacheToStoreFile(memtable);
+	    memtable.clear();
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+	assertEquals(1, serverFileManager.filterFilesByPrefix("KVServerStoreFile_").length);
+
+	try {
+	    for (int i = 0; i < 2000; i++) {
+		assertEquals("value" + i, serverFileManager.searchForKeyInFiles("key" + i, "KVServerStoreFile_"));
+	    }
+	    assertNull(serverFileManager.searchForKeyInFiles("key", "KVServerStoreFile_"));
+	    assertNull(serverFileManager.searchForKeyInFiles("key99999", "KVServerStoreFile_"));
+	    assertNull(serverFileManager.searchForKeyInFiles("zzz", "KVServerStoreFile_"));
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+    }
+
+    @Test
+    public void testValuesWithDelimiters() {
+	Exception ex = null;
+	String value = null;
+
+	try {
+	    memtable.put("crlf", Optional.of("first line\r\nsecond line"));
+	    memtable.put("empty", Optional.of(""));
+	    serverFileManager.dumpCacheToStoreFile(memtable);
+	    memtable.clear();
+	    value = serverFileManager.searchForKeyInFiles("crlf", "KVServerStoreFile_");
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+	assertEquals("first line\r\nsecond line", value);
+    }
+
+    @Test
+    public void testStoreFilesLoadedOnRestart() {
+	Exception ex = null;
+	ServerFileManager restarted = null;
+
+	try {
+	    for (int i = 0; i < 500; i++) {
+		memtable.put("key" + i, Optional.of("value" + i));
+	    }
+	    serverFileManager.dumpCacheToStoreFile(memtable);
+	    memtable.clear();
+	    restarted = reopen(new StorageOptions());
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+
+	try {
+	    for (int i = 0; i < 1000; i++) {
+		String expected = i < 500 ? "value" + i : null;
+		assertEquals(expected, restarted.searchForKeyInFiles("key" + i, "KVServerStoreFile_"));
+	    }
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+    }
+
+    @Test
+    public void testMappedReads() {
+	Exception ex = null;
+	ServerFileManager mapped = null;
+
+	var storageOptions = new StorageOptions();
+	storageOptions.setMmapReads(true);
+
+	try {
+	    mapped = reopen(storageOptions);
+	    for (int round = 0; round < 2; round++) {
+		for (int i = 0; i < 1000; i++) {
+		    memtable.put("key" + i, i % 10 == 0 ? ServerFileManager.TOMBSTONE : Optional.of("value" + round + "_" + i));
+		}
+		mapped.dumpCacheToStoreFile(memtable);
+		memtable.clear();
+	    }
+	    mapped.compactStoreFiles();
+	    for (int i = 0; i < 1000; i++) {
+		String expected = i % 10 == 0 ? null : "value1_" + i;
+		assertEquals(expected, mapped.searchForKeyInFiles("key" + i, "KVServerStoreFile_"));
+	    }
+	    assertNull(mapped.searchForKeyInFiles("key1000", "KVServerStoreFile_"));
+	    assertEquals(0, mapped.getBlockCache().getHitCount() + mapped.getBlockCache().getMissCount());
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+    }
+
+    @Test
+    public void testValueLog() {
+	Exception ex = null;
+	ServerFileManager separated = null;
+
+	var storageOptions = new StorageOptions();
+	storageOptions.setValueLogThreshold(100);
+	storageOptions.setValueLogFileSize(4 * 1024);
+	storageOptions.setLevel0CompactionTrigger(2);
+
+	char[] padding = new char[200];
+	Arrays.fill(padding, 'x');
+
+	try {
+	    separated = reopen(storageOptions);
+	    for (int round = 0; round < 2; round++) {
+		for (int i = 0; i < 50; i++) {
+		    memtable.put("key" + i, Optional.of(round + new String(padding) + i));
+		}
+		memtable.put("small", Optional.of("value" + round));
+		separated.dumpCacheToStoreFile(memtable);
+		memtable.clear();
+	    }
+	    while (separated.compactNextLevel()) {
+	    }
+	    for (int i = 0; i < 50; i++) {
+		assertEquals("1" + new String(padding) + i, separated.searchForKeyInFiles("key" + i, "KVServerStoreFile_"));
+	    }
+	    assertEquals("value1", separated.searchForKeyInFiles("small", "KVServerStoreFile_"));
+	    assertFalse(new File(dataDirectory, "vlog_0000000000000001.log").exists());
+
+	    openReceiver();
+	    for (File file: separated.getStoreFiles("KVServerStoreFile_")) {
+		transfer(separated, receiver, file);
+	    }
+	    assertEquals("1" + new String(padding) + 7, receiver.searchForKeyInFiles("key7", "KVServerStoreFile_"));
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+    }
+
+    @Test
+    public void testCompressedBlocks() {
+	Exception ex = null;
+	ServerFileManager compressed = null;
+
+	var storageOptions = new StorageOptions();
+	storageOptions.setCompression(StorageOptions.Compression.DEFLATE);
+	storageOptions.setMmapReads(true);
+
+	try {
+	    compressed = reopen(storageOptions);
+	    long rawLength = 0;
+	    for (int i = 0; i < 1000; i++) {
+		String value = "{\"id\":" + i + ",\"name\":\"user" + i + "\",\"active\":true,\"roles\":[\"reader\",\"writer\"]}";
+		memtable.put("key" + i, Optional.of(value));
+		rawLength += ("key" + i).length() + value.length();
+	    }
+	    compressed.dumpCacheToStoreFile(memtable);
+	    memtable.clear();
+	    compressed.compactStoreFiles();
+
+	    long storedLength = 0;
+	    for (File file: compressed.getStoreFiles("KVServerStoreFile_")) {
+		storedLength += file.length();
+	    }
+	    assertTrue(storedLength < rawLength / 2);
+	    assertEquals("{\"id\":7,\"name\":\"user7\",\"active\":true,\"roles\":[\"reader\",\"writer\"]}", compressed.searchForKeyInFiles("key7", "KVServerStoreFile_"));
+	    assertNull(compressed.searchForKeyInFiles("key1000", "KVServerStoreFile_"));
+
+	    openReceiver();
+	    for (File file: compressed.getStoreFiles("KVServerStoreFile_")) {
+		transfer(compressed, receiver, file);
+	    }
+	    assertEquals(storedLength, receiver.getStoreFiles("KVServerStoreFile_")[0].length());
+	    assertEquals("{\"id\":999,\"name\":\"user999\",\"active\":true,\"roles\":[\"reader\",\"writer\"]}", receiver.searchForKeyInFiles("key999", "KVServerStoreFile_"));
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+    }
+
+    @Test
+    public void testPartitionHandsOffWholeFiles() {
+	Exception ex = null;
+	ServerFileManager partitioned = null;
+
+	var storageOptions = new StorageOptions();
+	storageOptions.setTargetFileSize(2048);
+
+	byte[] rangeFrom = new byte[16];
+	rangeFrom[0] = (byte) 0xc0;
+	rangeFrom[1] = (byte) 0x80;
+	byte[] rangeTo = new byte[16];
+	rangeTo[0] = (byte) 0x40;
+	rangeTo[1] = (byte) 0x80;
+	var serverRange = new KeyRange(5000, "localhost", rangeFrom, rangeTo);
+
+	try {
+	    partitioned = reopen(storageOptions);
+	    for (int i = 0; i < 2000; i++) {
+		memtable.put("key" + i, Optional.of("value" + i));
+	    }
+	    partitioned.dumpCacheToStoreFile(memtable);
+	    memtable.clear();
+	    partitioned.compactStoreFiles();
+
+	    var before = new HashSet<String>();
+	    for (File file: partitioned.getStoreFiles("KVServerStoreFile_")) {
+		before.add(file.getName());
+	    }
+
+	    partitioned.partitionStoreFilesByKeyRange(null, serverRange);
+
+	    int rewritten = 0;
+	    for (File file: partitioned.getStoreFiles("KVServerStoreFile_")) {
+		if (!before.contains(file.getName())) {
+		    rewritten++;
+		}
+	    }
+	    assertTrue(rewritten <= 2);
+
+	    openReceiver();
+	    File[] partitionedFiles = partitioned.getPartitionedFiles();
+	    assertTrue(partitionedFiles.length > 2);
+	    for (File file: partitionedFiles) {
+		transfer(partitioned, receiver, file);
+	    }
+
+	    MessageDigest md = MessageDigest.getInstance("MD5");
+	    for (int i = 0; i < 2000; i++) {
+		boolean stays = serverRange.withinKeyRange(md.digest(("key" + i).getBytes()));
+		assertEquals(stays ? "value" + i : null, partitioned.searchForKeyInFiles("key" + i, "KVServerStoreFile_"));
+		assertEquals(stays ? null : "value" + i, receiver.searchForKeyInFiles("key" + i, "KVServerStoreFile_"));
+	    }
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+    }
+
+    @Test
+    public void testPartitionKeepsValuePointers() {
+	Exception ex = null;
+	ServerFileManager partitioned = null;
+
+	var storageOptions = new StorageOptions();
+	storageOptions.setValueLogThreshold(100);
+
+	byte[] rangeFrom = new byte[16];
+	rangeFrom[0] = (byte) 0xc0;
+	byte[] rangeTo = new byte[16];
+	rangeTo[0] = (byte) 0x40;
+	var serverRange = new KeyRange(5000, "localhost", rangeFrom, rangeTo);
+
+	char[] padding = new char[200];
+	Arrays.fill(padding, 'x');
+
+	try {
+	    partitioned = reopen(storageOptions);
+	    for (int i = 0; i < 500; i++) {
+		memtable.put("key" + i, Optional.of(new String(padding) + i));
+	    }
+	    partitioned.dumpCacheToStoreFile(memtable);
+	    memtable.clear();
+	    partitioned.compactStoreFiles();
+
+	    long valueLogLength = valueLogLength();
+
+	    partitioned.partitionStoreFilesByKeyRange(null, serverRange);
+
+	    // Values that stay are not appended to the value log again.
+	    assertEquals(valueLogLength, valueLogLength());
+
+	    openReceiver();
+	    for (File file: partitioned.getPartitionedFiles()) {
+		transfer(partitioned, receiver, file);
+	    }
+
+	    MessageDigest md = MessageDigest.getInstance("MD5");
+	    for (int i = 0; i < 500; i++) {
+		boolean stays = serverRange.withinKeyRange(md.digest(("key" + i).getBytes()));
+		assertEquals(stays ? new String(padding) + i : null, partitioned.searchForKeyInFiles("key" + i, "KVServerStoreFile_"));
+		assertEquals(stays ? null : new String(padding) + i, receiver.searchForKeyInFiles("key" + i, "KVServerStoreFile_"));
+	    }
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+    }
+
+    private long valueLogLength() {
+	long length = 0;
+	for (File file: dataDirectory.listFiles()) {
+	    if (file.getName().startsWith("vlog_")) {
+		length += file.length();
+	    }
+	}
+	return length;
+    }
+
+    @Test
+    public void testPartitionKeepsPrecedenceWithoutCompacting() {
+	Exception ex = null;
+
+	byte[] rangeFrom = new byte[16];
+	rangeFrom[0] = (byte) 0xc0;
+	byte[] rangeTo = new byte[16];
+	rangeTo[0] = (byte) 0x40;
+	var serverRange = new KeyRange(5000, "localhost", rangeFrom, rangeTo);
+	var staying = new HashSet<Integer>();
+	var untouched = new HashSet<Integer>();
+
+	try {
+	    MessageDigest md = MessageDigest.getInstance("MD5");
+	    for (int i = 0; i < 1000; i++) {
+		byte[] digest = md.digest(("key" + i).getBytes());
+		if (serverRange.withinKeyRange(digest)) {
+		    staying.add(i);
+		}
+		if ((digest[0] & 0xff) > 0x40 && (digest[0] & 0xff) < 0xc0) {
+		    untouched.add(i);
+		}
+	    }
+
+	    // The newest file only holds keys from hash buckets that stay
+	    // whole, so it is left in place above the older files that are
+	    // split
+	    for (int round = 0; round < 3; round++) {
+		for (int i = round * 100; i < 1000; i += 1 + round) {
+		    if (round < 2 || untouched.contains(i)) {
+			memtable.put("key" + i, round == 2 && i % 10 == 0 ? ServerFileManager.TOMBSTONE : Optional.of("value" + round + "_" + i));
+		    }
+		}
+		serverFileManager.dumpCacheToStoreFile(memtable);
+		memtable.clear();
+	    }
+	    File newest = serverFileManager.getStoreFiles("KVServerStoreFile_")[2];
+
+	    serverFileManager.partitionStoreFilesByKeyRange(null, serverRange);
+	    assertEquals(3, serverFileManager.getNumFilesAtLevel(0));
+	    assertEquals(newest, serverFileManager.getStoreFiles("KVServerStoreFile_")[2]);
+
+	    openReceiver();
+	    for (File file: serverFileManager.getPartitionedFiles()) {
+		transfer(serverFileManager, receiver, file);
+	    }
+
+	    for (int i = 0; i < 1000; i++) {
+		boolean stays = staying.contains(i);
+		String expected = "value0_" + i;
+		if (untouched.contains(i) && i >= 200 && i % 3 == 2) {
+		    expected = i % 10 == 0 ? null : "value2_" + i;
+		} else if (i >= 100 && i % 2 == 0) {
+		    expected = "value1_" + i;
+		}
+		assertEquals(stays ? expected : null, serverFileManager.searchForKeyInFiles("key" + i, "KVServerStoreFile_"));
+		assertEquals(stays ? null : expected, receiver.searchForKeyInFiles("key" + i, "KVServerStoreFile_"));
+	    }
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+    }
+
+    @Test
+    public void testCompactionKeepsNewestValue() {
+	Exception ex = null;
+	String value = null;
+
+	try {
+	    memtable.put("a", Optional.of("old"));
+	    memtable.put("b", Optional.of("b"));
+	    serverFileManager.dumpCacheToStoreFile(memtable);
+	    memtable.clear();
+	    memtable.put("a", Optional.of("new"));
+	    memtable.put("c", Optional.of("c"));
+	    serverFileManager.dumpCacheToStoreFile(memtable);
+	    memtable.clear();
+	    serverFileManager.compactStoreFiles();
+	    value = serverFileManager.searchForKeyInFiles("a", "KVServerStoreFile_");
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+	assertEquals("new", value);
+	assertEquals(1, serverFileManager.filterFilesByPrefix("KVServerStoreFile_").length);
+    }
+
+    @Test
+    public void testTombstonesShadowOlderValuesUntilCompacted() {
+	Exception ex = null;
+
+	try {
+	    memtable.put("a", Optional.of("1"));
+	    memtable.put("b", Optional.of("2"));
+	    serverFileManager.dumpCacheToStoreFile(memtable);
+	    memtable.clear();
+	    memtable.put("a", ServerFileManager.TOMBSTONE);
+	    memtable.put("b", ServerFileManager.TOMBSTONE);
+	    serverFileManager.dumpCacheToStoreFile(memtable);
+	    memtable.clear();
+	    assertNull(serverFileManager.searchForKeyInFiles("a", "KVServerStoreFile_"));
+	    assertNull(serverFileManager.searchForKeyInFiles("b", "KVServerStoreFile_"));
+	    serverFileManager.compactStoreFiles();
+	    assertNull(serverFileManager.searchForKeyInFiles("a", "KVServerStoreFile_"));
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+	assertEquals(0, serverFileManager.filterFilesByPrefix("KVServerStoreFile_").length);
+    }
+
+    @Test
+    public void testCompactionMergesManyVersions() {
+	Exception ex = null;
+
+	try {
+	    for (int round = 0; round < 8; round++) {
+		for (int i = round % 2; i < 1000; i += 1 + round % 2) {
+		    memtable.put("key" + i, Optional.of("value" + round));
+		}
+		serverFileManager.dumpCacheToStoreFile(memtable);
+		memtable.clear();
+	    }
+	    serverFileManager.compactStoreFiles();
+	    for (int i = 0; i < 1000; i++) {
+		String expected = "value" + (i % 2 == 1 ? 7 : 6);
+		assertEquals(expected, serverFileManager.searchForKeyInFiles("key" + i, "KVServerStoreFile_"));
+	    }
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+	assertEquals(0, serverFileManager.getNumFilesAtLevel(0));
+    }
+
+    @Test
+    public void testManifestSurvivesRestart() {
+	Exception ex = null;
+	ServerFileManager restarted = null;
+	File orphan = new File(dataDirectory, "KVServerStoreFile_999999.sst");
+
+	try {
+	    memtable.put("a", Optional.of("1"));
+	    serverFileManager.dumpCacheToStoreFile(memtable);
+	    memtable.clear();
+	    serverFileManager.compactStoreFiles();
+	    memtable.put("a", Optional.of("2"));
+	    serverFileManager.dumpCacheToStoreFile(memtable);
+	    memtable.clear();
+
+	    orphan.createNewFile();
+
+	    restarted = reopen(new StorageOptions());
+	    assertEquals(1, restarted.getNumFilesAtLevel(0));
+	    assertEquals(1, restarted.getNumFilesAtLevel(1));
+	    assertEquals("2", restarted.searchForKeyInFiles("a", "KVServerStoreFile_"));
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+	assertFalse(orphan.exists());
+    }
+
+    private void writeLegacyStoreFile(String name, String contents, long lastModified) throws Exception {
+	File legacyFile = new File(dataDirectory, name);
+	try (var output = new FileOutputStream(legacyFile)) {
+	    output.write(contents.getBytes(StandardCharsets.UTF_8));
+	}
+	legacyFile.setLastModified(lastModified);
+    }
+
+    @Test
+    public void testLegacyStoreFilesMigrated() {
+	Exception ex = null;
+	ServerFileManager restarted = null;
+
+	try {
+	    writeLegacyStoreFile("KVServerStoreFile_2024-01-01T00:00:00Z.txt", "a\r\n1\r\nb\r\n2\r\nc\r\n3\r\n", 1000000L);
+	    writeLegacyStoreFile("KVServerStoreFile_2024-01-02T00:00:00Z.txt", "a\r\n4\r\nb\r\nnull\r\n", 2000000L);
+	    writeLegacyStoreFile("CompactedKVServerStoreFile_2024-01-03T00:00:00Z.txt", "a\r\n1\r\nd\r\n5\r\n", 3000000L);
+	    writeLegacyStoreFile("Replica1KVServerStoreFile_2024-01-01T00:00:00Z.txt", "r\r\n1\r\n", 1000000L);
+	    restarted = reopen(new StorageOptions());
+	    assertEquals("4", restarted.searchForKeyInFiles("a", "KVServerStoreFile_"));
+	    assertNull(restarted.searchForKeyInFiles("b", "KVServerStoreFile_"));
+	    assertEquals("3", restarted.searchForKeyInFiles("c", "KVServerStoreFile_"));
+	    assertEquals("5", restarted.searchForKeyInFiles("d", "KVServerStoreFile_"));
+	    assertEquals("1", restarted.searchForKeyInFiles("r", "Replica1KVServerStoreFile_"));
+	    assertNull(restarted.searchForKeyInFiles("r", "KVServerStoreFile_"));
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+	for (File file: dataDirectory.listFiles()) {
+	    assertFalse(file.getName().endsWith(".txt"));
+	}
+    }
+
+    @Test
+    public void testLeveledCompaction() {
+	Exception ex = null;
+	ServerFileManager leveled = null;
+
+	var storageOptions = new StorageOptions();
+	storageOptions.setLevel0CompactionTrigger(2);
+	storageOptions.setLevelBaseSize(16 * 1024);
+	storageOptions.setTargetFileSize(4 * 1024);
+
+	try {
+	    leveled = reopen(storageOptions);
+	    for (int round = 0; round < 10; round++) {
+		var flushed = new TreeMap<String, Optional<String>>();
+		for (int i = round * 150; i < round * 150 + 400; i++) {
+		    flushed.put(String.format("key%05d", i), Optional.of("value" + round + "_" + i));
+		}
+		leveled.dumpCacheToStoreFile(flushed);
+		while (leveled.compactNextLevel()) {
+		}
+	    }
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+	assertTrue(leveled.getNumFilesAtLevel(0) < 2);
+	assertTrue(leveled.getNumFilesAtLevel(2) > 0);
+
+	try {
+	    for (int i = 0; i < 1750; i++) {
+		int round = Math.min(i / 150, 9);
+		assertEquals("value" + round + "_" + i, leveled.searchForKeyInFiles(String.format("key%05d", i), "KVServerStoreFile_"));
+	    }
+	    assertNull(leveled.searchForKeyInFiles("key99999", "KVServerStoreFile_"));
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+    }
+
+}
@@ -0,0 +1,58 @@
+package testing;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.*;
+
+import app_kvServer.KVServer;
+import client.ProtocolMessage;
+import shared.ByteArrayComparator;
+import shared.FrameReader;
+import shared.KeyRange;
+
+/**
+ * Helpers for tests that talk to a KVServer's connection handlers
+ * directly, without an ECS.
+ */
+final class TestServers {
+
+    private TestServers() {
+    }
+
+    /**
+     * Makes kvServer the only server, responsible for the whole ring, and
+     * lets it serve clients.
+     */
+    static void ownWholeRing(KVServer kvServer) throws Exception {
+
+	byte[] position = md5("localhost:" + kvServer.getPort());
+	var metadata = new TreeMap<byte[], KeyRange>(new ByteArrayComparator());
+	metadata.put(position, new KeyRange(kvServer.getPort(), "localhost", position, position));
+
+	kvServer.setMetadata(metadata);
+	kvServer.setServerState(KVServer.ServerState.SERVER_AVAILABLE);
+    }
+
+    /**
+     * @return the next response of the text protocol
+     */
+    static ProtocolMessage readText(FrameReader frames) throws Exception {
+	ByteBuffer frame = frames.readFrame();
+	return ProtocolMessage.fromBytesAtClient(frame.array(), frame.position(), frame.remaining());
+    }
+
+    /**
+     * @return the next response of the binary protocol
+     */
+    static ProtocolMessage readBinary(FrameReader frames) throws Exception {
+	ByteBuffer frame = frames.readLengthPrefixedFrame();
+	return ProtocolMessage.fromBinaryAtClient(frame.array(), frame.position(), frame.remaining());
+    }
+
+    static byte[] md5(String value) throws Exception {
+	MessageDigest md = MessageDigest.getInstance("MD5");
+	md.update(value.getBytes());
+	return md.digest();
+    }
+
+}
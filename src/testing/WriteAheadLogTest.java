@@ -0,0 +1,286 @@
+package testing;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import app_kvServer.ReplicationQueue;
+import app_kvServer.util.ServerFileManager;
+import app_kvServer.util.WriteAheadLog;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+
+public class WriteAheadLogTest extends TestCase {
+
+    private File dataDirectory;
+    private ServerFileManager serverFileManager;
+
+    public void setUp() {
+
+	try {
+	    dataDirectory = new File("src/testing/data/wal");
+	    dataDirectory.mkdirs();
+	    serverFileManager = new ServerFileManager(dataDirectory.getPath(), new TreeMap<String, Optional<String>>(), 10000);
+	} catch (Exception e) {
+	    e.printStackTrace();
+	    return;
+	}
+
+    }
+
+    public void tearDown() {
+
+	serverFileManager.close();
+
+	for (File f: dataDirectory.listFiles()) {
+	    f.delete();
+	}
+
+	dataDirectory.delete();
+
+    }
+
+    private File[] getSegments() {
+	File[] segments = dataDirectory.listFiles((d, name) -> name.startsWith("wal_"));
+	Arrays.sort(segments);
+	return segments;
+    }
+
+    private TreeMap<String, Optional<String>> restart() throws IOException {
+	serverFileManager.close();
+	var recovered = new TreeMap<String, Optional<String>>();
+	serverFileManager = new ServerFileManager(dataDirectory.getPath(), recovered, 10000);
+	return recovered;
+    }
+
+    @Test
+    public void testReplayValuesWithDelimiters() {
+	Exception ex = null;
+	TreeMap<String, Optional<String>> recovered = null;
+
+	try {
+	    serverFileManager.writeKVToWAL("crlf", Optional.of("first line\r\nsecond line"));
+	    serverFileManager.writeKVToWAL("empty", Optional.of(""));
+	    serverFileManager.writeKVToWAL("key", Optional.of("old"));
+	    serverFileManager.writeKVToWAL("key", Optional.of("new"));
+	    recovered = restart();
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+	assertEquals(3, recovered.size());
+	assertEquals(Optional.of("first line\r\nsecond line"), recovered.get("crlf"));
+	assertEquals(Optional.of(""), recovered.get("empty"));
+	assertEquals(Optional.of("new"), recovered.get("key"));
+    }
+
+    @Test
+    public void testTornTailIsTruncated() {
+	Exception ex = null;
+	TreeMap<String, Optional<String>> recovered = null;
+
+	try {
+	    for (int i = 0; i < 10; i++) {
+		serverFileManager.writeKVToWAL("key" + i, Optional.of("value" + i));
+	    }
+	    serverFileManager.close();
+
+	    File[] segments = getSegments();
+	    try (var output = new FileOutputStream(segments[segments.length - 1], true)) {
+		output.write(new byte[] {0, 0, 0, 42, 1, 2, 3});
+	    }
+
+	    recovered = restart();
+	    serverFileManager.writeKVToWAL("after", Optional.of("restart"));
+	    recovered = restart();
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+	assertEquals(11, recovered.size());
+	assertEquals(Optional.of("value9"), recovered.get("key9"));
+	assertEquals(Optional.of("restart"), recovered.get("after"));
+    }
+
+    @Test
+    public void testCorruptRecordStopsReplay() {
+	Exception ex = null;
+	TreeMap<String, Optional<String>> recovered = null;
+	long recordLength = 16 + 8 + "key0".length() + "value0".length();
+
+	try {
+	    for (int i = 0; i < 10; i++) {
+		serverFileManager.writeKVToWAL("key" + i, Optional.of("value" + i));
+	    }
+	    serverFileManager.close();
+
+	    File[] segments = getSegments();
+	    try (var file = new RandomAccessFile(segments[segments.length - 1], "rw")) {
+		file.seek(5 * recordLength + 20);
+		file.write('X');
+	    }
+
+	    recovered = restart();
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+	assertEquals(5, recovered.size());
+	assertEquals(Optional.of("value4"), recovered.get("key4"));
+	assertNull(recovered.get("key5"));
+    }
+
+    @Test
+    public void testSegmentsDeletedAfterFlush() {
+	Exception ex = null;
+	String value = null;
+
+	try {
+	    var memtable = new TreeMap<String, Optional<String>>();
+	    for (int i = 0; i < 10; i++) {
+		serverFileManager.writeKVToWAL("key" + i, Optional.of("value" + i));
+		memtable.put("key" + i, Optional.of("value" + i));
+	    }
+	    serverFileManager.rotateWAL();
+	    serverFileManager.writeKVToWAL("active", Optional.of("value"));
+	    assertEquals(2, getSegments().length);
+
+	    serverFileManager.dumpCacheToStoreFile(memtable);
+	    assertEquals(1, getSegments().length);
+
+	    var recovered = restart();
+	    assertEquals(1, recovered.size());
+	    value = serverFileManager.searchForKeyInFiles("key3", "KVServerStoreFile_");
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+	assertEquals("value3", value);
+    }
+
+    @Test
+    public void testLegacyWALMigrated() {
+	Exception ex = null;
+	String value = null;
+	File legacyWal = new File(dataDirectory, "wal.txt");
+
+	try {
+	    serverFileManager.close();
+	    try (var output = new FileOutputStream(legacyWal)) {
+		output.write("a\r\n1\r\nb\r\n2\r\na\r\n3\r\n".getBytes(StandardCharsets.UTF_8));
+	    }
+	    restart();
+	    value = serverFileManager.searchForKeyInFiles("a", "KVServerStoreFile_");
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+	assertEquals("3", value);
+	assertFalse(legacyWal.exists());
+    }
+
+    @Test
+    public void testShippedRecordsAppliedOnReplica() {
+	Exception ex = null;
+	var applied = new TreeMap<String, Optional<String>>();
+	long lastSequence = 0;
+	long shippedSequence = -1;
+	String value = null;
+	String deletedValue = null;
+	IOException corruptBatch = null;
+
+	try {
+	    var batch = new ByteArrayOutputStream();
+	    for (ByteBuffer record: List.of(
+		     serverFileManager.writeKVToWAL("key", Optional.of("old")),
+		     serverFileManager.writeKVToWAL("crlf", Optional.of("first line\r\nsecond line")),
+		     serverFileManager.writeKVToWAL("deleted", ServerFileManager.TOMBSTONE),
+		     serverFileManager.writeKVToWAL("key", Optional.of("new")))) {
+		batch.write(record.array(), record.position(), record.remaining());
+	    }
+	    lastSequence = serverFileManager.getLastWALSequence();
+
+	    byte[] records = batch.toByteArray();
+	    shippedSequence = WriteAheadLog.readShippedRecords(new ByteArrayInputStream(records), records.length, applied::put);
+
+	    serverFileManager.dumpReplicaToStoreFile(applied, "Replica1KVServerStoreFile_", shippedSequence);
+	    value = serverFileManager.searchForKeyInFiles("key", "Replica1KVServerStoreFile_");
+	    deletedValue = serverFileManager.searchForKeyInFiles("deleted", "Replica1KVServerStoreFile_");
+
+	    records[records.length - 1] ^= 1;
+	    try {
+		WriteAheadLog.readShippedRecords(new ByteArrayInputStream(records), records.length, (k, v) -> {});
+	    } catch (IOException ioe) {
+		corruptBatch = ioe;
+	    }
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+	assertEquals(lastSequence, shippedSequence);
+	assertEquals(3, applied.size());
+	assertEquals(Optional.of("first line\r\nsecond line"), applied.get("crlf"));
+	assertTrue(ServerFileManager.isTombstone(applied.get("deleted")));
+	assertEquals("new", value);
+	assertNull(deletedValue);
+	assertNotNull(corruptBatch);
+    }
+
+    @Test
+    public void testOutOfOrderRecordsShippedInSequence() {
+	Exception ex = null;
+	var applied = new TreeMap<String, Optional<String>>();
+	var records = new ArrayList<ByteBuffer>();
+	long firstSequence = 0;
+	long lastSequence = 0;
+	long appliedSequence = 0;
+	boolean shippedPastGap = false;
+
+	try {
+	    firstSequence = serverFileManager.getLastWALSequence() + 1;
+	    for (int i = 0; i < 100; i++) {
+		records.add(serverFileManager.writeKVToWAL("key" + i % 10, Optional.of("value" + i)));
+	    }
+	    lastSequence = serverFileManager.getLastWALSequence();
+
+	    var queue = new ReplicationQueue(firstSequence - 1);
+	    Collections.shuffle(records, new Random(42));
+
+	    appliedSequence = firstSequence - 1;
+
+	    for (ByteBuffer record: records) {
+		queue.add(record);
+		for (List<ByteBuffer> batch = queue.poll(64); !batch.isEmpty(); batch = queue.poll(64)) {
+		    for (ByteBuffer shipped: batch) {
+			shippedPastGap |= WriteAheadLog.getSequence(shipped) != appliedSequence + 1;
+			appliedSequence = WriteAheadLog.readShippedRecords(new ByteArrayInputStream(shipped.array(), shipped.position(), shipped.remaining()), shipped.remaining(), applied::put);
+		    }
+		}
+	    }
+
+	    queue.add(records.get(0));
+	    assertTrue(queue.isEmpty());
+	} catch (Exception e) {
+	    ex = e;
+	}
+
+	assertNull(ex);
+	assertFalse(shippedPastGap);
+	assertEquals(lastSequence, appliedSequence);
+	assertEquals(10, applied.size());
+	for (int i = 0; i < 10; i++) {
+	    assertEquals(Optional.of("value" + (90 + i)), applied.get("key" + i));
+	}
+    }
+
+}